@@ -0,0 +1,113 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Recycles transfer buffers by power-of-two size class, so that steady-state transfers do not
+// allocate. Heap arrays are used for synchronous transfers and direct ByteBuffers for queued
+// UsbRequests (which lets the platform skip its own copy of the data). Buffers are handed out
+// with at least the requested capacity; callers must track the length actually in use, and must
+// not read beyond what a transfer wrote, as recycled buffers are not cleared.
+class BufferPool {
+    // Smallest and largest pooled sizes are 1 << MIN_SHIFT and 1 << MAX_SHIFT bytes. Larger
+    // requests are allocated exactly and dropped on release.
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 20;
+    // Buffers kept per size class; anything released beyond this is left to the GC.
+    private static final int MAX_PER_CLASS = 8;
+
+    private final ArrayDeque<byte[]>[] mArrays;
+    private final ArrayDeque<ByteBuffer>[] mDirectBuffers;
+
+    @SuppressWarnings("unchecked")
+    BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        mArrays = new ArrayDeque[classes];
+        mDirectBuffers = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            mArrays[i] = new ArrayDeque<byte[]>(MAX_PER_CLASS);
+            mDirectBuffers[i] = new ArrayDeque<ByteBuffer>(MAX_PER_CLASS);
+        }
+    }
+
+    byte[] acquire(int minSize) {
+        int sizeClass = sizeClassFor(minSize);
+        if (sizeClass < 0) {
+            return new byte[minSize];
+        }
+        ArrayDeque<byte[]> free = mArrays[sizeClass];
+        synchronized (free) {
+            byte[] buffer = free.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    void release(byte[] buffer) {
+        int sizeClass = exactSizeClass(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        ArrayDeque<byte[]> free = mArrays[sizeClass];
+        synchronized (free) {
+            if (free.size() < MAX_PER_CLASS) {
+                free.push(buffer);
+            }
+        }
+    }
+
+    // Returns a cleared direct buffer with capacity of at least |minSize|.
+    ByteBuffer acquireDirect(int minSize) {
+        int sizeClass = sizeClassFor(minSize);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocateDirect(minSize);
+        }
+        ArrayDeque<ByteBuffer> free = mDirectBuffers[sizeClass];
+        synchronized (free) {
+            ByteBuffer buffer = free.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+    }
+
+    void releaseDirect(ByteBuffer buffer) {
+        int sizeClass = exactSizeClass(buffer.capacity());
+        if (sizeClass < 0 || !buffer.isDirect()) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> free = mDirectBuffers[sizeClass];
+        synchronized (free) {
+            if (free.size() < MAX_PER_CLASS) {
+                free.push(buffer);
+            }
+        }
+    }
+
+    // Index of the smallest class holding |size| bytes, or -1 if it is too large to pool.
+    private static int sizeClassFor(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = size <= 1 << MIN_SHIFT ?
+                MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    // Index of the class whose size is exactly |size|, or -1 if it did not come from the pool.
+    private static int exactSizeClass(int size) {
+        if (Integer.bitCount(size) != 1) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(size);
+        return shift < MIN_SHIFT || shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
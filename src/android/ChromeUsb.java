@@ -4,14 +4,37 @@
 
 package org.chromium;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -34,6 +57,7 @@ import android.hardware.usb.UsbRequest;
 import android.os.Build;
 import android.util.Base64;
 import android.util.Log;
+import android.util.SparseArray;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 public class ChromeUsb extends CordovaPlugin {
@@ -49,664 +73,4229 @@ public class ChromeUsb extends CordovaPlugin {
     // or-ed with the endpoint index.
     private static final int ENDPOINT_IF_SHIFT = 16;
 
+    // Defaults for startBulkInStream when the caller does not specify them.
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 16384;
+    private static final int DEFAULT_STREAM_DEPTH = 4;
+    // Default number of requests kept queued by startInterruptPolling.
+    private static final int DEFAULT_POLLING_DEPTH = 2;
+    // Default number of pipelined bulk OUT writes in flight per endpoint.
+    private static final int DEFAULT_PIPELINE_DEPTH = 4;
+    // Default time a partial batch of coalesced writes is held.
+    private static final int DEFAULT_COALESCING_FLUSH_DELAY_MS = 2;
+    // Defaults for startReadAhead: buffer capacity, and size and number of queued reads.
+    private static final int DEFAULT_READ_AHEAD_SIZE = 65536;
+    private static final int DEFAULT_READ_AHEAD_CHUNK_SIZE = 4096;
+    private static final int DEFAULT_READ_AHEAD_DEPTH = 2;
+
+    // Defaults for startCapture: records kept, and payload bytes kept per record.
+    private static final int DEFAULT_CAPTURE_RECORDS = 4096;
+    private static final int DEFAULT_CAPTURE_SNAP_LENGTH = 64;
+
+    // Device IDs given to simulated devices count down from here, clear of FakeDevice.ID.
+    private static final int SIMULATED_DEVICE_FIRST_ID = -2000000;
+    // Number of distinct simulated device configurations kept; the least recently offered one
+    // is forgotten first.
+    private static final int MAX_SIMULATED_DEVICES = 32;
+
+    // Default for the most bytes a recorded session may take before it stops recording.
+    private static final int DEFAULT_SESSION_LIMIT = 16 * 1024 * 1024;
+
+    // Number of distinct getDevices filter lists kept compiled.
+    private static final int FILTER_CACHE_SIZE = 8;
+
+    // Worker key used for control transfers, which all go through endpoint zero.
+    private static final int CONTROL_WORKER = -1;
+    // Worker key used for transfer batches, which may mix endpoints. Batches have a worker of
+    // their own so that a long one never holds up control transfers.
+    private static final int BATCH_WORKER = -2;
+    // Transfers waiting for an endpoint's worker run in priority order, and in arrival order
+    // within a priority. By default control transfers are high priority, interrupt transfers
+    // normal, and bulk transfers and batches low; a transfer's "priority" overrides this.
+    private static final int PRIORITY_HIGH = 0;
+    private static final int PRIORITY_NORMAL = 1;
+    private static final int PRIORITY_LOW = 2;
+    // Default for the most transfers pending per endpoint, see setTransferQueueLimit.
+    private static final int DEFAULT_TRANSFER_QUEUE_LIMIT = 256;
+    // How long an idle per-endpoint worker keeps its thread.
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+    // How long to wait for a cancelled control response read to complete.
+    private static final int CONTROL_CANCEL_TIMEOUT_MS = 1000;
+    // How long closeDevice waits for cancelled requests to complete before closing.
+    private static final int REACTOR_DRAIN_TIMEOUT_MS = 1000;
+
+    // Bulk transfers longer than this are split into queued chunks of at most this size, as some
+    // Android versions fail or truncate larger ones. See runSplitBulkTransfer().
+    private static final int MAX_BULK_CHUNK = 16384;
+    // Number of chunks of a split bulk transfer kept queued at once.
+    private static final int SPLIT_TRANSFER_DEPTH = 4;
+    // Number of idle queued transfers, each with its request, kept per endpoint for reuse.
+    private static final int IDLE_QUEUED_TRANSFERS = 4;
+
+    // Size of the command block that ends the argument of a "transfer" action, see
+    // transferCommand().
+    private static final int TRANSFER_COMMAND_SIZE = 28;
+
     private UsbManager mUsbManager;
     private PendingIntent mPermissionIntent;
     private BroadcastReceiver mUsbReceiver;
+    private BroadcastReceiver mHotplugReceiver;
+
+    // Attached devices, keyed by device ID. Filled once from UsbManager.getDeviceList() and then
+    // kept current from the attach/detach broadcasts, so lookups need no binder call.
+    private final ConcurrentHashMap<Integer, UsbDevice> mDevices =
+            new ConcurrentHashMap<Integer, UsbDevice>();
+    // Kept-alive callback receiving onDeviceAdded/onDeviceRemoved events, if JS registered one.
+    private volatile CallbackContext mDeviceEventsCallback;
 
     // Encapsulates the Android UsbDevice and UsbDeviceConnection classes, and provides wrappers
     // around the UsbInterface and UsbEndpoint methods to allow for mocking.
     private static abstract class ConnectedDevice {
         abstract int getInterfaceCount();
         abstract int getEndpointCount(int interfaceNumber);
-        abstract void describeInterface(int interfaceNumber, JSONObject result)
-                throws JSONException;
-        abstract void describeEndpoint(int interfaceNumber, int endpointNumber, JSONObject result)
-                throws JSONException;
+        abstract byte[] getRawDescriptors();
         abstract boolean claimInterface(int interfaceNumber);
         abstract boolean releaseInterface(int interfaceNumber);
+        // Transfers the first |length| bytes of |buffer| in the data stage, in the direction
+        // given by |requestType|. Returns the number of bytes transferred, or a negative error
+        // code. See also runControlTransfer().
         abstract int controlTransfer(int requestType, int request, int value, int index,
-                byte[] transferBuffer, byte[] receiveBuffer, int timeout);
+                byte[] buffer, int length, int timeout);
+        // Transfers the first |length| bytes of |buffer|, which may be larger (see BufferPool).
         abstract int bulkTransfer(int interfaceNumber, int endpointNumber, int direction,
-                byte[] buffer, int timeout) throws UsbError;
+                byte[] buffer, int length, int timeout) throws UsbError;
         abstract int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
-                                       byte[] buffer, int timeout) throws UsbError;
+                                       byte[] buffer, int length, int timeout) throws UsbError;
+        // Creates a request that can be queued asynchronously on the given endpoint.
+        abstract QueuedRequest newRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError;
+        // Blocks until any queued request on this connection completes. Returns null on error,
+        // and once the connection is closed. Must only be called by the CompletionReactor.
+        abstract QueuedRequest requestWait();
         abstract void close();
-    };
 
-    // Maps connection handles to the corresponding device & connection objects.
-    private HashMap<Integer, ConnectedDevice> mConnections =
-            new HashMap<Integer, ConnectedDevice>();
-    private static int mNextConnectionId = 1;
+        // Parsed descriptors and the listInterfaces result built from them, computed once per
+        // connection.
+        private UsbDescriptors mDescriptors;
+        private JSONArray mInterfaceList;
 
-    @Override
-    public void onDestroy() {
-        Log.d(TAG, "onDestroy");
-        for (ConnectedDevice d : mConnections.values()) {
-            d.close();
+        synchronized UsbDescriptors getDescriptors() {
+            if (mDescriptors == null) {
+                mDescriptors = UsbDescriptors.parse(getRawDescriptors());
+            }
+            return mDescriptors;
         }
-        mConnections.clear();
-        unregisterReceiver();
-    }
-
-    @Override
-    public void onReset() {
-        unregisterReceiver();
-    }
 
-    private void unregisterReceiver() {
-        if(mUsbReceiver != null) {
-            webView.getContext().unregisterReceiver(mUsbReceiver);
-            mUsbReceiver = null;
+        synchronized JSONArray getInterfaceList() throws JSONException {
+            if (mInterfaceList == null) {
+                mInterfaceList = describeInterfaces(getDescriptors());
+            }
+            return mInterfaceList;
         }
-    }
 
-    private CallbackContext openCallbackContext;
+        // Counters for every transfer made on this connection, see getTransferStats.
+        final TransferStats mStats = new TransferStats();
+        // Where the device sits on the bus, for UsbCapture. Zero for the fake device.
+        int mBusNumber;
+        int mDeviceAddress;
 
-    /**
-     * Overridden execute method
-     * @param action the string representation of the action to execute
-     * @param args
-     * @param callbackContext the cordova {@link CallbackContext}
-     * @return true if the action exists, false otherwise
-     * @throws JSONException if the args parsing fails
-     */
-    @Override
-    public boolean execute(String action, final CordovaArgs args, final CallbackContext callbackContext)
-            throws JSONException {
-        final JSONObject params = args.getJSONObject(ARG_INDEX_PARAMS);
-        final CordovaArgs finalArgs = args;
-        Log.d(TAG, "Action: " + action + " params: " + params);
+        // Creates a request on the given endpoint, see newRequest().
+        QueuedRequest createRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError {
+            QueuedRequest request = newRequest(interfaceNumber, endpointNumber, direction,
+                    listener);
+            request.mEndpoint =
+                    getDescriptors().interfaces.get(interfaceNumber).endpoints.get(endpointNumber);
+            return request;
+        }
 
-        if (mUsbManager == null) {
-            mUsbManager = (UsbManager) webView.getContext().getSystemService(Context.USB_SERVICE);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                mPermissionIntent = PendingIntent.getBroadcast(webView.getContext(), 0, new Intent(ACTION_USB_PERMISSION), PendingIntent.FLAG_MUTABLE|PendingIntent.FLAG_ALLOW_UNSAFE_IMPLICIT_INTENT);
-            } else {
-                mPermissionIntent = PendingIntent.getBroadcast(webView.getContext(), 0, new Intent(ACTION_USB_PERMISSION), 0);
+        // Some devices answer control requests on an interrupt IN endpoint instead of in the
+        // data stage. When the first endpoint of the first interface is interrupt IN, an IN
+        // control transfer is sent without a data stage and its response is read from that
+        // endpoint. The read goes through the reactor like any queued request, so it never takes
+        // the completion of another request, and its request is kept for the next transfer.
+        // Batches run control transfers off the control worker, so the shared request is guarded
+        // by mControlResponseLock.
+        private final Object mControlResponseLock = new Object();
+        private QueuedRequest mControlResponseRequest;
+        private final ControlResponse mControlResponse = new ControlResponse();
+
+        int runControlTransfer(int requestType, int request, int value, int index,
+                byte[] buffer, int length, int timeout) throws UsbError {
+            UsbDescriptors descriptors = getDescriptors();
+            if ((requestType & UsbConstants.USB_ENDPOINT_DIR_MASK) != UsbConstants.USB_DIR_IN
+                    || descriptors.interfaces.isEmpty()
+                    || descriptors.interfaces.get(0).endpoints.isEmpty()) {
+                return controlTransfer(requestType, request, value, index, buffer, length,
+                        timeout);
+            }
+            UsbDescriptors.Endpoint ep = descriptors.interfaces.get(0).endpoints.get(0);
+            if ((ep.attributes & UsbConstants.USB_ENDPOINT_XFERTYPE_MASK)
+                    != UsbConstants.USB_ENDPOINT_XFER_INT
+                    || (ep.address & UsbConstants.USB_ENDPOINT_DIR_MASK)
+                    != UsbConstants.USB_DIR_IN) {
+                return controlTransfer(requestType, request, value, index, buffer, length,
+                        timeout);
+            }
+            synchronized (mControlResponseLock) {
+                if (mControlResponseRequest == null) {
+                    mControlResponseRequest = createRequest(0, 0, UsbConstants.USB_DIR_IN,
+                            mControlResponse);
+                }
+                QueuedRequest responseRequest = mControlResponseRequest;
+                ByteBuffer response = sBufferPool.acquireDirect(length);
+                mControlResponse.reset();
+                if (!submitRequest(responseRequest, response, length)) {
+                    sBufferPool.releaseDirect(response);
+                    return -1;
+                }
+                int result = controlTransfer(requestType, request, value, index, buffer, 0,
+                        timeout);
+                if (result < 0 || !mControlResponse.await(timeout)
+                        || mControlResponse.failed()) {
+                    Log.e(TAG, "[controlTransfer] No response on interrupt endpoint");
+                    responseRequest.cancel();
+                    if (!mControlResponse.await(CONTROL_CANCEL_TIMEOUT_MS)) {
+                        // Still queued, so the request is closed rather than reused, and the
+                        // next control transfer creates another.
+                        mReactor.abandon(responseRequest);
+                        mControlResponseRequest = null;
+                    }
+                    sBufferPool.releaseDirect(response);
+                    return -1;
+                }
+                result = response.position();
+                response.flip();
+                response.get(buffer, 0, result);
+                sBufferPool.releaseDirect(response);
+                return result;
             }
         }
 
-        try {
-            if ("hasUsbHostFeature".equals(action)) {
-                boolean usbHostFeature = cordova.getActivity().getApplicationContext().getPackageManager().hasSystemFeature(PackageManager.FEATURE_USB_HOST);
-                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, usbHostFeature));
-                return true;
-            } else if ("getDevices".equals(action)) {
-                cordova.getThreadPool().execute(new Runnable() {
-                    public void run() {
-                        try {
-                            getDevices(args, params, callbackContext);
-                        } catch (Exception e) {
-                            callbackContext.error(e.getMessage());
-                        }
-                    }
-                });
-                return true;
-            } else if ("openDevice".equals(action)) {
-                //this.openCallbackContext = callbackContext;
-                cordova.getThreadPool().execute(new Runnable() {
-                    public void run() {
-                        synchronized (ChromeUsb.this) {
-                            try {
-                                openDevice(args, params, callbackContext);
-                            } catch (Exception e) {
-                                callbackContext.error(e.getMessage());
-                            }
-                        }
-                    }
-                });
-                return true;
-            } else if ("closeDevice".equals(action)) {
-                synchronized (this) {
-                    closeDevice(args, params, callbackContext);
+        // Runs a bulk transfer of |length| bytes as a series of queued requests of at most
+        // MAX_BULK_CHUNK bytes (rounded down to whole packets), up to SPLIT_TRANSFER_DEPTH of
+        // them in flight. An IN transfer ends early at the first short chunk, as a single
+        // transfer would. Returns the number of bytes transferred, or -1 on failure or if
+        // |timeout| (for the whole transfer, zero for none) expires.
+        int runSplitBulkTransfer(int interfaceNumber, int endpointNumber, int direction,
+                byte[] buffer, int length, int timeout) throws UsbError {
+            UsbDescriptors.Endpoint ep =
+                    getDescriptors().interfaces.get(interfaceNumber).endpoints.get(endpointNumber);
+            int packetSize = ep.maxPacketSize & 0x7ff;
+            int chunkSize = packetSize == 0 ?
+                    MAX_BULK_CHUNK : MAX_BULK_CHUNK - MAX_BULK_CHUNK % packetSize;
+            int depth = Math.min(SPLIT_TRANSFER_DEPTH, (length + chunkSize - 1) / chunkSize);
+            SplitTransfer transfer = new SplitTransfer(this, direction, buffer, length, chunkSize);
+            QueuedRequest[] requests = new QueuedRequest[depth];
+            try {
+                for (int i = 0; i < depth; i++) {
+                    requests[i] = createRequest(interfaceNumber, endpointNumber, direction,
+                            transfer);
                 }
-                return true;
-            } else if ("listInterfaces".equals(action)) {
-                synchronized (this) {
-                    listInterfaces(args, params, callbackContext);
+            } catch (UsbError e) {
+                for (QueuedRequest request : requests) {
+                    if (request != null) {
+                        request.close();
+                    }
                 }
-                return true;
-            } else if ("claimInterface".equals(action)) {
-                synchronized (this) {
-                    claimInterface(args, params, callbackContext);
+                throw e;
+            }
+            return transfer.run(requests, timeout);
+        }
+
+        // Active IN streams (bulk streams and interrupt polling), keyed by endpoint address.
+        private final HashMap<Integer, InStream> mStreams =
+                new HashMap<Integer, InStream>();
+        // Pipelined bulk OUT writers, keyed by endpoint address.
+        private final HashMap<Integer, BulkOutPipeline> mPipelines =
+                new HashMap<Integer, BulkOutPipeline>();
+
+        // Collects the completions of every request queued on this connection.
+        private final CompletionReactor mReactor = new CompletionReactor(this);
+
+        // Queues |request|; its listener is called on the reactor thread once it completes.
+        boolean submitRequest(QueuedRequest request, ByteBuffer buffer, int length) {
+            return mReactor.submit(request, buffer, length);
+        }
+
+        // Endpoints in read-ahead mode, keyed by endpoint address. Guarded by mStreams, as an
+        // endpoint may hold a stream or a read-ahead buffer but not both.
+        private final HashMap<Integer, ReadAhead> mReadAheads = new HashMap<Integer, ReadAhead>();
+
+        void startStream(int endpointAddress, InStream stream) throws UsbError {
+            synchronized (mStreams) {
+                if (mStreams.containsKey(endpointAddress)
+                        || mReadAheads.containsKey(endpointAddress)) {
+                    throw new UsbError("Stream already active on endpoint: " + endpointAddress);
                 }
-                return true;
-            } else if ("releaseInterface".equals(action)) {
-                releaseInterface(args, params, callbackContext);
-                return true;
-            } else if ("controlTransfer".equals(action)) {
-                cordova.getThreadPool().execute(new Runnable() {
-                    public void run() {
-                        try {
-                            controlTransfer(finalArgs, params, callbackContext);
-                        } catch (Exception e) {
-                            callbackContext.error(e.getMessage());
-                        }
-                    }
-                });
-                return true;
-            } else if ("bulkTransfer".equals(action)) {
-                cordova.getThreadPool().execute(new Runnable() {
-                    public void run() {
-                        try {
-                            bulkTransfer(finalArgs, params, callbackContext);
-                        } catch (Exception e) {
-                            callbackContext.error(e.getMessage());
-                        }
-                    }
-                });
-                return true;
-            } else if ("interruptTransfer".equals(action)) {
-                cordova.getThreadPool().execute(new Runnable() {
-                    public void run() {
-                        try {
-                            interruptTransfer(finalArgs, params, callbackContext);
-                        } catch (Exception e) {
-                            callbackContext.error(e.getMessage());
-                        }
-                    }
-                });
-                return true;
+                mStreams.put(endpointAddress, stream);
+            }
+            try {
+                stream.start();
+            } catch (UsbError e) {
+                stopStream(endpointAddress);
+                throw e;
             }
-        } catch (UsbError e) {
-            callbackContext.error(e.getMessage());
-            return true;
-        } catch (JSONException e) {
-            callbackContext.error(e.getMessage());
-            return true;
         }
-        return false;
-    }
-    private boolean filterDevice(UsbDevice device, JSONArray filters) throws JSONException {
-        if (filters == null) {
+
+        boolean stopStream(int endpointAddress) {
+            InStream stream;
+            synchronized (mStreams) {
+                stream = mStreams.remove(endpointAddress);
+            }
+            if (stream == null) {
+                return false;
+            }
+            stream.stop();
             return true;
         }
-        Log.d(TAG, "filtering " + filters);
-        for (int filterIdx = 0; filterIdx < filters.length(); filterIdx++) {
-            JSONObject filter = filters.getJSONObject(filterIdx);
-            int vendorId = filter.optInt("vendorId", -1);
-            if (vendorId != -1) {
-                if (device.getVendorId() != vendorId) {
-                    continue;
+
+        InStream getStream(int endpointAddress) {
+            synchronized (mStreams) {
+                return mStreams.get(endpointAddress);
+            }
+        }
+
+        void startReadAhead(int endpointAddress, ReadAhead readAhead) throws UsbError {
+            synchronized (mStreams) {
+                if (mStreams.containsKey(endpointAddress)
+                        || mReadAheads.containsKey(endpointAddress)) {
+                    throw new UsbError("Stream already active on endpoint: " + endpointAddress);
                 }
+                mReadAheads.put(endpointAddress, readAhead);
             }
-            int productId = filter.optInt("productId", -1);
-            if (productId != -1) {
-                if (device.getProductId() != productId) {
-                    continue;
+            try {
+                readAhead.start();
+            } catch (UsbError e) {
+                stopReadAhead(endpointAddress);
+                throw e;
+            }
+        }
+
+        boolean stopReadAhead(int endpointAddress) {
+            ReadAhead readAhead;
+            synchronized (mStreams) {
+                readAhead = mReadAheads.remove(endpointAddress);
+            }
+            if (readAhead == null) {
+                return false;
+            }
+            readAhead.stop();
+            return true;
+        }
+
+        ReadAhead getReadAhead(int endpointAddress) {
+            synchronized (mStreams) {
+                return mReadAheads.get(endpointAddress);
+            }
+        }
+
+        // Returns the pipeline for an OUT endpoint, creating it with |depth| requests in flight
+        // on first use.
+        BulkOutPipeline getPipeline(int endpointAddress, int depth) throws UsbError {
+            synchronized (mPipelines) {
+                BulkOutPipeline pipeline = mPipelines.get(endpointAddress);
+                if (pipeline == null) {
+                    pipeline = new BulkOutPipeline(this,
+                            endpointAddress >> ENDPOINT_IF_SHIFT,
+                            endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1),
+                            depth);
+                    mPipelines.put(endpointAddress, pipeline);
                 }
+                return pipeline;
             }
-            int interfaceClass = filter.optInt("interfaceClass", -1);
-            int interfaceSubclass = filter.optInt("interfaceSubclass", -1);
-            int interfaceProtocol = filter.optInt("interfaceProtocol", -1);
-            if (interfaceClass == -1 && interfaceSubclass == -1 && interfaceProtocol == -1) {
-                return true;
+        }
+
+        // Returns the pipeline of an OUT endpoint if it has one, or null.
+        BulkOutPipeline findPipeline(int endpointAddress) {
+            synchronized (mPipelines) {
+                return mPipelines.get(endpointAddress);
             }
-            int interfaceCount = device.getInterfaceCount();
-            for (int interfaceIdx = 0; interfaceIdx < interfaceCount; interfaceIdx++) {
-                UsbInterface usbInterface = device.getInterface(interfaceIdx);
-                if (interfaceClass != -1) {
-                    if (interfaceClass != usbInterface.getInterfaceClass()) {
-                        continue;
-                    }
+        }
+
+        // Returns the pipeline of an OUT endpoint if it is coalescing writes, in which case all
+        // bulk OUT transfers on the endpoint go through it, or null.
+        BulkOutPipeline getCoalescingPipeline(int endpointAddress) {
+            BulkOutPipeline pipeline = findPipeline(endpointAddress);
+            return pipeline != null && pipeline.isCoalescing() ? pipeline : null;
+        }
+
+        // Synchronous transfers run on a worker per endpoint (control transfers share one), so a
+        // transfer blocked on one endpoint neither delays other endpoints of the device nor ties
+        // up Cordova's shared thread pool. Each worker runs one transfer at a time, which keeps
+        // per-endpoint ordering without any locking; idle workers let their thread expire.
+        // Waiting transfers are taken by priority, see PRIORITY_HIGH.
+        private final HashMap<Integer, ExecutorService> mWorkers =
+                new HashMap<Integer, ExecutorService>();
+        private boolean mWorkersShutDown;
+        private final AtomicLong mNextTaskSequence = new AtomicLong();
+
+        void runOnWorker(int endpointAddress, int priority, Runnable task) throws UsbError {
+            try {
+                getWorker(endpointAddress).execute(new PrioritizedTask(priority,
+                        mNextTaskSequence.getAndIncrement(), task));
+            } catch (RejectedExecutionException e) {
+                throw new UsbError("Device closed");
+            }
+        }
+
+        // As above for a task answering |transfer|, which fails (and so is untracked) rather
+        // than throwing if the worker no longer accepts tasks.
+        void runOnWorker(PendingTransfer transfer, int endpointAddress, int priority,
+                Runnable task) {
+            try {
+                runOnWorker(endpointAddress, priority, task);
+            } catch (UsbError e) {
+                transfer.error(e.getMessage());
+            }
+        }
+
+        private ExecutorService getWorker(final int endpointAddress) throws UsbError {
+            synchronized (mWorkers) {
+                if (mWorkersShutDown) {
+                    throw new UsbError("Device closed");
                 }
-                if (interfaceSubclass != -1) {
-                    if (interfaceSubclass != usbInterface.getInterfaceSubclass()) {
-                        continue;
-                    }
+                ExecutorService worker = mWorkers.get(endpointAddress);
+                if (worker == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                            new PriorityBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                    return new Thread(r, TAG + "-ep-" + endpointAddress);
+                                }
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    worker = executor;
+                    mWorkers.put(endpointAddress, worker);
                 }
-                if (interfaceProtocol != -1) {
-                    if (interfaceProtocol != usbInterface.getInterfaceProtocol()) {
-                        continue;
-                    }
+                return worker;
+            }
+        }
+
+        // Control, bulk and interrupt transfers not yet answered, by id.
+        private final HashMap<Integer, PendingTransfer> mTransfers =
+                new HashMap<Integer, PendingTransfer>();
+        // Ids for transfers that usb.js did not number, clear of the ones it uses.
+        private int mNextInternalTransferId = -1;
+        // The most transfers that may be pending on one endpoint (or for control transfers).
+        volatile int mTransferQueueLimit = DEFAULT_TRANSFER_QUEUE_LIMIT;
+
+        // Wraps |callbackContext| in a PendingTransfer registered under |id| (zero for none), to
+        // run on the worker |workerKey|. Throws if that many transfers are already pending for
+        // the worker, which bounds the memory and delay a burst of transfers can cause.
+        PendingTransfer trackTransfer(int id, int workerKey, CallbackContext callbackContext,
+                CordovaWebView webView) throws UsbError {
+            TransferStats.EndpointStats stats = mStats.forEndpoint(workerKey);
+            if (!stats.addPending(mTransferQueueLimit)) {
+                throw new UsbError("Transfer queue full: " + mTransferQueueLimit
+                        + " transfers pending on " + (workerKey == CONTROL_WORKER ?
+                        "the control endpoint" : workerKey == BATCH_WORKER ?
+                        "the batch queue" : "endpoint " + workerKey));
+            }
+            synchronized (mTransfers) {
+                if (id == 0) {
+                    id = mNextInternalTransferId--;
                 }
-                return true;
+                PendingTransfer transfer = new PendingTransfer(id, this, stats,
+                        callbackContext, webView);
+                mTransfers.put(id, transfer);
+                return transfer;
             }
         }
-        return false;
-    }
-    private void getDevices(CordovaArgs args, JSONObject params,
-            final CallbackContext callbackContext) throws JSONException, UsbError {
-        HashMap<String, UsbDevice> devices = mUsbManager.getDeviceList();
-        JSONArray filters = params.optJSONArray("filters");
-        JSONArray result = new JSONArray();
-        Log.d(TAG, "we got devices, filter it");
-        for (UsbDevice device: devices.values()) {
-            Log.d(TAG, "deviceID: " + device.getDeviceId());
-            Log.d(TAG, "vendorID: " + device.getVendorId());
-            Log.d(TAG, "ProductID: " + device.getProductId());
-            if (filterDevice(device, filters)) {
-                addDeviceToArray(result, device.getDeviceId(), device.getVendorId(),
-                        device.getProductId());
+
+        void untrackTransfer(PendingTransfer transfer) {
+            synchronized (mTransfers) {
+                if (mTransfers.get(transfer.mId) == transfer) {
+                    mTransfers.remove(transfer.mId);
+                }
             }
+            transfer.mStats.removePending();
         }
-        if (params.optBoolean("appendFakeDevice", false)) {
-            addDeviceToArray(result, FakeDevice.ID, FakeDevice.VID, FakeDevice.PID);
+
+        boolean cancelTransfer(int id) {
+            PendingTransfer transfer;
+            synchronized (mTransfers) {
+                transfer = mTransfers.get(id);
+            }
+            if (transfer == null) {
+                return false;
+            }
+            transfer.cancel();
+            return true;
         }
-        callbackContext.success(result);
-    }
-    private static void addDeviceToArray(JSONArray result, int deviceId, int vendorId,
-            int productId) throws JSONException {
-        JSONObject jsonDev = new JSONObject();
-        jsonDev.put("device", deviceId);
-        jsonDev.put("vendorId", vendorId);
-        jsonDev.put("productId", productId);
-        result.put(jsonDev);
-    }
-    private void openDevice(CordovaArgs args, JSONObject params,
-            final CallbackContext callbackContext) throws JSONException, UsbError {
-        // First recover the device object from Id.
-        int devId = params.getInt("device");
-        ConnectedDevice dev = null;
-        int vid = -1, pid = -1;
-        {
-            HashMap<String, UsbDevice> devices = mUsbManager.getDeviceList();
-            UsbDevice usbDev = null;
-            for (UsbDevice d : devices.values()) {
-                if (d.getDeviceId() == devId) {
-                    usbDev = d;
-                    break;
-                }
-            }
-            if (usbDev != null) {
-                if(mUsbReceiver == null) {
-                    mUsbReceiver = new BroadcastReceiver() {
-                        public void onReceive(Context context, Intent intent) {
-                            String action = intent.getAction();
-                            if (ACTION_USB_PERMISSION.equals(action)) {
-                                synchronized (this) {
-                                    UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-                                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                                        if (device != null) {
-                                            UsbDeviceConnection usbConn = mUsbManager.openDevice(device);
-                                            if (usbConn == null) {
-                                                throw new UsbError("UsbManager.openDevice returned null opening " + device);
-                                            }
-                                            ConnectedDevice dev = new RealDevice(device, usbConn);
-                                            int vid = device.getVendorId();
-                                            int pid = device.getProductId();
-
-                                            if (dev == null || vid < 0 || pid < 0) {
-                                                throw new UsbError("Unknown device ID: " + device);
-                                            }
-                                            int handle = mNextConnectionId++;
-                                            mConnections.put(handle, dev);
-                                            JSONObject jsonHandle = new JSONObject();
-                                            try {
-                                                jsonHandle.put("handle", handle);
-                                                jsonHandle.put("vendorId", vid);
-                                                jsonHandle.put("productId", pid);
-                                            } catch (JSONException e) {
-                                                e.printStackTrace();
-                                            }
-                                            if (null != ChromeUsb.this.openCallbackContext) {
-                                                ChromeUsb.this.openCallbackContext.success(jsonHandle);
-                                                ChromeUsb.this.openCallbackContext = null;
-                                            } else {
-                                                // at least fire to someone...
-                                                callbackContext.success(jsonHandle);
-                                            }
-                                        }
-                                    } else {
-                                        Log.d(TAG, "permission denied for device " + device);
-                                    }
-                                }
-                            }
-                        }
-                    };
 
-                    IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                        webView.getContext().registerReceiver(mUsbReceiver, filter, Context.RECEIVER_EXPORTED);
-                    } else {
-                        webView.getContext().registerReceiver(mUsbReceiver, filter);
-                    }
+        void cancelAllTransfers() {
+            ArrayList<PendingTransfer> transfers;
+            synchronized (mTransfers) {
+                transfers = new ArrayList<PendingTransfer>(mTransfers.values());
+            }
+            for (PendingTransfer transfer : transfers) {
+                transfer.cancel();
+            }
+        }
+
+        // Stops all queued work and closes the connection.
+        void shutdown() {
+            cancelAllTransfers();
+            stopQueuedTransfers();
+            synchronized (mWorkers) {
+                mWorkersShutDown = true;
+                for (ExecutorService worker : mWorkers.values()) {
+                    worker.shutdown();
                 }
+                mWorkers.clear();
+            }
+            // Closing the connection ends the reactor's requestWait(), so let the cancelled
+            // requests complete first.
+            mReactor.drain(REACTOR_DRAIN_TIMEOUT_MS);
+            closeIdleTransfers();
+            close();
+        }
 
-                mUsbManager.requestPermission(usbDev, mPermissionIntent);
-            } else if (devId == FakeDevice.ID) {
-                dev = new FakeDevice();
-                vid = FakeDevice.VID;
-                pid = FakeDevice.PID;
+        // Idle QueuedTransfers, each keeping its initialized request, so that a transfer does
+        // not create and close a request. Keyed by endpoint address and direction.
+        private final SparseArray<ArrayDeque<QueuedTransfer>> mIdleTransfers =
+                new SparseArray<ArrayDeque<QueuedTransfer>>();
+        private boolean mIdleTransfersClosed;
 
-                if (dev == null || vid < 0 || pid < 0) {
-                    throw new UsbError("Unknown device ID: " + devId);
+        QueuedTransfer obtainQueuedTransfer(int endpointAddress, int direction) throws UsbError {
+            synchronized (mIdleTransfers) {
+                ArrayDeque<QueuedTransfer> idle =
+                        mIdleTransfers.get(idleTransferKey(endpointAddress, direction));
+                if (idle != null && !idle.isEmpty()) {
+                    return idle.poll();
                 }
-                int handle = mNextConnectionId++;
-                mConnections.put(handle, dev);
-                JSONObject jsonHandle = new JSONObject();
-                jsonHandle.put("handle", handle);
-                jsonHandle.put("vendorId", vid);
-                jsonHandle.put("productId", pid);
-                callbackContext.success(jsonHandle);
             }
+            return new QueuedTransfer(this, endpointAddress, direction);
         }
-    }
-    private void closeDevice(CordovaArgs args, JSONObject params,
-            final CallbackContext callbackContext) throws JSONException, UsbError {
-        int handle = params.getInt("handle");
-        ConnectedDevice d = mConnections.remove(handle);
-        if (d != null) {
-            d.close();
+
+        // Keeps |transfer| for reuse, or closes its request if enough are kept already or the
+        // connection is closing.
+        void recycleQueuedTransfer(QueuedTransfer transfer) {
+            synchronized (mIdleTransfers) {
+                if (!mIdleTransfersClosed) {
+                    int key = idleTransferKey(transfer.mEndpointAddress, transfer.mDirection);
+                    ArrayDeque<QueuedTransfer> idle = mIdleTransfers.get(key);
+                    if (idle == null) {
+                        idle = new ArrayDeque<QueuedTransfer>();
+                        mIdleTransfers.put(key, idle);
+                    }
+                    if (idle.size() < IDLE_QUEUED_TRANSFERS) {
+                        idle.add(transfer);
+                        return;
+                    }
+                }
+            }
+            transfer.close();
         }
-        callbackContext.success();
-    }
-    private void listInterfaces(CordovaArgs args, JSONObject params,
-            final CallbackContext callbackContext) throws JSONException, UsbError {
-        ConnectedDevice dev = getDevice(params);
-        JSONArray jsonInterfaces = new JSONArray();
-        int interfaceCount = dev.getInterfaceCount();
-        for (int i = 0; i < interfaceCount; i++) {
-            JSONArray jsonEndpoints = new JSONArray();
-            int endpointCount = dev.getEndpointCount(i);
-            for (int j = 0; j < endpointCount; j++) {
-                JSONObject jsonEp = new JSONObject();
-                dev.describeEndpoint(i, j, jsonEp);
-                jsonEp.put("address", i << ENDPOINT_IF_SHIFT | j);
-                if (!jsonEp.getString("type").startsWith("i")) {
-                    // Only interrupt and isochronous endpoints have pollingInterval.
-                    jsonEp.remove("pollingInterval");
+
+        private void closeIdleTransfers() {
+            ArrayList<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+            synchronized (mIdleTransfers) {
+                mIdleTransfersClosed = true;
+                for (int i = 0; i < mIdleTransfers.size(); i++) {
+                    transfers.addAll(mIdleTransfers.valueAt(i));
                 }
-                jsonEp.put("extra_data", new JSONObject());
-                jsonEndpoints.put(jsonEp);
+                mIdleTransfers.clear();
+            }
+            for (QueuedTransfer transfer : transfers) {
+                transfer.close();
             }
-            JSONObject jsonIf = new JSONObject();
-            dev.describeInterface(i, jsonIf);
-            jsonIf.put("interfaceNumber", i);
-            jsonIf.put("endpoints", jsonEndpoints);
-            jsonInterfaces.put(jsonIf);
         }
-        callbackContext.success(jsonInterfaces);
-    }
-    private void claimInterface(CordovaArgs args, JSONObject params,
+
+        private static int idleTransferKey(int endpointAddress, int direction) {
+            return endpointAddress << 1 | (direction == UsbConstants.USB_DIR_IN ? 1 : 0);
+        }
+
+        // Stops streams and fails outstanding pipelined writes, before the connection closes.
+        void stopQueuedTransfers() {
+            ArrayList<InStream> streams;
+            ArrayList<ReadAhead> readAheads;
+            synchronized (mStreams) {
+                streams = new ArrayList<InStream>(mStreams.values());
+                mStreams.clear();
+                readAheads = new ArrayList<ReadAhead>(mReadAheads.values());
+                mReadAheads.clear();
+            }
+            for (InStream stream : streams) {
+                stream.stop();
+            }
+            for (ReadAhead readAhead : readAheads) {
+                readAhead.stop();
+            }
+            ArrayList<BulkOutPipeline> pipelines;
+            synchronized (mPipelines) {
+                pipelines = new ArrayList<BulkOutPipeline>(mPipelines.values());
+                mPipelines.clear();
+            }
+            for (BulkOutPipeline pipeline : pipelines) {
+                pipeline.close();
+            }
+        }
+    };
+
+    // Notified on the reactor thread when a queued request completes.
+    private interface RequestListener {
+        void onRequestComplete(QueuedRequest request);
+    }
+
+    // Owns requestWait() for one connection. requestWait() returns whichever queued request
+    // completes next, so it may only be called from one place: the reactor's thread loops on
+    // it and hands each completion to the request's listener (a stream, a pipeline or a control
+    // response), which UsbRequest.setClientData lets RealDevice identify. The thread starts with
+    // the first queued request and runs until the connection closes, waiting in requestWait()
+    // while the connection is idle. Outstanding requests are kept on an intrusive list, so
+    // queueing allocates nothing and drain() can cancel whatever is left.
+    private static class CompletionReactor implements Runnable {
+        private final ConnectedDevice mDevice;
+        private QueuedRequest mOutstanding;
+        private Thread mThread;
+        // Set once no more requests may be queued: the connection is closing, or requestWait()
+        // failed.
+        private boolean mClosing;
+
+        CompletionReactor(ConnectedDevice device) {
+            mDevice = device;
+        }
+
+        synchronized boolean submit(QueuedRequest request, ByteBuffer buffer, int length) {
+            if (mClosing) {
+                return false;
+            }
+            request.mBuffer = buffer;
+            request.mSubmittedAt = System.nanoTime();
+            request.mFailed = false;
+            UsbCapture capture = sCapture;
+            if (capture != null) {
+                request.mCaptureId = capture.nextId();
+                capture.record(request.mCaptureId, UsbCapture.EVENT_SUBMIT,
+                        request.mEndpoint.attributes & UsbConstants.USB_ENDPOINT_XFERTYPE_MASK,
+                        request.mEndpoint.address, mDevice.mBusNumber, mDevice.mDeviceAddress,
+                        UsbCapture.STATUS_IN_PROGRESS, length, 0,
+                        isIn(request) ? null : buffer, length);
+            } else {
+                request.mCaptureId = 0;
+            }
+            // The lock is held until the request is linked, so that a completion arriving
+            // straight away waits for it.
+            if (!request.queue(buffer, length)) {
+                return false;
+            }
+            request.mPrevOutstanding = null;
+            request.mNextOutstanding = mOutstanding;
+            if (mOutstanding != null) {
+                mOutstanding.mPrevOutstanding = request;
+            }
+            mOutstanding = request;
+            if (mThread == null) {
+                mThread = new Thread(this, TAG + "-reactor");
+                mThread.start();
+            }
+            return true;
+        }
+
+        public void run() {
+            while (true) {
+                QueuedRequest request = mDevice.requestWait();
+                synchronized (this) {
+                    if (request == null) {
+                        if (!mClosing) {
+                            Log.e(TAG, "requestWait failed, abandoning queued requests");
+                            mClosing = true;
+                        }
+                        break;
+                    }
+                    unlink(request);
+                }
+                UsbCapture capture = sCapture;
+                if (capture != null && request.mCaptureId != 0) {
+                    int length = request.mBuffer.position();
+                    capture.record(request.mCaptureId, UsbCapture.EVENT_COMPLETE,
+                            request.mEndpoint.attributes & UsbConstants.USB_ENDPOINT_XFERTYPE_MASK,
+                            request.mEndpoint.address, mDevice.mBusNumber,
+                            mDevice.mDeviceAddress, 0, length, 0,
+                            isIn(request) ? request.mBuffer : null, length);
+                }
+                request.mListener.onRequestComplete(request);
+            }
+            // Nothing more will complete, so whatever is still outstanding is failed.
+            while (true) {
+                QueuedRequest request;
+                synchronized (this) {
+                    request = mOutstanding;
+                    if (request == null) {
+                        return;
+                    }
+                    unlink(request);
+                }
+                request.mBuffer.clear();
+                request.mFailed = true;
+                request.mListener.onRequestComplete(request);
+            }
+        }
+
+        // Refuses further requests, cancels those outstanding, and waits up to |timeoutMs| for
+        // their completions to be dispatched.
+        void drain(int timeoutMs) {
+            ArrayList<QueuedRequest> outstanding = new ArrayList<QueuedRequest>();
+            synchronized (this) {
+                mClosing = true;
+                for (QueuedRequest r = mOutstanding; r != null; r = r.mNextOutstanding) {
+                    outstanding.add(r);
+                }
+            }
+            for (QueuedRequest request : outstanding) {
+                request.cancel();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            synchronized (this) {
+                try {
+                    while (mOutstanding != null) {
+                        long remaining =
+                                TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            Log.w(TAG, "Closing with requests still queued");
+                            return;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Gives up on a request that did not complete after being cancelled: it is no longer
+        // outstanding, so drain() does not wait for it, and is closed.
+        void abandon(QueuedRequest request) {
+            synchronized (this) {
+                unlink(request);
+            }
+            request.close();
+        }
+
+        // Must be called with the lock held.
+        private void unlink(QueuedRequest request) {
+            if (request.mPrevOutstanding != null) {
+                request.mPrevOutstanding.mNextOutstanding = request.mNextOutstanding;
+            } else if (mOutstanding == request) {
+                mOutstanding = request.mNextOutstanding;
+            }
+            if (request.mNextOutstanding != null) {
+                request.mNextOutstanding.mPrevOutstanding = request.mPrevOutstanding;
+            }
+            request.mPrevOutstanding = null;
+            request.mNextOutstanding = null;
+            if (mOutstanding == null) {
+                notifyAll();
+            }
+        }
+
+        private static boolean isIn(QueuedRequest request) {
+            return (request.mEndpoint.address & UsbConstants.USB_ENDPOINT_DIR_MASK)
+                    == UsbConstants.USB_DIR_IN;
+        }
+    }
+
+    // Hands the completion of a control response read (see runControlTransfer) from the
+    // reactor to the control worker waiting for it.
+    private static class ControlResponse implements RequestListener {
+        private boolean mComplete;
+        private boolean mFailed;
+
+        synchronized void reset() {
+            mComplete = false;
+            mFailed = false;
+        }
+
+        public synchronized void onRequestComplete(QueuedRequest request) {
+            mComplete = true;
+            mFailed = request.mFailed;
+            notifyAll();
+        }
+
+        synchronized boolean failed() {
+            return mFailed;
+        }
+
+        // Waits up to |timeoutMs|, or indefinitely if it is zero, and returns whether the read
+        // completed.
+        synchronized boolean await(int timeoutMs) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            try {
+                while (!mComplete) {
+                    if (timeoutMs <= 0) {
+                        wait();
+                        continue;
+                    }
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // Keeps reads queued on a bulk IN endpoint and gathers what they receive in a ring buffer,
+    // from which bulk IN transfers on the endpoint are then served (see runTransfer). A read is
+    // only queued while the ring has room for everything it may receive, so nothing is dropped
+    // on the host side; when the ring fills up the endpoint is left without a read until JS
+    // catches up, which is counted as an overrun as the device may then lose data.
+    private static class ReadAhead implements RequestListener {
+        private final ConnectedDevice mDevice;
+        private final int mChunkSize;
+        private final QueuedRequest[] mRequests;
+        private final byte[] mRing;
+        private int mHead;
+        private int mCount;
+        private int mQueuedCount;
+        // Requests waiting for room in the ring.
+        private final ArrayDeque<QueuedRequest> mParked = new ArrayDeque<QueuedRequest>();
+        private long mOverruns;
+        private boolean mStopped;
+        // Why reading stopped, if it was not stopped by stopReadAhead.
+        private String mError;
+
+        ReadAhead(ConnectedDevice device, int interfaceNumber, int endpointNumber, int size,
+                int chunkSize, int depth) throws UsbError {
+            if (chunkSize <= 0 || depth <= 0 || size < chunkSize) {
+                throw new UsbError("Invalid read-ahead size/chunkSize/depth: " + size + "/"
+                        + chunkSize + "/" + depth);
+            }
+            mDevice = device;
+            mChunkSize = chunkSize;
+            mRing = new byte[size];
+            mRequests = new QueuedRequest[depth];
+            for (int i = 0; i < depth; i++) {
+                mRequests[i] = device.createRequest(interfaceNumber, endpointNumber,
+                        UsbConstants.USB_DIR_IN, this);
+            }
+        }
+
+        synchronized void start() throws UsbError {
+            for (QueuedRequest request : mRequests) {
+                request.mBuffer = sBufferPool.acquireDirect(mChunkSize);
+                mParked.add(request);
+            }
+            queueParked();
+            if (mError != null) {
+                throw new UsbError(mError);
+            }
+        }
+
+        synchronized void stop() {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            while (!mParked.isEmpty()) {
+                retire(mParked.poll());
+            }
+            for (QueuedRequest request : mRequests) {
+                request.cancel();
+            }
+            notifyAll();
+        }
+
+        public synchronized void onRequestComplete(QueuedRequest request) {
+            mQueuedCount--;
+            if (request.mFailed && !mStopped) {
+                fail("Connection failed");
+            }
+            if (mStopped) {
+                retire(request);
+                notifyAll();
+                return;
+            }
+            ByteBuffer buffer = request.mBuffer;
+            int length = buffer.position();
+            buffer.flip();
+            int tail = (mHead + mCount) % mRing.length;
+            int first = Math.min(length, mRing.length - tail);
+            buffer.get(mRing, tail, first);
+            buffer.get(mRing, 0, length - first);
+            mCount += length;
+            buffer.clear();
+            mParked.add(request);
+            queueParked();
+            if (mQueuedCount == 0 && !mStopped) {
+                mOverruns++;
+            }
+            notifyAll();
+        }
+
+        // Copies up to |length| buffered bytes into |data|, waiting up to |timeoutMs| (or
+        // indefinitely if it is zero) for some to arrive. Returns the number of bytes copied, or
+        // -1 if none arrived in time or reading has stopped.
+        synchronized int read(byte[] data, int length, int timeoutMs) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            try {
+                while (mCount == 0 && !mStopped) {
+                    if (timeoutMs <= 0) {
+                        wait();
+                        continue;
+                    }
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            if (mCount == 0) {
+                if (mError != null) {
+                    Log.e(TAG, "Read-ahead stopped: " + mError);
+                }
+                return -1;
+            }
+            int n = Math.min(length, mCount);
+            int first = Math.min(n, mRing.length - mHead);
+            System.arraycopy(mRing, mHead, data, 0, first);
+            System.arraycopy(mRing, 0, data, first, n - first);
+            mHead = (mHead + n) % mRing.length;
+            mCount -= n;
+            queueParked();
+            return n;
+        }
+
+        synchronized JSONObject getStatus() throws JSONException {
+            JSONObject status = new JSONObject();
+            status.put("buffered", mCount);
+            status.put("capacity", mRing.length);
+            status.put("overruns", mOverruns);
+            status.put("active", !mStopped);
+            if (mError != null) {
+                status.put("error", mError);
+            }
+            return status;
+        }
+
+        // Queues parked requests while the ring has room for all they may receive. Must be
+        // called with the lock held.
+        private void queueParked() {
+            while (!mStopped && !mParked.isEmpty()
+                    && mCount + (mQueuedCount + 1) * mChunkSize <= mRing.length) {
+                QueuedRequest request = mParked.poll();
+                if (!mDevice.submitRequest(request, request.mBuffer, mChunkSize)) {
+                    retire(request);
+                    fail("Failed to queue read-ahead request");
+                    return;
+                }
+                mQueuedCount++;
+            }
+        }
+
+        // Stops reading after an error; what is already buffered can still be read. Must be
+        // called with the lock held.
+        private void fail(String error) {
+            mError = error;
+            stop();
+        }
+
+        private void retire(QueuedRequest request) {
+            request.close();
+            sBufferPool.releaseDirect(request.mBuffer);
+        }
+    }
+
+    // One bulk transfer run as a series of chunks, see runSplitBulkTransfer(). Chunks on an
+    // endpoint complete in the order they were queued, so the bytes transferred so far are
+    // always a prefix of |buffer|.
+    private static class SplitTransfer implements RequestListener {
+        private final ConnectedDevice mDevice;
+        private final boolean mIn;
+        private final byte[] mBuffer;
+        private final int mLength;
+        private final int mChunkSize;
+        private QueuedRequest[] mRequests;
+        // Offset and length of the chunk each request holds, by index into mRequests.
+        private int[] mOffsets;
+        private int[] mChunkLengths;
+        private boolean[] mQueued;
+        private int mQueuedCount;
+        private int mNextOffset;
+        private int mTransferred;
+        // Set once no more chunks are to be queued: at a short IN chunk, or on failure.
+        private boolean mEnded;
+        private boolean mFailed;
+        // Set once run() has returned with chunks still queued, which are then closed as they
+        // come back.
+        private boolean mAbandoned;
+
+        SplitTransfer(ConnectedDevice device, int direction, byte[] buffer, int length,
+                int chunkSize) {
+            mDevice = device;
+            mIn = direction == UsbConstants.USB_DIR_IN;
+            mBuffer = buffer;
+            mLength = length;
+            mChunkSize = chunkSize;
+        }
+
+        // Queues chunks on |requests| until the transfer ends, and closes them once they are
+        // idle. Requests still queued after a timeout are closed, and their buffers released,
+        // whenever they complete; at the latest when the connection closes.
+        int run(QueuedRequest[] requests, int timeoutMs) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            boolean timedOut = false;
+            synchronized (this) {
+                mRequests = requests;
+                mOffsets = new int[requests.length];
+                mChunkLengths = new int[requests.length];
+                mQueued = new boolean[requests.length];
+                for (int i = 0; i < requests.length; i++) {
+                    queueNext(i);
+                }
+                try {
+                    while (mQueuedCount > 0) {
+                        if (timeoutMs <= 0) {
+                            wait();
+                            continue;
+                        }
+                        long remaining =
+                                TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            if (timedOut) {
+                                Log.w(TAG, "Split bulk transfer requests still queued");
+                                break;
+                            }
+                            // Give the cancelled chunks a moment to come back.
+                            timedOut = true;
+                            end(true);
+                            deadline = System.nanoTime()
+                                    + TimeUnit.MILLISECONDS.toNanos(CONTROL_CANCEL_TIMEOUT_MS);
+                            continue;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    end(true);
+                }
+                for (int i = 0; i < requests.length; i++) {
+                    if (!mQueued[i]) {
+                        requests[i].close();
+                    }
+                }
+                mAbandoned = mQueuedCount > 0;
+                return mFailed ? -1 : mTransferred;
+            }
+        }
+
+        public synchronized void onRequestComplete(QueuedRequest request) {
+            int i = 0;
+            while (mRequests[i] != request) {
+                i++;
+            }
+            mQueued[i] = false;
+            mQueuedCount--;
+            ByteBuffer buffer = request.mBuffer;
+            int transferred = buffer.position();
+            if (request.mFailed) {
+                end(true);
+            } else if (!mEnded) {
+                if (mIn) {
+                    buffer.flip();
+                    buffer.get(mBuffer, mOffsets[i], transferred);
+                }
+                mTransferred += transferred;
+                if (transferred < mChunkLengths[i]) {
+                    // A short IN chunk ends the transfer; a short OUT chunk means it failed.
+                    end(!mIn);
+                } else {
+                    queueNext(i);
+                }
+            }
+            sBufferPool.releaseDirect(buffer);
+            if (mAbandoned) {
+                request.close();
+            } else if (mQueuedCount == 0) {
+                notifyAll();
+            }
+        }
+
+        // Must be called with the lock held.
+        private void queueNext(int i) {
+            if (mEnded || mNextOffset >= mLength) {
+                return;
+            }
+            int length = Math.min(mChunkSize, mLength - mNextOffset);
+            ByteBuffer buffer = sBufferPool.acquireDirect(length);
+            if (!mIn) {
+                buffer.put(mBuffer, mNextOffset, length);
+                buffer.flip();
+            }
+            if (!mDevice.submitRequest(mRequests[i], buffer, length)) {
+                sBufferPool.releaseDirect(buffer);
+                end(true);
+                return;
+            }
+            mOffsets[i] = mNextOffset;
+            mChunkLengths[i] = length;
+            mQueued[i] = true;
+            mQueuedCount++;
+            mNextOffset += length;
+        }
+
+        // Stops queueing chunks and cancels those still queued. Must be called with the lock
+        // held.
+        private void end(boolean failed) {
+            mFailed |= failed;
+            if (mEnded) {
+                return;
+            }
+            mEnded = true;
+            for (int i = 0; i < mRequests.length; i++) {
+                if (mQueued[i]) {
+                    mRequests[i].cancel();
+                }
+            }
+        }
+    }
+
+    // A request bound to one endpoint, which may be queued repeatedly. Wraps UsbRequest to allow
+    // for mocking. On completion the position of mBuffer is the number of bytes transferred.
+    private static abstract class QueuedRequest {
+        final RequestListener mListener;
+        ByteBuffer mBuffer;
+        // System.nanoTime() of when the transfer now queued was asked for, and of its
+        // submitRequest(), for TransferStats.
+        long mRequestedAt;
+        long mSubmittedAt;
+        // The endpoint's descriptor, and the URB id of the queued transfer (zero if it was
+        // submitted while capture was off), for UsbCapture.
+        UsbDescriptors.Endpoint mEndpoint;
+        long mCaptureId;
+        // Set on completion if the request was abandoned because the connection closed or
+        // failed; mBuffer then holds nothing.
+        boolean mFailed;
+        // Links in the CompletionReactor's list of outstanding requests.
+        QueuedRequest mPrevOutstanding;
+        QueuedRequest mNextOutstanding;
+
+        QueuedRequest(RequestListener listener) {
+            mListener = listener;
+        }
+
+        abstract boolean queue(ByteBuffer buffer, int length);
+        abstract boolean cancel();
+        abstract void close();
+    }
+
+    // A task for an endpoint worker, ordered by priority and then by arrival.
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final int mPriority;
+        private final long mSequence;
+        private final Runnable mTask;
+
+        PrioritizedTask(int priority, long sequence, Runnable task) {
+            mPriority = priority;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        public void run() {
+            mTask.run();
+        }
+
+        public int compareTo(PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : mSequence > other.mSequence ? 1 : 0;
+        }
+    }
+
+    // The callback of a control, bulk or interrupt transfer, registered with its connection under
+    // the id usb.js gave it, so cancelTransfer and cancelAll can find it. Cancelling answers JS
+    // straight away and drops whatever result comes later. A transfer still waiting for its
+    // worker is then skipped, and a queued one has its request cancelled, which frees its
+    // buffer as soon as the request comes back. A synchronous transfer already running keeps its
+    // worker until the platform returns.
+    private static class PendingTransfer extends CallbackContext {
+        final int mId;
+        private final ConnectedDevice mDevice;
+        // Where the transfer is counted as pending.
+        final TransferStats.EndpointStats mStats;
+        // The QueuedTransfer answering this transfer, if any.
+        private QueuedTransfer mQueuedTransfer;
+
+        PendingTransfer(int id, ConnectedDevice device, TransferStats.EndpointStats stats,
+                CallbackContext callbackContext, CordovaWebView webView) {
+            super(callbackContext.getCallbackId(), webView);
+            mId = id;
+            mDevice = device;
+            mStats = stats;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            synchronized (this) {
+                if (isFinished()) {
+                    return;
+                }
+                super.sendPluginResult(result);
+            }
+            mDevice.untrackTransfer(this);
+        }
+
+        // Returns false if the transfer has already been cancelled.
+        synchronized boolean setQueuedTransfer(QueuedTransfer queuedTransfer) {
+            mQueuedTransfer = queuedTransfer;
+            return !isFinished();
+        }
+
+        void cancel() {
+            QueuedTransfer queuedTransfer;
+            synchronized (this) {
+                queuedTransfer = mQueuedTransfer;
+            }
+            error("Transfer cancelled");
+            if (queuedTransfer != null) {
+                queuedTransfer.cancel(this);
+            }
+        }
+    }
+
+    // A bulk or interrupt transfer run as a queued request, so that no thread waits on it: the
+    // reactor completes it, and its timeout is a deadline on sTimer that cancels the request.
+    // Once complete it goes back to its connection for reuse, keeping its request; the fields
+    // below describing the current transfer are guarded by this.
+    private static class QueuedTransfer implements RequestListener {
+        private final ConnectedDevice mDevice;
+        final int mEndpointAddress;
+        final int mDirection;
+        private final QueuedRequest mRequest;
+        private final TransferStats.DirectionStats mStats;
+        private CallbackContext mCallbackContext;
+        private int mTimeout;
+        private ScheduledFuture<?> mDeadline;
+        private boolean mCompleted;
+        private boolean mTimedOut;
+
+        QueuedTransfer(ConnectedDevice device, int endpointAddress, int direction)
+                throws UsbError {
+            mDevice = device;
+            mEndpointAddress = endpointAddress;
+            mDirection = direction;
+            mStats = device.mStats.forEndpoint(endpointAddress).forDirection(direction);
+            mRequest = device.createRequest(endpointAddress >> ENDPOINT_IF_SHIFT,
+                    endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1), direction, this);
+        }
+
+        // Queues the first |length| bytes of |data| (OUT), or a read of |length| bytes (IN),
+        // answering |callbackContext| once it completes.
+        void start(final CallbackContext callbackContext, byte[] data, int length, int timeout,
+                long requestedAt) throws UsbError {
+            synchronized (this) {
+                mCallbackContext = callbackContext;
+                mTimeout = timeout;
+                mDeadline = null;
+                mCompleted = false;
+                mTimedOut = false;
+            }
+            ByteBuffer buffer = sBufferPool.acquireDirect(length);
+            if (mDirection == UsbConstants.USB_DIR_OUT) {
+                buffer.put(data, 0, length);
+                buffer.flip();
+            }
+            mRequest.mRequestedAt = requestedAt;
+            if (!mDevice.submitRequest(mRequest, buffer, length)) {
+                close();
+                sBufferPool.releaseDirect(buffer);
+                throw new UsbError("Failed to queue transfer");
+            }
+            if (timeout > 0) {
+                synchronized (this) {
+                    // Unless it has completed, and perhaps already been reused.
+                    if (!mCompleted && mCallbackContext == callbackContext) {
+                        mDeadline = sTimer.schedule(new Runnable() {
+                            public void run() {
+                                synchronized (QueuedTransfer.this) {
+                                    if (mCompleted || mCallbackContext != callbackContext) {
+                                        return;
+                                    }
+                                    mTimedOut = true;
+                                    mRequest.cancel();
+                                }
+                            }
+                        }, timeout, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+            if (callbackContext instanceof PendingTransfer
+                    && !((PendingTransfer) callbackContext).setQueuedTransfer(this)) {
+                cancel(callbackContext);
+            }
+        }
+
+        // Cancels the request if it is still queued for |callbackContext|; by the time a
+        // cancellation arrives this may be serving another transfer.
+        synchronized void cancel(CallbackContext callbackContext) {
+            if (!mCompleted && mCallbackContext == callbackContext) {
+                mRequest.cancel();
+            }
+        }
+
+        void close() {
+            mRequest.close();
+        }
+
+        public void onRequestComplete(QueuedRequest request) {
+            CallbackContext callbackContext;
+            int timeout;
+            boolean timedOut;
+            synchronized (this) {
+                mCompleted = true;
+                callbackContext = mCallbackContext;
+                mCallbackContext = null;
+                timeout = mTimeout;
+                timedOut = mTimedOut;
+                if (mDeadline != null) {
+                    mDeadline.cancel(false);
+                }
+            }
+            ByteBuffer buffer = request.mBuffer;
+            // A cancelled transfer has already been answered with an error, so it is counted
+            // as one rather than as whatever the request held when it was cancelled.
+            boolean cancelled = callbackContext.isFinished();
+            boolean failed = request.mFailed;
+            int length = failed || timedOut || cancelled ? -1 : buffer.position();
+            mStats.record(request.mRequestedAt, request.mSubmittedAt, System.nanoTime(), length,
+                    timeout);
+            if (cancelled) {
+                // Nothing more to send.
+            } else if (failed) {
+                callbackContext.error("Connection failed");
+            } else if (timedOut) {
+                callbackContext.error("Transfer timed out");
+            } else if (mDirection == UsbConstants.USB_DIR_IN) {
+                byte[] data = sBufferPool.acquire(length);
+                buffer.flip();
+                buffer.get(data, 0, length);
+                callbackContext.sendPluginResult(new ArrayBufferResult(data, length));
+                sBufferPool.release(data);
+            } else {
+                callbackContext.success();
+            }
+            sBufferPool.releaseDirect(buffer);
+            if (failed) {
+                close();
+            } else {
+                mDevice.recycleQueuedTransfer(this);
+            }
+        }
+    }
+
+    // Keeps a ring of requests queued on an IN endpoint, so the host controller always has a
+    // buffer to fill, and forwards each completed chunk to JS through a kept-alive callback.
+    // On a bulk endpoint this streams data as fast as the device sends it; on an interrupt
+    // endpoint the host controller polls at the endpoint's bInterval and each chunk is a report.
+    //
+    // Cordova queues results without limit, so a stream may instead be flow controlled: chunks
+    // are only sent while JS has granted credits (bytes or messages), and are otherwise held in
+    // a bounded queue. In block mode a request that completes without credits is not queued
+    // again until more are granted, so the device is NAKed rather than data dropped; in the
+    // drop modes reading goes on and a full queue loses its oldest or newest chunk. Credits may
+    // run negative by the last chunk sent, so a grant smaller than a chunk cannot stall.
+    private static class InStream implements RequestListener {
+        static final int OVERFLOW_BLOCK = 0;
+        static final int OVERFLOW_DROP_OLDEST = 1;
+        static final int OVERFLOW_DROP_NEWEST = 2;
+
+        private final ConnectedDevice mDevice;
+        private final CallbackContext mCallbackContext;
+        private final int mChunkSize;
+        private final QueuedRequest[] mRequests;
+        private final TransferStats.DirectionStats mStats;
+        private volatile boolean mStopped;
+        private int mLiveRequests;
+        // When set, a chunk identical to the previous one is not sent to JS. Only touched on
+        // the reactor thread.
+        private final boolean mDropUnchanged;
+        private final byte[] mLastChunk;
+        private int mLastLength = -1;
+        // Flow control, set up before start(); the fields below are guarded by this.
+        private boolean mFlowControlled;
+        private boolean mCreditBytes;
+        private int mOverflow;
+        private int mQueueLimit;
+        private long mCredits;
+        private long mDropped;
+        private final ArrayDeque<byte[]> mHeldChunks = new ArrayDeque<byte[]>();
+        private final ArrayDeque<Integer> mHeldLengths = new ArrayDeque<Integer>();
+        // Completed requests waiting for credits before they are queued again (block mode).
+        private final ArrayList<QueuedRequest> mParked = new ArrayList<QueuedRequest>();
+
+        InStream(ConnectedDevice device, int interfaceNumber, int endpointNumber,
+                int chunkSize, int depth, boolean dropUnchanged, CallbackContext callbackContext)
+                throws UsbError {
+            if (chunkSize <= 0 || depth <= 0) {
+                throw new UsbError("Invalid stream chunkSize/depth: " + chunkSize + "/" + depth);
+            }
+            mDevice = device;
+            mCallbackContext = callbackContext;
+            mChunkSize = chunkSize;
+            mDropUnchanged = dropUnchanged;
+            mLastChunk = dropUnchanged ? new byte[chunkSize] : null;
+            mStats = device.mStats.forEndpoint(interfaceNumber << ENDPOINT_IF_SHIFT
+                    | endpointNumber).in;
+            mRequests = new QueuedRequest[depth];
+            for (int i = 0; i < depth; i++) {
+                mRequests[i] = device.createRequest(interfaceNumber, endpointNumber,
+                        UsbConstants.USB_DIR_IN, this);
+            }
+        }
+
+        // Makes the stream flow controlled, starting with |credits|, counted in bytes if
+        // |creditBytes| and in chunks otherwise. |queueLimit| bounds the chunks held in the
+        // drop modes (0 for the stream's depth).
+        synchronized void setFlowControl(long credits, boolean creditBytes, int overflow,
+                int queueLimit) throws UsbError {
+            if (credits < 0 || queueLimit < 0) {
+                throw new UsbError("Invalid stream credits/queueLimit: " + credits + "/"
+                        + queueLimit);
+            }
+            mFlowControlled = true;
+            mCredits = credits;
+            mCreditBytes = creditBytes;
+            mOverflow = overflow;
+            mQueueLimit = queueLimit == 0 ? mRequests.length : queueLimit;
+        }
+
+        void start() throws UsbError {
+            // Acknowledge the start before any chunk can be delivered.
+            PluginResult started = new PluginResult(PluginResult.Status.OK);
+            started.setKeepCallback(true);
+            mCallbackContext.sendPluginResult(started);
+            for (int i = 0; i < mRequests.length; i++) {
+                synchronized (this) {
+                    mLiveRequests++;
+                }
+                ByteBuffer buffer = sBufferPool.acquireDirect(mChunkSize);
+                if (!mDevice.submitRequest(mRequests[i], buffer, mChunkSize)) {
+                    // Requests already queued are cancelled and retired by stop().
+                    synchronized (this) {
+                        mLiveRequests--;
+                    }
+                    sBufferPool.releaseDirect(buffer);
+                    for (int j = i; j < mRequests.length; j++) {
+                        mRequests[j].close();
+                    }
+                    throw new UsbError("Failed to queue stream request");
+                }
+            }
+        }
+
+        void stop() {
+            mStopped = true;
+            ArrayList<QueuedRequest> parked;
+            synchronized (this) {
+                parked = new ArrayList<QueuedRequest>(mParked);
+                mParked.clear();
+                while (!mHeldChunks.isEmpty()) {
+                    sBufferPool.release(mHeldChunks.poll());
+                }
+                mHeldLengths.clear();
+            }
+            for (QueuedRequest request : mRequests) {
+                if (!parked.contains(request)) {
+                    request.cancel();
+                }
+            }
+            for (QueuedRequest request : parked) {
+                retire(request);
+            }
+        }
+
+        // Adds |credits| and sends what they allow of the held chunks, then queues any parked
+        // requests again. Returns {credits, queued, dropped, paused}.
+        JSONObject grantCredits(long credits) throws JSONException {
+            ArrayList<QueuedRequest> resumed = null;
+            JSONObject status = new JSONObject();
+            synchronized (this) {
+                mCredits += credits;
+                sendHeldChunks();
+                if (mCredits > 0 && !mParked.isEmpty()) {
+                    resumed = new ArrayList<QueuedRequest>(mParked);
+                    mParked.clear();
+                }
+                status.put("credits", mCredits);
+                status.put("queued", mHeldChunks.size());
+                status.put("dropped", mDropped);
+                status.put("paused", mParked.size());
+            }
+            if (resumed != null) {
+                for (QueuedRequest request : resumed) {
+                    requeue(request);
+                }
+            }
+            return status;
+        }
+
+        public void onRequestComplete(QueuedRequest request) {
+            ByteBuffer buffer = request.mBuffer;
+            int length = buffer.position();
+            if (mStopped) {
+                retire(request);
+                return;
+            }
+            if (request.mFailed) {
+                mStopped = true;
+                mCallbackContext.error("Connection failed");
+                retire(request);
+                return;
+            }
+            // A stream request is queued as soon as it is free, so it has no queue wait.
+            mStats.record(request.mSubmittedAt, request.mSubmittedAt, System.nanoTime(), length,
+                    0);
+            byte[] chunk = sBufferPool.acquire(length);
+            buffer.flip();
+            buffer.get(chunk, 0, length);
+            buffer.clear();
+            boolean park = false;
+            if (mFlowControlled) {
+                synchronized (this) {
+                    park = mOverflow == OVERFLOW_BLOCK && mCredits <= 0;
+                    if (park) {
+                        mParked.add(request);
+                    }
+                }
+            }
+            // Re-queue before talking to the bridge so the endpoint is never left idle.
+            if (!park) {
+                requeue(request);
+            }
+            if (length == 0 || isUnchanged(chunk, length)) {
+                sBufferPool.release(chunk);
+            } else if (!mFlowControlled) {
+                send(chunk, length);
+                sBufferPool.release(chunk);
+            } else {
+                hold(chunk, length);
+            }
+        }
+
+        private void requeue(QueuedRequest request) {
+            if (!mDevice.submitRequest(request, request.mBuffer, mChunkSize)) {
+                if (!mStopped) {
+                    mStopped = true;
+                    mCallbackContext.error("Failed to re-queue stream request");
+                }
+                retire(request);
+            } else if (mStopped) {
+                // stop() may have run before the request was queued again.
+                request.cancel();
+            }
+        }
+
+        private void send(byte[] chunk, int length) {
+            if (!mCallbackContext.isFinished()) {
+                PluginResult result = new ArrayBufferResult(chunk, length);
+                result.setKeepCallback(true);
+                mCallbackContext.sendPluginResult(result);
+            }
+        }
+
+        // Queues |chunk|, which is released once sent or dropped, and sends what credits allow.
+        private synchronized void hold(byte[] chunk, int length) {
+            if (mStopped) {
+                sBufferPool.release(chunk);
+                return;
+            }
+            if (mOverflow != OVERFLOW_BLOCK && mHeldChunks.size() >= mQueueLimit) {
+                mDropped++;
+                if (mOverflow == OVERFLOW_DROP_NEWEST) {
+                    sBufferPool.release(chunk);
+                    return;
+                }
+                sBufferPool.release(mHeldChunks.poll());
+                mHeldLengths.poll();
+            }
+            mHeldChunks.add(chunk);
+            mHeldLengths.add(length);
+            sendHeldChunks();
+        }
+
+        private void sendHeldChunks() {
+            while (mCredits > 0 && !mHeldChunks.isEmpty()) {
+                byte[] chunk = mHeldChunks.poll();
+                int length = mHeldLengths.poll();
+                send(chunk, length);
+                sBufferPool.release(chunk);
+                mCredits -= mCreditBytes ? length : 1;
+            }
+        }
+
+        // Remembers |chunk| and returns true if it should be dropped as a repeat of the last one.
+        private boolean isUnchanged(byte[] chunk, int length) {
+            if (!mDropUnchanged) {
+                return false;
+            }
+            if (length == mLastLength) {
+                int i = 0;
+                while (i < length && chunk[i] == mLastChunk[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return true;
+                }
+            }
+            System.arraycopy(chunk, 0, mLastChunk, 0, length);
+            mLastLength = length;
+            return false;
+        }
+
+        // Closes a request that will not be queued again, and ends the stream's callback once
+        // the last one is gone.
+        private void retire(QueuedRequest request) {
+            request.close();
+            sBufferPool.releaseDirect(request.mBuffer);
+            synchronized (this) {
+                if (--mLiveRequests > 0) {
+                    return;
+                }
+            }
+            if (!mCallbackContext.isFinished()) {
+                mCallbackContext.success();
+            }
+        }
+    }
+
+    // Shared by all connections, see BufferPool.
+    private static final BufferPool sBufferPool = new BufferPool();
+    // Traffic capture of all connections while started, see startCapture.
+    private static volatile UsbCapture sCapture;
+    // Runs delayed work: flushes of coalescing pipelines, and replayed request completions.
+    private static final ScheduledExecutorService sTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG + "-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // getDevices filters, compiled to primitive arrays. A device matches if any filter matches;
+    // a filter matches if every criterion it sets matches, where interface criteria must all be
+    // met by the same interface. Unset criteria hold -1.
+    private static class DeviceFilters {
+        private final int[] mVendorIds;
+        private final int[] mProductIds;
+        private final int[] mInterfaceClasses;
+        private final int[] mInterfaceSubclasses;
+        private final int[] mInterfaceProtocols;
+        // Filters setting both vendorId and productId, indexed by (vendorId << 16 | productId),
+        // and all other filters, which have to be checked against every device.
+        private final SparseArray<int[]> mByVidPid = new SparseArray<int[]>();
+        private final int[] mOtherFilters;
+
+        DeviceFilters(JSONArray filters) throws JSONException {
+            int count = filters.length();
+            mVendorIds = new int[count];
+            mProductIds = new int[count];
+            mInterfaceClasses = new int[count];
+            mInterfaceSubclasses = new int[count];
+            mInterfaceProtocols = new int[count];
+            int[] others = new int[count];
+            int otherCount = 0;
+            for (int i = 0; i < count; i++) {
+                JSONObject filter = filters.getJSONObject(i);
+                mVendorIds[i] = filter.optInt("vendorId", -1);
+                mProductIds[i] = filter.optInt("productId", -1);
+                mInterfaceClasses[i] = filter.optInt("interfaceClass", -1);
+                mInterfaceSubclasses[i] = filter.optInt("interfaceSubclass", -1);
+                mInterfaceProtocols[i] = filter.optInt("interfaceProtocol", -1);
+                if (mVendorIds[i] != -1 && mProductIds[i] != -1) {
+                    int key = mVendorIds[i] << 16 | mProductIds[i];
+                    int[] indexed = mByVidPid.get(key);
+                    indexed = indexed == null ?
+                            new int[1] : Arrays.copyOf(indexed, indexed.length + 1);
+                    indexed[indexed.length - 1] = i;
+                    mByVidPid.put(key, indexed);
+                } else {
+                    others[otherCount++] = i;
+                }
+            }
+            mOtherFilters = Arrays.copyOf(others, otherCount);
+        }
+
+        boolean matches(UsbDevice device) {
+            int[] indexed = mByVidPid.get(device.getVendorId() << 16 | device.getProductId());
+            return (indexed != null && matchesAny(device, indexed))
+                    || matchesAny(device, mOtherFilters);
+        }
+
+        private boolean matchesAny(UsbDevice device, int[] filterIndices) {
+            for (int i : filterIndices) {
+                if (mVendorIds[i] != -1 && mVendorIds[i] != device.getVendorId()) {
+                    continue;
+                }
+                if (mProductIds[i] != -1 && mProductIds[i] != device.getProductId()) {
+                    continue;
+                }
+                if (mInterfaceClasses[i] == -1 && mInterfaceSubclasses[i] == -1
+                        && mInterfaceProtocols[i] == -1) {
+                    return true;
+                }
+                if (matchesInterface(device, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesInterface(UsbDevice device, int filterIndex) {
+            int interfaceCount = device.getInterfaceCount();
+            for (int interfaceIdx = 0; interfaceIdx < interfaceCount; interfaceIdx++) {
+                UsbInterface usbInterface = device.getInterface(interfaceIdx);
+                if (mInterfaceClasses[filterIndex] != -1
+                        && mInterfaceClasses[filterIndex] != usbInterface.getInterfaceClass()) {
+                    continue;
+                }
+                if (mInterfaceSubclasses[filterIndex] != -1
+                        && mInterfaceSubclasses[filterIndex] != usbInterface.getInterfaceSubclass()) {
+                    continue;
+                }
+                if (mInterfaceProtocols[filterIndex] != -1
+                        && mInterfaceProtocols[filterIndex] != usbInterface.getInterfaceProtocol()) {
+                    continue;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Most recently used compiled filters, keyed by the getDevices arguments that held them.
+    private final LinkedHashMap<String, DeviceFilters> mFilterCache =
+            new LinkedHashMap<String, DeviceFilters>(FILTER_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeviceFilters> eldest) {
+                    return size() > FILTER_CACHE_SIZE;
+                }
+            };
+
+    // Simulated device configurations offered by getDevices, by config text and by device ID.
+    // Both are bounded by MAX_SIMULATED_DEVICES, and updated under mSimulatedDeviceIds.
+    private final ConcurrentHashMap<Integer, JSONObject> mSimulatedDevices =
+            new ConcurrentHashMap<Integer, JSONObject>();
+    private final LinkedHashMap<String, Integer> mSimulatedDeviceIds =
+            new LinkedHashMap<String, Integer>(MAX_SIMULATED_DEVICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    if (size() <= MAX_SIMULATED_DEVICES) {
+                        return false;
+                    }
+                    mSimulatedDevices.remove(eldest.getValue());
+                    return true;
+                }
+            };
+    private int mNextSimulatedDeviceId = SIMULATED_DEVICE_FIRST_ID;
+    // Whether connections are opened through a RecordingDevice, see setSessionRecording.
+    private volatile boolean mRecordSessions;
+    // The most bytes each recorded session may take, see setSessionRecording.
+    private volatile int mSessionLimit = DEFAULT_SESSION_LIMIT;
+
+    // Maps connection handles to the corresponding device & connection objects. Lookups take no
+    // lock; anything that must not race on a single connection synchronizes on that connection.
+    private final ConcurrentHashMap<Integer, ConnectedDevice> mConnections =
+            new ConcurrentHashMap<Integer, ConnectedDevice>();
+    private static final AtomicInteger sNextConnectionId = new AtomicInteger(1);
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        for (ConnectedDevice d : mConnections.values()) {
+            d.shutdown();
+        }
+        mConnections.clear();
+        unregisterReceiver();
+        if (mHotplugReceiver != null) {
+            webView.getContext().unregisterReceiver(mHotplugReceiver);
+            mHotplugReceiver = null;
+        }
+    }
+
+    @Override
+    public void onReset() {
+        // Nobody is left to receive the results of transfers in progress, nor of the streams,
+        // read-aheads and pipelines the page started.
+        for (ConnectedDevice d : mConnections.values()) {
+            d.cancelAllTransfers();
+            d.stopQueuedTransfers();
+        }
+        unregisterReceiver();
+        // The page that was waiting on these is gone.
+        synchronized (mPendingPermissions) {
+            mPendingPermissions.clear();
+        }
+        // Open connections keep their configuration; the next page offers its own.
+        synchronized (mSimulatedDeviceIds) {
+            mSimulatedDeviceIds.clear();
+            mSimulatedDevices.clear();
+        }
+        mDeviceEventsCallback = null;
+    }
+
+    // Starts tracking attached devices. The receiver is registered before the initial scan so
+    // that no attach or detach can be missed in between.
+    private void initDeviceRegistry() {
+        mHotplugReceiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (device == null) {
+                    return;
+                }
+                if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                    if (mDevices.put(device.getDeviceId(), device) == null) {
+                        sendDeviceEvent("onDeviceAdded", device);
+                    }
+                } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                    if (mDevices.remove(device.getDeviceId()) != null) {
+                        sendDeviceEvent("onDeviceRemoved", device);
+                    }
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            webView.getContext().registerReceiver(mHotplugReceiver, filter,
+                    Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            webView.getContext().registerReceiver(mHotplugReceiver, filter);
+        }
+        for (UsbDevice device : mUsbManager.getDeviceList().values()) {
+            mDevices.putIfAbsent(device.getDeviceId(), device);
+        }
+    }
+
+    private void sendDeviceEvent(String eventName, UsbDevice device) {
+        CallbackContext callbackContext = mDeviceEventsCallback;
+        if (callbackContext == null) {
+            return;
+        }
+        try {
+            JSONObject event = new JSONObject();
+            event.put("event", eventName);
+            event.put("device", describeDevice(device.getDeviceId(), device.getVendorId(),
+                    device.getProductId()));
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to send " + eventName, e);
+        }
+    }
+
+    private synchronized void unregisterReceiver() {
+        if(mUsbReceiver != null) {
+            webView.getContext().unregisterReceiver(mUsbReceiver);
+            mUsbReceiver = null;
+        }
+    }
+
+    // Opens waiting for the user to answer a permission request, keyed by device ID. Parallel
+    // opens of one device share a single request.
+    private final HashMap<Integer, ArrayList<CallbackContext>> mPendingPermissions =
+            new HashMap<Integer, ArrayList<CallbackContext>>();
+
+    /**
+     * Overridden execute method, which keeps the unparsed arguments for the actions that
+     * cache by them.
+     * @param action the string representation of the action to execute
+     * @param rawArgs the arguments as JSON text
+     * @param callbackContext the cordova {@link CallbackContext}
+     * @return true if the action exists, false otherwise
+     * @throws JSONException if the args parsing fails
+     */
+    @Override
+    public boolean execute(String action, String rawArgs, CallbackContext callbackContext)
+            throws JSONException {
+        return execute(action, new CordovaArgs(new JSONArray(rawArgs)), rawArgs,
+                callbackContext);
+    }
+
+    /**
+     * Overridden execute method
+     * @param action the string representation of the action to execute
+     * @param args
+     * @param callbackContext the cordova {@link CallbackContext}
+     * @return true if the action exists, false otherwise
+     * @throws JSONException if the args parsing fails
+     */
+    @Override
+    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext)
+            throws JSONException {
+        return execute(action, args, null, callbackContext);
+    }
+
+    // |rawArgs| is the JSON text |args| was parsed from, or null if unknown.
+    private boolean execute(String action, final CordovaArgs args, final String rawArgs,
+            final CallbackContext callbackContext) throws JSONException {
+        if ("transfer".equals(action)) {
+            // Binary fast path: skips the JSON params and the per-call logging below.
+            try {
+                transferCommand(args, callbackContext);
+            } catch (UsbError e) {
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        }
+        final JSONObject params = args.getJSONObject(ARG_INDEX_PARAMS);
+        final CordovaArgs finalArgs = args;
+        Log.d(TAG, "Action: " + action + " params: " + params);
+
+        if (mUsbManager == null) {
+            mUsbManager = (UsbManager) webView.getContext().getSystemService(Context.USB_SERVICE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                mPermissionIntent = PendingIntent.getBroadcast(webView.getContext(), 0, new Intent(ACTION_USB_PERMISSION), PendingIntent.FLAG_MUTABLE|PendingIntent.FLAG_ALLOW_UNSAFE_IMPLICIT_INTENT);
+            } else {
+                mPermissionIntent = PendingIntent.getBroadcast(webView.getContext(), 0, new Intent(ACTION_USB_PERMISSION), 0);
+            }
+            initDeviceRegistry();
+        }
+
+        try {
+            if ("hasUsbHostFeature".equals(action)) {
+                boolean usbHostFeature = cordova.getActivity().getApplicationContext().getPackageManager().hasSystemFeature(PackageManager.FEATURE_USB_HOST);
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, usbHostFeature));
+                return true;
+            } else if ("registerDeviceEvents".equals(action)) {
+                mDeviceEventsCallback = callbackContext;
+                PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+                return true;
+            } else if ("getDevices".equals(action)) {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            getDevices(args, rawArgs, params, callbackContext);
+                        } catch (Exception e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            } else if ("openDevice".equals(action)) {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            openDevice(args, params, callbackContext);
+                        } catch (Exception e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            } else if ("closeDevice".equals(action)) {
+                closeDevice(args, params, callbackContext);
+                return true;
+            } else if ("listInterfaces".equals(action)) {
+                listInterfaces(args, params, callbackContext);
+                return true;
+            } else if ("claimInterface".equals(action)) {
+                claimInterface(args, params, callbackContext);
+                return true;
+            } else if ("getConfiguration".equals(action)) {
+                getConfiguration(args, params, callbackContext);
+                return true;
+            } else if ("releaseInterface".equals(action)) {
+                releaseInterface(args, params, callbackContext);
+                return true;
+            } else if ("controlTransfer".equals(action)) {
+                ConnectedDevice dev = getDevice(params);
+                final long requestedAt = System.nanoTime();
+                final PendingTransfer transfer = dev.trackTransfer(
+                        params.optInt("transferId"), CONTROL_WORKER, callbackContext, webView);
+                dev.runOnWorker(transfer, CONTROL_WORKER,
+                        getPriority(params, UsbConstants.USB_ENDPOINT_XFER_CONTROL),
+                        new Runnable() {
+                    public void run() {
+                        if (transfer.isFinished()) {
+                            return;  // Cancelled while waiting for the worker.
+                        }
+                        try {
+                            controlTransfer(finalArgs, params, requestedAt, transfer);
+                        } catch (Exception e) {
+                            transfer.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            } else if ("bulkTransfer".equals(action)) {
+                ConnectedDevice dev = getDevice(params);
+                final long requestedAt = System.nanoTime();
+                int endpointAddress = getEndpointAddress(params, dev);
+                final PendingTransfer transfer = dev.trackTransfer(
+                        params.optInt("transferId"), endpointAddress, callbackContext, webView);
+                BulkOutPipeline pipeline = dev.getCoalescingPipeline(endpointAddress);
+                if (pipeline != null && directionFromName(params.getString("direction"))
+                        == UsbConstants.USB_DIR_OUT) {
+                    byte[] data = args.getArrayBuffer(ARG_INDEX_DATA_ARRAYBUFFER);
+                    writeCoalesced(pipeline, data, data.length, transfer);
+                    return true;
+                }
+                dev.runOnWorker(transfer, endpointAddress,
+                        getPriority(params, UsbConstants.USB_ENDPOINT_XFER_BULK),
+                        new Runnable() {
+                    public void run() {
+                        if (transfer.isFinished()) {
+                            return;  // Cancelled while waiting for the worker.
+                        }
+                        try {
+                            bulkTransfer(finalArgs, params, requestedAt, transfer);
+                        } catch (Exception e) {
+                            transfer.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            } else if ("interruptTransfer".equals(action)) {
+                ConnectedDevice dev = getDevice(params);
+                final long requestedAt = System.nanoTime();
+                int endpointAddress = getEndpointAddress(params, dev);
+                final PendingTransfer transfer = dev.trackTransfer(
+                        params.optInt("transferId"), endpointAddress, callbackContext, webView);
+                dev.runOnWorker(transfer, endpointAddress,
+                        getPriority(params, UsbConstants.USB_ENDPOINT_XFER_INT),
+                        new Runnable() {
+                    public void run() {
+                        if (transfer.isFinished()) {
+                            return;  // Cancelled while waiting for the worker.
+                        }
+                        try {
+                            interruptTransfer(finalArgs, params, requestedAt, transfer);
+                        } catch (Exception e) {
+                            transfer.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            } else if ("startBulkInStream".equals(action)) {
+                startBulkInStream(args, params, callbackContext);
+                return true;
+            } else if ("stopBulkInStream".equals(action)
+                    || "stopInterruptPolling".equals(action)) {
+                stopInStream(args, params, callbackContext);
+                return true;
+            } else if ("startInterruptPolling".equals(action)) {
+                startInterruptPolling(args, params, callbackContext);
+                return true;
+            } else if ("grantStreamCredits".equals(action)) {
+                InStream stream = getDevice(params).getStream(params.getInt("endpoint"));
+                if (stream == null) {
+                    throw new UsbError("No stream active on endpoint: "
+                            + params.getInt("endpoint"));
+                }
+                callbackContext.success(stream.grantCredits(params.optLong("credits", 0)));
+                return true;
+            } else if ("startReadAhead".equals(action)) {
+                startReadAhead(args, params, callbackContext);
+                return true;
+            } else if ("stopReadAhead".equals(action)) {
+                ConnectedDevice dev = getDevice(params);
+                if (!dev.stopReadAhead(params.getInt("endpoint"))) {
+                    throw new UsbError("No read-ahead active on endpoint: "
+                            + params.getInt("endpoint"));
+                }
+                callbackContext.success();
+                return true;
+            } else if ("getReadAheadStatus".equals(action)) {
+                ReadAhead readAhead = getDevice(params).getReadAhead(params.getInt("endpoint"));
+                if (readAhead == null) {
+                    throw new UsbError("No read-ahead active on endpoint: "
+                            + params.getInt("endpoint"));
+                }
+                callbackContext.success(readAhead.getStatus());
+                return true;
+            } else if ("bulkWrite".equals(action)) {
+                bulkWrite(args, params, callbackContext);
+                return true;
+            } else if ("setWriteCoalescing".equals(action)) {
+                setWriteCoalescing(args, params, callbackContext);
+                return true;
+            } else if ("flush".equals(action)) {
+                ConnectedDevice dev = getDevice(params);
+                BulkOutPipeline pipeline = dev.findPipeline(getEndpointAddress(params, dev));
+                if (pipeline == null) {
+                    // Nothing was ever written through a pipeline, so nothing is held.
+                    callbackContext.success();
+                } else {
+                    pipeline.flush(callbackContext);
+                }
+                return true;
+            } else if ("getTransferStats".equals(action)) {
+                callbackContext.success(getDevice(params).mStats.toJson());
+                return true;
+            } else if ("resetTransferStats".equals(action)) {
+                getDevice(params).mStats.reset();
+                callbackContext.success();
+                return true;
+            } else if ("startCapture".equals(action)) {
+                startCapture(args, params, callbackContext);
+                return true;
+            } else if ("stopCapture".equals(action)) {
+                sCapture = null;
+                callbackContext.success();
+                return true;
+            } else if ("getCapture".equals(action)) {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        UsbCapture capture = sCapture;
+                        if (capture == null) {
+                            callbackContext.error("Capture not started");
+                        } else {
+                            callbackContext.sendPluginResult(
+                                    new PluginResult(PluginResult.Status.OK, capture.toPcap()));
+                        }
+                    }
+                });
+                return true;
+            } else if ("setSessionRecording".equals(action)) {
+                int maxBytes = params.optInt("maxBytes", DEFAULT_SESSION_LIMIT);
+                if (maxBytes <= 0) {
+                    throw new UsbError("Invalid session maxBytes: " + maxBytes);
+                }
+                mSessionLimit = maxBytes;
+                mRecordSessions = params.getBoolean("enabled");
+                callbackContext.success();
+                return true;
+            } else if ("getSessionRecording".equals(action)) {
+                final ConnectedDevice dev = getDevice(params);
+                if (!(dev instanceof RecordingDevice)) {
+                    throw new UsbError("Connection is not being recorded");
+                }
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+                                ((RecordingDevice) dev).mSession.encode()));
+                    }
+                });
+                return true;
+            } else if ("openReplayDevice".equals(action)) {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            openReplayDevice(finalArgs, params, callbackContext);
+                        } catch (Exception e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            } else if ("cancelTransfer".equals(action)) {
+                int transferId = params.getInt("transferId");
+                boolean cancelled = false;
+                for (ConnectedDevice dev : mConnections.values()) {
+                    if (dev.cancelTransfer(transferId)) {
+                        cancelled = true;
+                        break;
+                    }
+                }
+                callbackContext.success(cancelled ? 1 : 0);
+                return true;
+            } else if ("setTransferQueueLimit".equals(action)) {
+                int limit = params.getInt("limit");
+                if (limit <= 0) {
+                    throw new UsbError("Invalid transfer queue limit: " + limit);
+                }
+                getDevice(params).mTransferQueueLimit = limit;
+                callbackContext.success();
+                return true;
+            } else if ("cancelAll".equals(action)) {
+                getDevice(params).cancelAllTransfers();
+                callbackContext.success();
+                return true;
+            } else if ("transferBatch".equals(action)) {
+                ConnectedDevice dev = getDevice(params);
+                final long requestedAt = System.nanoTime();
+                final PendingTransfer transfer = dev.trackTransfer(
+                        params.optInt("transferId"), BATCH_WORKER, callbackContext, webView);
+                dev.runOnWorker(transfer, BATCH_WORKER, getPriority(params, -1),
+                        new Runnable() {
+                    public void run() {
+                        if (transfer.isFinished()) {
+                            return;  // Cancelled while waiting for the worker.
+                        }
+                        try {
+                            transferBatch(finalArgs, params, requestedAt, transfer);
+                        } catch (Exception e) {
+                            transfer.error(e.getMessage());
+                        }
+                    }
+                });
+                return true;
+            }
+        } catch (UsbError e) {
+            callbackContext.error(e.getMessage());
+            return true;
+        } catch (JSONException e) {
+            callbackContext.error(e.getMessage());
+            return true;
+        }
+        return false;
+    }
+    // Returns the compiled form of a getDevices filter list. Apps tend to poll with the same
+    // filters, so compiled filters are cached by the text of the getDevices arguments holding
+    // them, |rawArgs|. Without that text the filters are serialized for a key instead.
+    private DeviceFilters getDeviceFilters(JSONArray filters, String rawArgs)
+            throws JSONException {
+        String key = rawArgs != null ? rawArgs : filters.toString();
+        synchronized (mFilterCache) {
+            DeviceFilters compiled = mFilterCache.get(key);
+            if (compiled == null) {
+                Log.d(TAG, "compiling filters " + key);
+                compiled = new DeviceFilters(filters);
+                mFilterCache.put(key, compiled);
+            }
+            return compiled;
+        }
+    }
+    private void getDevices(CordovaArgs args, String rawArgs, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        JSONArray filters = params.optJSONArray("filters");
+        DeviceFilters compiled = filters == null ? null : getDeviceFilters(filters, rawArgs);
+        JSONArray result = new JSONArray();
+        for (UsbDevice device: mDevices.values()) {
+            if (compiled == null || compiled.matches(device)) {
+                addDeviceToArray(result, device.getDeviceId(), device.getVendorId(),
+                        device.getProductId());
+            }
+        }
+        if (params.optBoolean("appendFakeDevice", false)) {
+            addDeviceToArray(result, FakeDevice.ID, FakeDevice.VID, FakeDevice.PID);
+        }
+        JSONArray simulated = params.optJSONArray("simulatedDevices");
+        if (simulated != null) {
+            for (int i = 0; i < simulated.length(); i++) {
+                JSONObject config = simulated.getJSONObject(i);
+                addDeviceToArray(result, getSimulatedDeviceId(config),
+                        config.optInt("vendorId", FakeDevice.VID),
+                        config.optInt("productId", FakeDevice.PID));
+            }
+        }
+        callbackContext.success(result);
+    }
+    private static void addDeviceToArray(JSONArray result, int deviceId, int vendorId,
+            int productId) throws JSONException {
+        result.put(describeDevice(deviceId, vendorId, productId));
+    }
+    private static JSONObject describeDevice(int deviceId, int vendorId, int productId)
+            throws JSONException {
+        JSONObject jsonDev = new JSONObject();
+        jsonDev.put("device", deviceId);
+        jsonDev.put("vendorId", vendorId);
+        jsonDev.put("productId", productId);
+        return jsonDev;
+    }
+    private void openDevice(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        // First recover the device object from Id.
+        int devId = params.getInt("device");
+        if (devId == FakeDevice.ID) {
+            callbackContext.success(addConnection(maybeRecord(new FakeDevice()),
+                    FakeDevice.VID, FakeDevice.PID));
+            return;
+        }
+        JSONObject simulatedConfig = mSimulatedDevices.get(devId);
+        if (simulatedConfig != null) {
+            SimulatedDevice dev = new SimulatedDevice(simulatedConfig);
+            callbackContext.success(
+                    addConnection(maybeRecord(dev), dev.mVendorId, dev.mProductId));
+            return;
+        }
+        UsbDevice usbDev = mDevices.get(devId);
+        if (usbDev == null) {
+            throw new UsbError("Unknown device ID: " + devId);
+        }
+        if (mUsbManager.hasPermission(usbDev)) {
+            callbackContext.success(openConnection(usbDev));
+            return;
+        }
+        registerPermissionReceiver();
+        synchronized (mPendingPermissions) {
+            ArrayList<CallbackContext> waiting = mPendingPermissions.get(devId);
+            if (waiting != null) {
+                // A request for this device is already showing; share its result.
+                waiting.add(callbackContext);
+                return;
+            }
+            waiting = new ArrayList<CallbackContext>();
+            waiting.add(callbackContext);
+            mPendingPermissions.put(devId, waiting);
+        }
+        mUsbManager.requestPermission(usbDev, mPermissionIntent);
+    }
+    private JSONObject openConnection(UsbDevice device) throws JSONException, UsbError {
+        UsbDeviceConnection usbConn = mUsbManager.openDevice(device);
+        if (usbConn == null) {
+            throw new UsbError("UsbManager.openDevice returned null opening " + device);
+        }
+        ConnectedDevice dev = maybeRecord(new RealDevice(device, usbConn));
+        // Device names have the form /dev/bus/usb/<bus>/<address>.
+        String[] path = device.getDeviceName().split("/");
+        try {
+            dev.mBusNumber = Integer.parseInt(path[path.length - 2]);
+            dev.mDeviceAddress = Integer.parseInt(path[path.length - 1]);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unexpected device name: " + device.getDeviceName());
+        }
+        return addConnection(dev, device.getVendorId(), device.getProductId());
+    }
+    // Returns the device ID under which |config| is offered by getDevices, registering it on
+    // first use. Apps tend to poll with the same options, so IDs are kept by config text. A
+    // forgotten configuration gets a new ID if it is offered again.
+    private int getSimulatedDeviceId(JSONObject config) {
+        String key = config.toString();
+        synchronized (mSimulatedDeviceIds) {
+            Integer id = mSimulatedDeviceIds.get(key);
+            if (id == null) {
+                id = mNextSimulatedDeviceId--;
+                mSimulatedDeviceIds.put(key, id);
+                mSimulatedDevices.put(id, config);
+            }
+            return id;
+        }
+    }
+    // Wraps |dev| in a RecordingDevice if sessions are being recorded.
+    private ConnectedDevice maybeRecord(ConnectedDevice dev) {
+        return mRecordSessions ? new RecordingDevice(dev, mSessionLimit) : dev;
+    }
+    // Opens a connection to a ReplayDevice serving the session passed as the data argument.
+    private void openReplayDevice(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        UsbSession session;
+        try {
+            session = UsbSession.decode(args.getArrayBuffer(ARG_INDEX_DATA_ARRAYBUFFER));
+        } catch (IllegalArgumentException e) {
+            throw new UsbError(e.getMessage());
+        }
+        byte[] raw = session.descriptors;
+        if (raw.length < 12) {
+            throw new UsbError("Session has no device descriptor");
+        }
+        ReplayDevice dev = new ReplayDevice(session, params.optBoolean("realtime", false));
+        callbackContext.success(addConnection(dev,
+                (raw[8] & 0xff) | (raw[9] & 0xff) << 8,
+                (raw[10] & 0xff) | (raw[11] & 0xff) << 8));
+    }
+    // Registers a new connection under a freshly allocated handle, and describes the handle.
+    private JSONObject addConnection(ConnectedDevice dev, int vid, int pid) throws JSONException {
+        int handle = sNextConnectionId.getAndIncrement();
+        mConnections.put(handle, dev);
+        JSONObject jsonHandle = new JSONObject();
+        jsonHandle.put("handle", handle);
+        jsonHandle.put("vendorId", vid);
+        jsonHandle.put("productId", pid);
+        return jsonHandle;
+    }
+    // Completes the opens waiting on a permission request, one connection per caller.
+    private void onPermissionResult(final UsbDevice device, final boolean granted) {
+        final ArrayList<CallbackContext> waiting;
+        synchronized (mPendingPermissions) {
+            waiting = mPendingPermissions.remove(device.getDeviceId());
+        }
+        if (waiting == null) {
+            return;
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                for (CallbackContext callbackContext : waiting) {
+                    if (!granted) {
+                        callbackContext.error("Permission denied for device "
+                                + device.getDeviceName());
+                        continue;
+                    }
+                    try {
+                        callbackContext.success(openConnection(device));
+                    } catch (Exception e) {
+                        callbackContext.error(e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+    // Opens run concurrently, so the one-time registration is synchronized.
+    private synchronized void registerPermissionReceiver() {
+        if (mUsbReceiver != null) {
+            return;
+        }
+        mUsbReceiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                if (!ACTION_USB_PERMISSION.equals(intent.getAction())) {
+                    return;
+                }
+                UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (device != null) {
+                    onPermissionResult(device,
+                            intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false));
+                }
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            webView.getContext().registerReceiver(mUsbReceiver, filter, Context.RECEIVER_EXPORTED);
+        } else {
+            webView.getContext().registerReceiver(mUsbReceiver, filter);
+        }
+    }
+    private void closeDevice(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        int handle = params.getInt("handle");
+        // The handle is invalid from here on, but draining the device's workers can take
+        // a while, so the shutdown runs off the bridge thread.
+        final ConnectedDevice d = mConnections.remove(handle);
+        if (d == null) {
+            callbackContext.success();
+            return;
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    d.shutdown();
+                    callbackContext.success();
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+    private void listInterfaces(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        callbackContext.success(dev.getInterfaceList());
+    }
+    private void getConfiguration(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        UsbDescriptors descriptors = dev.getDescriptors();
+        if (descriptors.configurations.isEmpty()) {
+            throw new UsbError("Device has no configuration descriptor");
+        }
+        // The first configuration's interfaces lead the flattened interface list.
+        UsbDescriptors.Configuration config = descriptors.configurations.get(0);
+        JSONArray interfaceList = dev.getInterfaceList();
+        JSONArray jsonInterfaces = new JSONArray();
+        for (int i = 0; i < config.interfaces.size(); i++) {
+            jsonInterfaces.put(interfaceList.get(i));
+        }
+        JSONObject jsonConfig = new JSONObject();
+        jsonConfig.put("active", true);
+        jsonConfig.put("configurationValue", config.value);
+        jsonConfig.put("selfPowered", (config.attributes & 0x40) != 0);
+        jsonConfig.put("remoteWakeup", (config.attributes & 0x20) != 0);
+        jsonConfig.put("maxPower", config.maxPower * 2);
+        jsonConfig.put("interfaces", jsonInterfaces);
+        jsonConfig.put("extra_data", Base64.encodeToString(config.extraData, Base64.NO_WRAP));
+        callbackContext.success(jsonConfig);
+    }
+    // Builds the listInterfaces result. Interfaces and endpoints are numbered by their position,
+    // matching UsbDevice.getInterface() and UsbInterface.getEndpoint().
+    private static JSONArray describeInterfaces(UsbDescriptors descriptors) throws JSONException {
+        JSONArray jsonInterfaces = new JSONArray();
+        for (int i = 0; i < descriptors.interfaces.size(); i++) {
+            UsbDescriptors.Interface iface = descriptors.interfaces.get(i);
+            JSONArray jsonEndpoints = new JSONArray();
+            for (int j = 0; j < iface.endpoints.size(); j++) {
+                UsbDescriptors.Endpoint ep = iface.endpoints.get(j);
+                int type = ep.attributes & UsbConstants.USB_ENDPOINT_XFERTYPE_MASK;
+                JSONObject jsonEp = new JSONObject();
+                jsonEp.put("direction",
+                        directionName(ep.address & UsbConstants.USB_ENDPOINT_DIR_MASK));
+                jsonEp.put("maximumPacketSize", ep.maxPacketSize);
+                if (type == UsbConstants.USB_ENDPOINT_XFER_INT
+                        || type == UsbConstants.USB_ENDPOINT_XFER_ISOC) {
+                    // Only interrupt and isochronous endpoints have pollingInterval.
+                    jsonEp.put("pollingInterval", ep.interval);
+                }
+                jsonEp.put("type", endpointTypeName(type));
+                jsonEp.put("address", i << ENDPOINT_IF_SHIFT | j);
+                jsonEp.put("extra_data", Base64.encodeToString(ep.extraData, Base64.NO_WRAP));
+                jsonEndpoints.put(jsonEp);
+            }
+            JSONObject jsonIf = new JSONObject();
+            jsonIf.put("alternateSetting", iface.alternateSetting);
+            jsonIf.put("interfaceClass", iface.interfaceClass);
+            jsonIf.put("interfaceProtocol", iface.interfaceProtocol);
+            jsonIf.put("interfaceSubclass", iface.interfaceSubclass);
+            jsonIf.put("extra_data", Base64.encodeToString(iface.extraData, Base64.NO_WRAP));
+            jsonIf.put("interfaceNumber", i);
+            jsonIf.put("endpoints", jsonEndpoints);
+            jsonInterfaces.put(jsonIf);
+        }
+        return jsonInterfaces;
+    }
+    private void claimInterface(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int interfaceNumber = getInterfaceNumber(params, dev);
+        synchronized (dev) {
+            if (!dev.claimInterface(interfaceNumber)) {
+                throw new UsbError("claimInterface returned false for i/f: " + interfaceNumber);
+            }
+        }
+        callbackContext.success();
+    }
+    private void releaseInterface(CordovaArgs args, JSONObject params,
             final CallbackContext callbackContext) throws JSONException, UsbError {
         ConnectedDevice dev = getDevice(params);
         int interfaceNumber = getInterfaceNumber(params, dev);
-        if (!dev.claimInterface(interfaceNumber)) {
-            throw new UsbError("claimInterface returned false for i/f: " + interfaceNumber);
+        synchronized (dev) {
+            if (!dev.releaseInterface(interfaceNumber)) {
+                throw new UsbError("releaseInterface returned false for i/f: " + interfaceNumber);
+            }
+        }
+        callbackContext.success();
+    }
+    private void controlTransfer(CordovaArgs args, JSONObject params, long requestedAt,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+
+        int direction = directionFromName(params.getString("direction"));
+        int requestType = controlRequestTypeFromName(params.getString("requestType"));
+        int recipient = recipientFromName(params.getString("recipient"));
+
+        byte[] buffer = getByteBufferForTransfer(args, params, direction);
+        int length = direction == UsbConstants.USB_DIR_IN ? params.optInt("length") : buffer.length;
+        try {
+            int ret = runTransfer(dev, UsbConstants.USB_ENDPOINT_XFER_CONTROL,
+                    direction | requestType | recipient,
+                    params.getInt("request"),
+                    params.getInt("value"),
+                    params.getInt("index"),
+                    0, buffer, length, params.optInt("timeout"), requestedAt);
+            if (ret < 0) {
+                throw new UsbError("Control transfer returned " + ret);
+            }
+
+            /* control transfer is bidirectional, buffer should alway be passed */
+            callbackContext.sendPluginResult(new ArrayBufferResult(buffer,
+                    direction == UsbConstants.USB_DIR_IN ? ret : 0));
+        } finally {
+            if (direction == UsbConstants.USB_DIR_IN) {
+                sBufferPool.release(buffer);
+            }
+        }
+    }
+    private void bulkTransfer(CordovaArgs args, JSONObject params, long requestedAt,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = getEndpointAddress(params, dev);
+        int direction = directionFromName(params.getString("direction"));
+        byte[] buffer = getByteBufferForTransfer(args, params, direction);
+        int length = direction == UsbConstants.USB_DIR_IN ? params.optInt("length") : buffer.length;
+        try {
+            if (queueTransfer(dev, UsbConstants.USB_ENDPOINT_XFER_BULK, direction, endpointAddress, buffer,
+                    length, params.optInt("timeout"), requestedAt, callbackContext)) {
+                return;
+            }
+            int ret = runTransfer(dev, UsbConstants.USB_ENDPOINT_XFER_BULK, direction, 0, 0, 0,
+                    endpointAddress, buffer, length, params.optInt("timeout"), requestedAt);
+            if (ret < 0) {
+                throw new UsbError("Bulk transfer returned " + ret);
+            }
+            if (direction == UsbConstants.USB_DIR_IN) {
+                callbackContext.sendPluginResult(new ArrayBufferResult(buffer, ret));
+            } else {
+                callbackContext.success();
+            }
+        } finally {
+            if (direction == UsbConstants.USB_DIR_IN) {
+                sBufferPool.release(buffer);
+            }
+        }
+    }
+    private void interruptTransfer(CordovaArgs args, JSONObject params, long requestedAt,
+                                   final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = getEndpointAddress(params, dev);
+
+        int direction = directionFromName(params.getString("direction"));
+        byte[] buffer = getByteBufferForTransfer(args, params, direction);
+        int length = direction == UsbConstants.USB_DIR_IN ? params.optInt("length") : buffer.length;
+        try {
+            if (queueTransfer(dev, UsbConstants.USB_ENDPOINT_XFER_INT, direction, endpointAddress, buffer,
+                    length, params.optInt("timeout"), requestedAt, callbackContext)) {
+                return;
+            }
+            int ret = runTransfer(dev, UsbConstants.USB_ENDPOINT_XFER_INT, direction, 0, 0, 0,
+                    endpointAddress, buffer, length, params.optInt("timeout"), requestedAt);
+            if (ret < 0) {
+                throw new UsbError("Interrupt transfer returned " + ret);
+            }
+            if (direction == UsbConstants.USB_DIR_IN) {
+                callbackContext.sendPluginResult(new ArrayBufferResult(buffer, ret));
+            } else {
+                callbackContext.success();
+            }
+        } finally {
+            if (direction == UsbConstants.USB_DIR_IN) {
+                sBufferPool.release(buffer);
+            }
+        }
+    }
+    // Runs a list of control, bulk and interrupt transfers back-to-back. OUT transfers take their
+    // 'length' bytes in turn from the packed data argument. The response holds a result per
+    // transfer run and the data of all IN transfers, concatenated in order and Base64 encoded.
+    // Each transfer's queue wait, in the stats, runs from when the batch was requested. Batches
+    // run on their own worker, so they are ordered among themselves but not with other
+    // transfers on the same endpoints; cancelling a batch stops it before its next transfer.
+    private void transferBatch(CordovaArgs args, JSONObject params, long requestedAt,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        JSONArray transfers = params.getJSONArray("transfers");
+        boolean stopOnError = params.optBoolean("stopOnError", false);
+        byte[] outData = args.isNull(ARG_INDEX_DATA_ARRAYBUFFER) ?
+                new byte[0] : args.getArrayBuffer(ARG_INDEX_DATA_ARRAYBUFFER);
+        int outOffset = 0;
+        ByteArrayOutputStream inData = new ByteArrayOutputStream();
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < transfers.length(); i++) {
+            if (callbackContext.isFinished()) {
+                return;  // Cancelled; the rest of the batch is not run.
+            }
+            JSONObject transfer = transfers.getJSONObject(i);
+            JSONObject result = new JSONObject();
+            results.put(result);
+            int length = transfer.optInt("length");
+            int direction = UsbConstants.USB_DIR_IN;
+            byte[] buffer = null;
+            int ret;
+            try {
+                direction = directionFromName(transfer.getString("direction"));
+                if (direction == UsbConstants.USB_DIR_OUT) {
+                    if (length < 0 || outOffset + length > outData.length) {
+                        throw new UsbError("Transfer " + i + " overruns the data buffer");
+                    }
+                    buffer = Arrays.copyOfRange(outData, outOffset, outOffset + length);
+                    outOffset += length;
+                } else {
+                    buffer = sBufferPool.acquire(checkLength(length));
+                }
+                ret = runBatchTransfer(dev, transfer, direction, buffer, length, requestedAt);
+            } catch (UsbError e) {
+                result.put("error", e.getMessage());
+                ret = -1;
+            } catch (JSONException e) {
+                result.put("error", e.getMessage());
+                ret = -1;
+            }
+            if (ret >= 0 && direction == UsbConstants.USB_DIR_IN) {
+                inData.write(buffer, 0, ret);
+            }
+            if (buffer != null && direction == UsbConstants.USB_DIR_IN) {
+                sBufferPool.release(buffer);
+            }
+            result.put("resultCode", ret < 0 ? 1 : 0);
+            result.put("length", direction == UsbConstants.USB_DIR_IN ? Math.max(ret, 0) : 0);
+            if (ret < 0 && stopOnError) {
+                break;
+            }
+        }
+        JSONObject response = new JSONObject();
+        response.put("results", results);
+        response.put("data", Base64.encodeToString(inData.toByteArray(), Base64.NO_WRAP));
+        callbackContext.success(response);
+    }
+    // Runs one transfer of a batch. Returns the number of bytes received for IN transfers.
+    private int runBatchTransfer(ConnectedDevice dev, JSONObject transfer, int direction,
+            byte[] buffer, int length, long requestedAt) throws JSONException, UsbError {
+        int type = transferTypeFromName(transfer.getString("type"));
+        if (type == UsbConstants.USB_ENDPOINT_XFER_CONTROL) {
+            return runTransfer(dev, type,
+                    direction
+                            | controlRequestTypeFromName(transfer.getString("requestType"))
+                            | recipientFromName(transfer.getString("recipient")),
+                    transfer.getInt("request"),
+                    transfer.getInt("value"),
+                    transfer.getInt("index"),
+                    0, buffer, length, transfer.optInt("timeout"), requestedAt);
+        }
+        return runTransfer(dev, type, direction, 0, 0, 0, getEndpointAddress(transfer, dev),
+                buffer, length, transfer.optInt("timeout"), requestedAt);
+    }
+    // Returns the worker priority given by the "priority" of |params| ("high", "normal" or
+    // "low"), or else the default for a transfer of |type| (-1 for a batch).
+    private static int getPriority(JSONObject params, int type) throws UsbError {
+        if (params.isNull("priority")) {
+            return defaultPriority(type);
+        }
+        String priority = params.optString("priority");
+        if ("high".equals(priority)) {
+            return PRIORITY_HIGH;
+        } else if ("normal".equals(priority)) {
+            return PRIORITY_NORMAL;
+        } else if ("low".equals(priority)) {
+            return PRIORITY_LOW;
+        }
+        throw new UsbError("Unknown transfer priority: " + priority);
+    }
+    private static int defaultPriority(int type) {
+        switch (type) {
+            case UsbConstants.USB_ENDPOINT_XFER_CONTROL: return PRIORITY_HIGH;
+            case UsbConstants.USB_ENDPOINT_XFER_INT: return PRIORITY_NORMAL;
+            default: return PRIORITY_LOW;
+        }
+    }
+    // Hands a tracked bulk OUT write to a coalescing pipeline, so that it counts against the
+    // endpoint's queue limit and can be cancelled until its batch is sent.
+    private static void writeCoalesced(BulkOutPipeline pipeline, byte[] data, int length,
+            PendingTransfer transfer) {
+        try {
+            pipeline.write(data, length, transfer);
+        } catch (UsbError e) {
+            transfer.error(e.getMessage());
+        }
+    }
+    // Starts a bulk or interrupt transfer as a QueuedTransfer, which answers |callbackContext|
+    // once it completes. Returns false if the transfer has to run synchronously instead: empty
+    // and split transfers, and those that a read-ahead buffer or write coalescing on the
+    // endpoint has to see. Called on the endpoint's worker, which keeps transfers in order.
+    private static boolean queueTransfer(ConnectedDevice dev, int type, int direction,
+            int endpointAddress, byte[] buffer, int length, int timeout, long requestedAt,
+            CallbackContext callbackContext) throws UsbError {
+        if (length <= 0 || length > MAX_BULK_CHUNK) {
+            return false;
+        }
+        if (type == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+            if (direction == UsbConstants.USB_DIR_IN ? dev.getReadAhead(endpointAddress) != null
+                    : dev.getCoalescingPipeline(endpointAddress) != null) {
+                return false;
+            }
+        } else if (type != UsbConstants.USB_ENDPOINT_XFER_INT) {
+            return false;
+        }
+        dev.obtainQueuedTransfer(endpointAddress, direction)
+                .start(callbackContext, buffer, length, timeout, requestedAt);
+        return true;
+    }
+    // Runs a control, bulk or interrupt transfer of the first |length| bytes of |buffer| and
+    // records it in the connection's stats. For bulk and interrupt transfers only the direction
+    // bit of |requestType| is used, and the control parameters are ignored.
+    private static int runTransfer(ConnectedDevice dev, int type, int requestType, int request,
+            int value, int index, int endpointAddress, byte[] buffer, int length, int timeout,
+            long requestedAt) throws UsbError {
+        int direction = requestType & UsbConstants.USB_ENDPOINT_DIR_MASK;
+        int interfaceNumber = endpointAddress >> ENDPOINT_IF_SHIFT;
+        int endpointNumber = endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1);
+        boolean in = direction == UsbConstants.USB_DIR_IN;
+        if (type == UsbConstants.USB_ENDPOINT_XFER_CONTROL) {
+            endpointAddress = TransferStats.CONTROL_ENDPOINT;
+        } else if (type == UsbConstants.USB_ENDPOINT_XFER_BULK && in) {
+            ReadAhead readAhead = dev.getReadAhead(endpointAddress);
+            if (readAhead != null) {
+                // The reads behind the buffer are already in the capture.
+                long startedAt = System.nanoTime();
+                int ret = readAhead.read(buffer, length, timeout);
+                dev.mStats.forEndpoint(endpointAddress).in
+                        .record(requestedAt, startedAt, System.nanoTime(), ret, timeout);
+                return ret;
+            }
+        }
+        if (type == UsbConstants.USB_ENDPOINT_XFER_BULK && !in) {
+            // Let writes held for coalescing go out first, to keep them in order.
+            BulkOutPipeline pipeline = dev.getCoalescingPipeline(endpointAddress);
+            if (pipeline != null && !pipeline.drain(timeout)) {
+                return -1;
+            }
+        }
+        UsbCapture capture = sCapture;
+        long captureId = 0;
+        int captureEndpoint = direction;
+        if (capture != null) {
+            captureId = capture.nextId();
+            if (type != UsbConstants.USB_ENDPOINT_XFER_CONTROL) {
+                captureEndpoint = dev.getDescriptors().interfaces.get(interfaceNumber)
+                        .endpoints.get(endpointNumber).address;
+            }
+            capture.record(captureId, UsbCapture.EVENT_SUBMIT, type, captureEndpoint,
+                    dev.mBusNumber, dev.mDeviceAddress, UsbCapture.STATUS_IN_PROGRESS, length,
+                    UsbCapture.setupPacket(requestType, request, value, index, length),
+                    in ? null : buffer, length);
+        }
+        long submittedAt = System.nanoTime();
+        int ret;
+        if (type == UsbConstants.USB_ENDPOINT_XFER_CONTROL) {
+            ret = dev.runControlTransfer(requestType, request, value, index, buffer, length,
+                    timeout);
+        } else if (type == UsbConstants.USB_ENDPOINT_XFER_BULK && length > MAX_BULK_CHUNK) {
+            ret = dev.runSplitBulkTransfer(interfaceNumber, endpointNumber, direction, buffer,
+                    length, timeout);
+        } else if (type == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+            ret = dev.bulkTransfer(interfaceNumber, endpointNumber, direction, buffer, length,
+                    timeout);
+        } else if (type == UsbConstants.USB_ENDPOINT_XFER_INT) {
+            ret = dev.interruptTransfer(interfaceNumber, endpointNumber, direction, buffer,
+                    length, timeout);
+        } else {
+            throw new UsbError("Unknown transfer type: " + type);
+        }
+        dev.mStats.forEndpoint(endpointAddress).forDirection(direction)
+                .record(requestedAt, submittedAt, System.nanoTime(), ret, timeout);
+        if (capture != null) {
+            capture.record(captureId, UsbCapture.EVENT_COMPLETE, type, captureEndpoint,
+                    dev.mBusNumber, dev.mDeviceAddress, ret < 0 ? UsbCapture.STATUS_ERROR : 0,
+                    Math.max(ret, 0), 0, in ? buffer : null, Math.max(ret, 0));
+        }
+        return ret;
+    }
+    // Runs the binary form of a control, bulk or interrupt transfer, which usb.js sends in place
+    // of the JSON params. The single ArrayBuffer argument holds the OUT data, if any, followed
+    // by a command block of TRANSFER_COMMAND_SIZE bytes (integers are little-endian):
+    //    0  u8   transfer type, UsbConstants.USB_ENDPOINT_XFER_*
+    //    1  u8   bmRequestType: direction | request type | recipient
+    //    2  u8   bRequest
+    //    3  u8   priority: 0 for the default, else PRIORITY_* + 1
+    //    4  u16  wValue
+    //    6  u16  wIndex
+    //    8  i32  connection handle
+    //   12  i32  endpoint address (ignored for control transfers)
+    //   16  i32  length: of the OUT data, or to receive for an IN transfer
+    //   20  i32  timeout
+    //   24  i32  transfer id, for cancelTransfer (zero for none)
+    // The block goes last so that OUT data starts at offset zero and is transferred in place.
+    private void transferCommand(CordovaArgs args, final CallbackContext callbackContext)
+            throws JSONException, UsbError {
+        final long requestedAt = System.nanoTime();
+        final byte[] packet = args.getArrayBuffer(ARG_INDEX_PARAMS);
+        final int base = packet.length - TRANSFER_COMMAND_SIZE;
+        if (base < 0) {
+            throw new UsbError("Malformed transfer command");
+        }
+        final int type = packet[base] & 0xff;
+        final int requestType = packet[base + 1] & 0xff;
+        final int request = packet[base + 2] & 0xff;
+        int priority = packet[base + 3] & 0xff;
+        final int value = getUint16(packet, base + 4);
+        final int index = getUint16(packet, base + 6);
+        final int length = getInt32(packet, base + 16);
+        final int timeout = getInt32(packet, base + 20);
+        final int direction = requestType & UsbConstants.USB_ENDPOINT_DIR_MASK;
+        if (length < 0 || (direction == UsbConstants.USB_DIR_OUT && length != base)
+                || priority > PRIORITY_LOW + 1) {
+            throw new UsbError("Malformed transfer command");
+        }
+        final ConnectedDevice dev = getDevice(getInt32(packet, base + 8));
+        final int endpointAddress = type == UsbConstants.USB_ENDPOINT_XFER_CONTROL ?
+                0 : checkEndpointAddress(getInt32(packet, base + 12), dev);
+        int workerKey = type == UsbConstants.USB_ENDPOINT_XFER_CONTROL ?
+                CONTROL_WORKER : endpointAddress;
+        final PendingTransfer transfer = dev.trackTransfer(getInt32(packet, base + 24),
+                workerKey, callbackContext, webView);
+        if (type == UsbConstants.USB_ENDPOINT_XFER_BULK
+                && direction == UsbConstants.USB_DIR_OUT) {
+            BulkOutPipeline pipeline = dev.getCoalescingPipeline(endpointAddress);
+            if (pipeline != null) {
+                // The command block after the data is never copied out.
+                writeCoalesced(pipeline, packet, length, transfer);
+                return;
+            }
+        }
+        dev.runOnWorker(transfer, workerKey,
+                priority == 0 ? defaultPriority(type) : priority - 1, new Runnable() {
+            public void run() {
+                if (transfer.isFinished()) {
+                    return;  // Cancelled while waiting for the worker.
+                }
+                boolean in = direction == UsbConstants.USB_DIR_IN;
+                byte[] buffer = null;
+                try {
+                    if (queueTransfer(dev, type, direction, endpointAddress, packet, length,
+                            timeout, requestedAt, transfer)) {
+                        return;
+                    }
+                    buffer = in ? sBufferPool.acquire(length) : packet;
+                    int ret = runTransfer(dev, type, requestType, request, value, index,
+                            endpointAddress, buffer, length, timeout, requestedAt);
+                    if (ret < 0) {
+                        transfer.error("Transfer returned " + ret);
+                    } else if (in || type == UsbConstants.USB_ENDPOINT_XFER_CONTROL) {
+                        // Control transfers always answer with data, empty for OUT.
+                        transfer.sendPluginResult(
+                                new ArrayBufferResult(buffer, in ? ret : 0));
+                    } else {
+                        transfer.success();
+                    }
+                } catch (Exception e) {
+                    transfer.error(e.getMessage());
+                } finally {
+                    if (in && buffer != null) {
+                        sBufferPool.release(buffer);
+                    }
+                }
+            }
+        });
+    }
+    private static int getUint16(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+    private static int getInt32(byte[] data, int offset) {
+        return getUint16(data, offset) | getUint16(data, offset + 2) << 16;
+    }
+    private void startBulkInStream(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = getEndpointAddress(params, dev);
+        getEndpointDescription(dev, endpointAddress, UsbConstants.USB_ENDPOINT_XFER_BULK);
+        InStream stream = new InStream(dev,
+                endpointAddress >> ENDPOINT_IF_SHIFT,
+                endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1),
+                params.optInt("chunkSize", DEFAULT_STREAM_CHUNK_SIZE),
+                params.optInt("depth", DEFAULT_STREAM_DEPTH),
+                false,
+                callbackContext);
+        setStreamFlowControl(stream, params);
+        dev.startStream(endpointAddress, stream);
+    }
+    private void startInterruptPolling(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = getEndpointAddress(params, dev);
+        UsbDescriptors.Endpoint ep = getEndpointDescription(dev, endpointAddress,
+                UsbConstants.USB_ENDPOINT_XFER_INT);
+        // Two requests by default, so one is always queued while the other's report is
+        // being delivered.
+        InStream stream = new InStream(dev,
+                endpointAddress >> ENDPOINT_IF_SHIFT,
+                endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1),
+                params.optInt("reportSize", ep.maxPacketSize),
+                params.optInt("depth", DEFAULT_POLLING_DEPTH),
+                params.optBoolean("dropUnchanged", false),
+                callbackContext);
+        setStreamFlowControl(stream, params);
+        dev.startStream(endpointAddress, stream);
+    }
+    // Applies the flow control options of startBulkInStream and startInterruptPolling, if
+    // initial credits are given.
+    private static void setStreamFlowControl(InStream stream, JSONObject params)
+            throws JSONException, UsbError {
+        if (params.isNull("credits")) {
+            return;
+        }
+        String unit = params.optString("creditUnit", "bytes");
+        if (!"bytes".equals(unit) && !"messages".equals(unit)) {
+            throw new UsbError("Unknown stream creditUnit: " + unit);
+        }
+        String overflow = params.optString("overflow", "block");
+        int mode;
+        if ("block".equals(overflow)) {
+            mode = InStream.OVERFLOW_BLOCK;
+        } else if ("dropOldest".equals(overflow)) {
+            mode = InStream.OVERFLOW_DROP_OLDEST;
+        } else if ("dropNewest".equals(overflow)) {
+            mode = InStream.OVERFLOW_DROP_NEWEST;
+        } else {
+            throw new UsbError("Unknown stream overflow mode: " + overflow);
+        }
+        stream.setFlowControl(params.getLong("credits"), "bytes".equals(unit), mode,
+                params.optInt("queueLimit", 0));
+    }
+    private void stopInStream(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = params.getInt("endpoint");
+        if (!dev.stopStream(endpointAddress)) {
+            throw new UsbError("No stream active on endpoint: " + endpointAddress);
+        }
+        callbackContext.success();
+    }
+    private void startReadAhead(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = getEndpointAddress(params, dev);
+        getEndpointDescription(dev, endpointAddress, UsbConstants.USB_ENDPOINT_XFER_BULK);
+        ReadAhead readAhead = new ReadAhead(dev,
+                endpointAddress >> ENDPOINT_IF_SHIFT,
+                endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1),
+                params.optInt("bufferSize", DEFAULT_READ_AHEAD_SIZE),
+                params.optInt("chunkSize", DEFAULT_READ_AHEAD_CHUNK_SIZE),
+                params.optInt("depth", DEFAULT_READ_AHEAD_DEPTH));
+        dev.startReadAhead(endpointAddress, readAhead);
+        callbackContext.success();
+    }
+    // Starts recording the traffic of all connections, replacing any capture already running.
+    private void startCapture(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        int records = params.optInt("records", DEFAULT_CAPTURE_RECORDS);
+        int snapLength = params.optInt("snapLength", DEFAULT_CAPTURE_SNAP_LENGTH);
+        if (records <= 0 || snapLength < 0
+                || (long) records * (snapLength + 64) > Integer.MAX_VALUE) {
+            throw new UsbError("Invalid capture records/snapLength: " + records + "/"
+                    + snapLength);
         }
+        sCapture = new UsbCapture(records, snapLength);
         callbackContext.success();
     }
-    private void releaseInterface(CordovaArgs args, JSONObject params,
+    private void bulkWrite(CordovaArgs args, JSONObject params,
+            final CallbackContext callbackContext) throws JSONException, UsbError {
+        ConnectedDevice dev = getDevice(params);
+        int endpointAddress = getEndpointAddress(params, dev);
+        byte[] data = args.getArrayBuffer(ARG_INDEX_DATA_ARRAYBUFFER);
+        dev.getPipeline(endpointAddress, params.optInt("depth", DEFAULT_PIPELINE_DEPTH))
+                .write(data, data.length, callbackContext);
+    }
+    // Starts, reconfigures or (with a maxBatchSize of zero) stops coalescing of bulk OUT writes
+    // on an endpoint; see BulkOutPipeline.setCoalescing().
+    private void setWriteCoalescing(CordovaArgs args, JSONObject params,
             final CallbackContext callbackContext) throws JSONException, UsbError {
         ConnectedDevice dev = getDevice(params);
-        int interfaceNumber = getInterfaceNumber(params, dev);
-        if (!dev.releaseInterface(interfaceNumber)) {
-            throw new UsbError("releaseInterface returned false for i/f: " + interfaceNumber);
+        int endpointAddress = getEndpointAddress(params, dev);
+        int maxBatchSize = params.optInt("maxBatchSize", -1);
+        if (maxBatchSize < 0) {
+            UsbDescriptors descriptors = dev.getDescriptors();
+            maxBatchSize = descriptors.interfaces.get(endpointAddress >> ENDPOINT_IF_SHIFT)
+                    .endpoints.get(endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1))
+                    .maxPacketSize & 0x7ff;
         }
+        dev.getPipeline(endpointAddress, params.optInt("depth", DEFAULT_PIPELINE_DEPTH))
+                .setCoalescing(maxBatchSize,
+                        params.optInt("flushDelayMs", DEFAULT_COALESCING_FLUSH_DELAY_MS));
         callbackContext.success();
     }
-    private void controlTransfer(CordovaArgs args, JSONObject params,
-            final CallbackContext callbackContext) throws JSONException, UsbError {
-        ConnectedDevice dev = getDevice(params);
+    private ConnectedDevice getDevice(JSONObject params) throws JSONException, UsbError {
+        return getDevice(params.getInt("handle"));
+    }
+    private ConnectedDevice getDevice(int handle) throws UsbError {
+        ConnectedDevice d = mConnections.get(handle);
+        if (d == null) {
+            throw new UsbError("Unknown connection handle: " + handle);
+        }
+        return d;
+    }
+    private int getEndpointAddress(JSONObject params, ConnectedDevice device)
+            throws JSONException, UsbError {
+        return checkEndpointAddress(params.getInt("endpoint"), device);
+    }
+    private static int checkEndpointAddress(int endpointAddress, ConnectedDevice device)
+            throws UsbError {
+        int interfaceNumber = endpointAddress >> ENDPOINT_IF_SHIFT;
+        int endpointNumber = endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1);
+        if (interfaceNumber >= device.getInterfaceCount() ||
+                endpointNumber >= device.getEndpointCount(interfaceNumber)) {
+            throw new UsbError("Enpoint not found: " + endpointAddress);
+        }
+        return endpointAddress;
+    }
+    // Describes the endpoint at |endpointAddress|, checking that it is an IN endpoint of the
+    // given transfer type.
+    private static UsbDescriptors.Endpoint getEndpointDescription(ConnectedDevice device,
+            int endpointAddress, int type) throws UsbError {
+        UsbDescriptors descriptors = device.getDescriptors();
+        int interfaceNumber = endpointAddress >> ENDPOINT_IF_SHIFT;
+        int endpointNumber = endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1);
+        if (interfaceNumber >= descriptors.interfaces.size() ||
+                endpointNumber >= descriptors.interfaces.get(interfaceNumber).endpoints.size()) {
+            throw new UsbError("Enpoint not found: " + endpointAddress);
+        }
+        UsbDescriptors.Endpoint ep =
+                descriptors.interfaces.get(interfaceNumber).endpoints.get(endpointNumber);
+        int epType = ep.attributes & UsbConstants.USB_ENDPOINT_XFERTYPE_MASK;
+        if (epType != type) {
+            throw new UsbError("Endpoint has type: " + endpointTypeName(epType));
+        }
+        if ((ep.address & UsbConstants.USB_ENDPOINT_DIR_MASK) != UsbConstants.USB_DIR_IN) {
+            throw new UsbError("Endpoint has direction: "
+                    + directionName(UsbConstants.USB_DIR_OUT));
+        }
+        return ep;
+    }
+    private int getInterfaceNumber(JSONObject params, ConnectedDevice device)
+            throws JSONException, UsbError {
+        int interfaceNumber = params.getInt("interfaceNumber");
+        if (interfaceNumber >= device.getInterfaceCount()) {
+            throw new UsbError("interface number " + interfaceNumber + " out of range 0.."
+                    + device.getInterfaceCount());
+        }
+        return interfaceNumber;
+    }
+
+    // Queues bulk OUT writes as requests on one endpoint, with up to |depth| in flight at a time so
+    // the bus never waits on a round trip between writes. Writes beyond that depth wait in a
+    // backlog. An endpoint completes its requests in the order they were queued, so each write is
+    // acknowledged in order.
+    private static class BulkOutPipeline implements RequestListener {
+        private final ConnectedDevice mDevice;
+        private final int mInterfaceNumber;
+        private final int mEndpointNumber;
+        private final int mDepth;
+        private final ArrayList<QueuedRequest> mRequests = new ArrayList<QueuedRequest>();
+        private final ArrayDeque<QueuedRequest> mIdleRequests = new ArrayDeque<QueuedRequest>();
+        // Writes handed to requests, in order; each request's batch ends with a write marked
+        // mLastInBatch.
+        private final ArrayDeque<PendingWrite> mInFlight = new ArrayDeque<PendingWrite>();
+        private final ArrayDeque<PendingWrite> mBacklog = new ArrayDeque<PendingWrite>();
+        private final TransferStats.DirectionStats mStats;
+        private boolean mClosed;
+        // Coalescing, see setCoalescing(). Off while mMaxBatchSize is zero.
+        private int mMaxBatchSize;
+        private int mFlushDelayMs;
+        private boolean mFlushScheduled;
+        // Set while drain() waits, so that partial batches go out at once.
+        private boolean mDraining;
+
+        // A write, or a flush marker if mData is null.
+        private static class PendingWrite {
+            final byte[] mData;
+            final int mLength;
+            final CallbackContext mCallbackContext;
+            final long mRequestedAt = System.nanoTime();
+            boolean mLastInBatch;
+
+            PendingWrite(byte[] data, int length, CallbackContext callbackContext) {
+                mData = data;
+                mLength = length;
+                mCallbackContext = callbackContext;
+            }
+        }
+
+        BulkOutPipeline(ConnectedDevice device, int interfaceNumber, int endpointNumber,
+                int depth) throws UsbError {
+            if (depth <= 0) {
+                throw new UsbError("Invalid pipeline depth: " + depth);
+            }
+            mDevice = device;
+            mInterfaceNumber = interfaceNumber;
+            mEndpointNumber = endpointNumber;
+            mDepth = depth;
+            mStats = device.mStats.forEndpoint(interfaceNumber << ENDPOINT_IF_SHIFT
+                    | endpointNumber).out;
+        }
+
+        // With |maxBatchSize| above zero, consecutive writes are merged into transfers of up to
+        // |maxBatchSize| bytes (a larger write still goes alone). A partial batch is held for up
+        // to |flushDelayMs| after its first write, or until flush(). Writes are never split or
+        // reordered, and each write's callback runs once the transfer holding it completes.
+        // Turning coalescing off sends any held batch.
+        synchronized void setCoalescing(int maxBatchSize, int flushDelayMs) throws UsbError {
+            if (maxBatchSize < 0 || flushDelayMs < 0) {
+                throw new UsbError("Invalid coalescing maxBatchSize/flushDelayMs: "
+                        + maxBatchSize + "/" + flushDelayMs);
+            }
+            mMaxBatchSize = maxBatchSize;
+            mFlushDelayMs = flushDelayMs;
+            pumpOrFail();
+        }
+
+        synchronized boolean isCoalescing() {
+            return mMaxBatchSize > 0 && !mClosed;
+        }
+
+        synchronized void write(byte[] data, int length, CallbackContext callbackContext)
+                throws UsbError {
+            if (mClosed) {
+                throw new UsbError("Pipeline closed");
+            }
+            mBacklog.add(new PendingWrite(data, length, callbackContext));
+            pumpOrFail();
+        }
+
+        // Sends any held batch at once, and calls back once every earlier write is done.
+        synchronized void flush(CallbackContext callbackContext) throws UsbError {
+            if (mClosed) {
+                throw new UsbError("Pipeline closed");
+            }
+            mBacklog.add(new PendingWrite(null, 0, callbackContext));
+            pumpOrFail();
+        }
+
+        // Sends any held batch and waits up to |timeoutMs| (or indefinitely if it is zero) for
+        // every write to complete, so that a synchronous transfer can follow them.
+        synchronized boolean drain(int timeoutMs) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            mDraining = true;
+            try {
+                pumpOrFail();
+                while (!mBacklog.isEmpty() || !mInFlight.isEmpty()) {
+                    if (timeoutMs <= 0) {
+                        wait();
+                        continue;
+                    }
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mDraining = false;
+            }
+        }
+
+        private void pumpOrFail() {
+            try {
+                pump();
+            } catch (UsbError e) {
+                failBacklog(e.getMessage());
+            }
+        }
+
+        // Moves backlogged writes onto idle requests, creating requests up to mDepth.
+        private void pump() throws UsbError {
+            // Writes cancelled while held are dropped; once handed to a request they are sent.
+            for (Iterator<PendingWrite> it = mBacklog.iterator(); it.hasNext(); ) {
+                PendingWrite write = it.next();
+                if (write.mData != null && write.mCallbackContext.isFinished()) {
+                    it.remove();
+                }
+            }
+            while (!mBacklog.isEmpty()) {
+                PendingWrite first = mBacklog.peek();
+                if (first.mData == null) {
+                    // A flush marker completes along with the last batch sent before it.
+                    mBacklog.poll();
+                    PendingWrite last = mInFlight.peekLast();
+                    if (last == null) {
+                        first.mCallbackContext.success();
+                    } else {
+                        last.mLastInBatch = false;
+                        first.mLastInBatch = true;
+                        mInFlight.add(first);
+                    }
+                    continue;
+                }
+                int count = 1;
+                int length = first.mLength;
+                boolean due = mMaxBatchSize <= 0 || mDraining || length >= mMaxBatchSize;
+                if (!due) {
+                    for (PendingWrite write : mBacklog) {
+                        if (write == first) {
+                            continue;
+                        }
+                        if (write.mData == null || length + write.mLength > mMaxBatchSize) {
+                            due = true;
+                            break;
+                        }
+                        count++;
+                        length += write.mLength;
+                    }
+                }
+                if (!due) {
+                    long delayNanos = first.mRequestedAt
+                            + TimeUnit.MILLISECONDS.toNanos(mFlushDelayMs) - System.nanoTime();
+                    if (length < mMaxBatchSize && delayNanos > 0) {
+                        scheduleFlush(delayNanos);
+                        return;
+                    }
+                }
+                QueuedRequest request = mIdleRequests.poll();
+                if (request == null) {
+                    if (mRequests.size() == mDepth) {
+                        return;
+                    }
+                    request = mDevice.createRequest(mInterfaceNumber, mEndpointNumber,
+                            UsbConstants.USB_DIR_OUT, this);
+                    mRequests.add(request);
+                }
+                ByteBuffer buffer = sBufferPool.acquireDirect(length);
+                PendingWrite write = null;
+                for (int i = 0; i < count; i++) {
+                    write = mBacklog.poll();
+                    buffer.put(write.mData, 0, write.mLength);
+                    write.mLastInBatch = false;
+                    mInFlight.add(write);
+                }
+                write.mLastInBatch = true;
+                buffer.flip();
+                request.mRequestedAt = first.mRequestedAt;
+                if (!mDevice.submitRequest(request, buffer, length)) {
+                    sBufferPool.releaseDirect(buffer);
+                    mIdleRequests.add(request);
+                    for (int i = 0; i < count; i++) {
+                        mInFlight.pollLast().mCallbackContext.error("Failed to queue bulk write");
+                    }
+                }
+            }
+        }
+
+        // Runs pump() again once the held batch is due.
+        private void scheduleFlush(long delayNanos) {
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+            sTimer.schedule(new Runnable() {
+                public void run() {
+                    synchronized (BulkOutPipeline.this) {
+                        mFlushScheduled = false;
+                        if (!mClosed) {
+                            pumpOrFail();
+                        }
+                    }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public synchronized void onRequestComplete(QueuedRequest request) {
+            ByteBuffer buffer = request.mBuffer;
+            int written = buffer.position();
+            int length = buffer.limit();
+            sBufferPool.releaseDirect(buffer);
+            String error = null;
+            if (mClosed || request.mFailed) {
+                request.close();
+                error = mClosed ? "Pipeline closed" : "Connection failed";
+            } else {
+                mStats.record(request.mRequestedAt, request.mSubmittedAt, System.nanoTime(),
+                        written == length ? written : -1, 0);
+                mIdleRequests.add(request);
+                if (written != length) {
+                    error = "Bulk write transferred " + written + " of " + length + " bytes";
+                }
+            }
+            PendingWrite write;
+            do {
+                write = mInFlight.poll();
+                if (error == null) {
+                    write.mCallbackContext.success();
+                } else {
+                    write.mCallbackContext.error(error);
+                }
+            } while (!write.mLastInBatch);
+            if (!mClosed) {
+                pumpOrFail();
+            }
+            notifyAll();
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            failBacklog("Pipeline closed");
+            for (QueuedRequest request : mIdleRequests) {
+                request.close();
+            }
+            mIdleRequests.clear();
+            // In-flight requests are closed as their cancellation completes.
+            for (QueuedRequest request : mRequests) {
+                request.cancel();
+            }
+            notifyAll();
+        }
+
+        private void failBacklog(String message) {
+            while (!mBacklog.isEmpty()) {
+                mBacklog.poll().mCallbackContext.error(message);
+            }
+            notifyAll();
+        }
+    }
+
+    // An ArrayBuffer result holding the first |length| bytes of a larger buffer. PluginResult only
+    // takes a whole byte[], which would force a trimmed copy of every pooled buffer; instead the
+    // range is Base64 encoded here, up front, so the buffer may be reused as soon as this object
+    // is constructed.
+    private static class ArrayBufferResult extends PluginResult {
+        private final String mEncodedMessage;
+
+        ArrayBufferResult(byte[] data, int length) {
+            super(PluginResult.Status.OK);
+            mEncodedMessage = Base64.encodeToString(data, 0, length, Base64.NO_WRAP);
+        }
+
+        @Override
+        public int getMessageType() {
+            return PluginResult.MESSAGE_TYPE_ARRAYBUFFER;
+        }
+
+        @Override
+        public String getMessage() {
+            return mEncodedMessage;
+        }
+    }
+
+    // Internal exception type used to simplify the action dispatcher error paths.
+    private static class UsbError extends RuntimeException {
+        UsbError(String msg) {
+            super(msg);
+        }
+    }
+
+    // Concrete subclass of ConnectedDevice that routes calls through to the real Android APIs.
+    // The implementation of this class is by design very minimalist: if the methods are kept free
+    // of logic/control statements as the test strategy (see FakeDevice) does not cover this class.
+    private static class RealDevice extends ConnectedDevice {
+        RealDevice(UsbDevice device, UsbDeviceConnection connection) {
+            mDevice = device;
+            mConnection = connection;
+        }
+
+        private final UsbDevice mDevice;
+        private final UsbDeviceConnection mConnection;
+
+        int getInterfaceCount() {
+            return mDevice.getInterfaceCount();
+        }
+        int getEndpointCount(int interfaceNumber) {
+            return mDevice.getInterface(interfaceNumber).getEndpointCount();
+        }
+        byte[] getRawDescriptors() {
+            return mConnection.getRawDescriptors();
+        }
+        boolean claimInterface(int interfaceNumber) {
+            return mConnection.claimInterface(mDevice.getInterface(interfaceNumber), true);
+        }
+        boolean releaseInterface(int interfaceNumber) {
+            return mConnection.releaseInterface(mDevice.getInterface(interfaceNumber));
+        }
+        int controlTransfer(int requestType, int request, int value, int index,
+                            byte[] buffer, int length, int timeout) {
+            return mConnection.controlTransfer(requestType, request, value, index, buffer, length,
+                    timeout);
+        }
+        int bulkTransfer(int interfaceNumber, int endpointNumber, int direction,
+                         byte[] buffer, int length, int timeout)
+                throws UsbError {
+            UsbEndpoint ep = mDevice.getInterface(interfaceNumber).getEndpoint(endpointNumber);
+            if (ep.getDirection() != direction) {
+                throw new UsbError("Endpoint has direction: " + directionName(ep.getDirection()));
+            }
+            return mConnection.bulkTransfer(ep, buffer, length, timeout);
+        }
+        int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
+                              byte[] buffer, int length, int timeout)
+                throws UsbError {
+            UsbEndpoint ep = mDevice.getInterface(interfaceNumber).getEndpoint(endpointNumber);
+            if (ep.getDirection() != direction) {
+                throw new UsbError("Endpoint has direction: " + directionName(ep.getDirection()));
+            }
+            return mConnection.bulkTransfer(ep, buffer, length, timeout);
+        }
+        QueuedRequest newRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError {
+            UsbEndpoint ep = mDevice.getInterface(interfaceNumber).getEndpoint(endpointNumber);
+            if (ep.getDirection() != direction) {
+                throw new UsbError("Endpoint has direction: " + directionName(ep.getDirection()));
+            }
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(mConnection, ep)) {
+                throw new UsbError("UsbRequest.initialize failed");
+            }
+            return new RealRequest(request, listener);
+        }
+        QueuedRequest requestWait() {
+            UsbRequest request = mConnection.requestWait();
+            return request == null ? null : (QueuedRequest) request.getClientData();
+        }
+        void close() {
+            mConnection.close();
+        }
+    };
+
+    // Concrete subclass of QueuedRequest that routes calls through to UsbRequest. The request's
+    // client data points back at the wrapper so RealDevice.requestWait() can map completions.
+    private static class RealRequest extends QueuedRequest {
+        private final UsbRequest mRequest;
+
+        RealRequest(UsbRequest request, RequestListener listener) {
+            super(listener);
+            mRequest = request;
+            mRequest.setClientData(this);
+        }
+
+        boolean queue(ByteBuffer buffer, int length) {
+            return mRequest.queue(buffer, length);
+        }
+        boolean cancel() {
+            return mRequest.cancel();
+        }
+        void close() {
+            mRequest.close();
+        }
+    };
+
+    // Fake device, used in test code.
+    private static class FakeDevice extends ConnectedDevice {
+        static final int ID = -1000000;
+        static final int VID = 0x18d1;  // Google VID.
+        static final int PID = 0x2001;  // Reserved for non-production uses.
+
+        // Device descriptor and a configuration with one vendor-specific interface holding a
+        // 64 byte bulk IN endpoint followed by a 64 byte bulk OUT endpoint.
+        private static final byte[] RAW_DESCRIPTORS = {
+            18, 0x01, 0x00, 0x02, 0x00, 0x00, 0x00, 64,
+            (byte)(VID & 0xff), (byte)(VID >> 8), (byte)(PID & 0xff), (byte)(PID >> 8),
+            0x00, 0x01, 0x00, 0x00, 0x00, 0x01,
+            9, 0x02, 32, 0, 0x01, 0x01, 0x00, (byte)0x80, 50,
+            9, 0x04, 0x00, 0x00, 0x02, (byte)0xff, (byte)0xff, (byte)0xff, 0x00,
+            7, 0x05, (byte)0x81, 0x02, 64, 0, 0,
+            7, 0x05, 0x02, 0x02, 64, 0, 0,
+        };
+
+        // Most written bytes held for reading back; anything written beyond this is dropped.
+        private static final int ECHO_CAPACITY = 1 << 20;
+
+        // Written bytes not yet read, in write mode.
+        private final ByteBuffer echoBuffer = ByteBuffer.allocate(ECHO_CAPACITY);
+        private final ArrayDeque<FakeRequest> pendingInRequests = new ArrayDeque<FakeRequest>();
+        private final LinkedBlockingQueue<QueuedRequest> completedRequests =
+                new LinkedBlockingQueue<QueuedRequest>();
+        // Added to completedRequests on close, to end requestWait().
+        private final FakeRequest closedMarker = new FakeRequest(UsbConstants.USB_DIR_OUT, null);
+
+        int getInterfaceCount() {
+            return 1;
+        }
+        int getEndpointCount(int interfaceNumber) {
+            return 2;
+        }
+        byte[] getRawDescriptors() {
+            return RAW_DESCRIPTORS;
+        }
+        boolean claimInterface(int interfaceNumber) {
+            return true;
+        }
+        boolean releaseInterface(int interfaceNumber) {
+            return true;
+        }
+        int controlTransfer(int requestType, int request, int value, int index,
+                            byte[] buffer, int length, int timeout) {
+            if ((requestType & UsbConstants.USB_ENDPOINT_DIR_MASK) == UsbConstants.USB_DIR_IN) {
+                // For an 'IN' transfer, reflect params into the response data.
+                int len = Math.min(3, length);
+                byte[] response = {(byte)request, (byte)value, (byte)index};
+                System.arraycopy(response, 0, buffer, 0, len);
+                return len;
+            }
+            return length;
+        }
+        synchronized int bulkTransfer(int interfaceNumber, int endpointNumber, int direction,
+                         byte[] buffer, int length, int timeout)
+                throws UsbError {
+            if (direction == UsbConstants.USB_DIR_OUT) {
+                echo(ByteBuffer.wrap(buffer, 0, length));
+                return length;
+            }
+            // IN transfer.
+            echoBuffer.flip();
+            int len = Math.min(echoBuffer.remaining(), length);
+            echoBuffer.get(buffer, 0, len);
+            echoBuffer.compact();
+            return len;
+        }
+        int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
+                              byte[] buffer, int length, int timeout)
+                throws UsbError {
+            return bulkTransfer(interfaceNumber, endpointNumber, direction, buffer, length,
+                    timeout);
+        }
+        QueuedRequest newRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError {
+            int epDirection = endpointNumber == 0 ?
+                    UsbConstants.USB_DIR_IN : UsbConstants.USB_DIR_OUT;
+            if (epDirection != direction) {
+                throw new UsbError("Endpoint has direction: " + directionName(epDirection));
+            }
+            return new FakeRequest(direction, listener);
+        }
+        QueuedRequest requestWait() {
+            try {
+                QueuedRequest request = completedRequests.take();
+                if (request == closedMarker) {
+                    completedRequests.add(closedMarker);
+                    return null;
+                }
+                return request;
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        void close() {
+            completedRequests.add(closedMarker);
+        }
+
+        // Written bytes are held for reading back, and fill pending IN requests oldest first.
+        private void echo(ByteBuffer data) {
+            if (data.remaining() > echoBuffer.remaining()) {
+                data.limit(data.position() + echoBuffer.remaining());
+            }
+            echoBuffer.put(data);
+            while (echoBuffer.position() > 0 && !pendingInRequests.isEmpty()) {
+                FakeRequest pending = pendingInRequests.poll();
+                fill(pending.mQueuedBuffer);
+                completedRequests.add(pending);
+            }
+        }
+
+        // Moves as much of the held bytes as |buffer| has room for into it.
+        private void fill(ByteBuffer buffer) {
+            echoBuffer.flip();
+            int len = Math.min(echoBuffer.remaining(), buffer.remaining());
+            int limit = echoBuffer.limit();
+            echoBuffer.limit(echoBuffer.position() + len);
+            buffer.put(echoBuffer);
+            echoBuffer.limit(limit);
+            echoBuffer.compact();
+        }
+
+        private class FakeRequest extends QueuedRequest {
+            private final int mDirection;
+            // The buffer passed to queue(), which is not mBuffer when the request is wrapped
+            // by a RecordingDevice.
+            private ByteBuffer mQueuedBuffer;
+
+            FakeRequest(int direction, RequestListener listener) {
+                super(listener);
+                mDirection = direction;
+            }
+
+            boolean queue(ByteBuffer buffer, int length) {
+                synchronized (FakeDevice.this) {
+                    mQueuedBuffer = buffer;
+                    buffer.limit(buffer.position() + length);
+                    if (mDirection == UsbConstants.USB_DIR_OUT) {
+                        int limit = buffer.limit();
+                        echo(buffer);
+                        // Written bytes beyond the echo capacity still count as sent.
+                        buffer.limit(limit);
+                        buffer.position(limit);
+                        completedRequests.add(this);
+                    } else if (echoBuffer.position() > 0) {
+                        fill(buffer);
+                        completedRequests.add(this);
+                    } else {
+                        pendingInRequests.add(this);
+                    }
+                }
+                return true;
+            }
+            boolean cancel() {
+                synchronized (FakeDevice.this) {
+                    if (pendingInRequests.remove(this)) {
+                        completedRequests.add(this);
+                    }
+                }
+                return true;
+            }
+            void close() {
+            }
+        }
+    };
+
+    // A simulated device built from a configuration, for load testing streams, pipelines and
+    // many connections without hardware. See the simulatedDevices option of getDevices. Each
+    // endpoint moves data at its own bandwidth (one transfer at a time), adds its latency to
+    // every transfer, and may randomly NAK (adding a delay) or time out. IN endpoints either
+    // echo what the OUT endpoints of their interface were sent, or generate a counting byte
+    // pattern; OUT endpoints either feed that echo or discard what they are sent. Interrupt
+    // endpoints complete at most one transfer per pollingInterval.
+    private static class SimulatedDevice extends ConnectedDevice {
+        // Written bytes held for echoing, per interface; anything beyond this is dropped.
+        private static final int ECHO_CAPACITY = 1 << 20;
+
+        private static class SimEndpoint {
+            final int interfaceNumber;
+            final int direction;
+            final int type;
+            final boolean echo;
+            final int maxPacketSize;
+            final long intervalNanos;
+            final long bandwidth;
+            final long latencyNanos;
+            final double nakRate;
+            final long nakNanos;
+            final double timeoutRate;
+            // When the endpoint is next free to move data.
+            long busyUntil;
+            byte nextByte;
 
-        int direction = directionFromName(params.getString("direction"));
-        int requestType = controlRequestTypeFromName(params.getString("requestType"));
-        int recipient = recipientFromName(params.getString("recipient"));
+            SimEndpoint(int interfaceNumber, JSONObject config) throws JSONException, UsbError {
+                this.interfaceNumber = interfaceNumber;
+                direction = directionFromName(config.getString("direction"));
+                type = transferTypeFromName(config.optString("type", "bulk"));
+                if (type == UsbConstants.USB_ENDPOINT_XFER_CONTROL) {
+                    throw new UsbError("Simulated endpoints are bulk or interrupt");
+                }
+                String mode = config.optString("mode", "echo");
+                if (!"echo".equals(mode) && !(direction == UsbConstants.USB_DIR_IN ?
+                        "generator" : "sink").equals(mode)) {
+                    throw new UsbError("Unknown simulated endpoint mode: " + mode);
+                }
+                echo = "echo".equals(mode);
+                maxPacketSize = config.optInt("maximumPacketSize",
+                        type == UsbConstants.USB_ENDPOINT_XFER_BULK ? 512 : 64);
+                intervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                        Math.max(1, config.optInt("pollingInterval", 1)));
+                bandwidth = config.optLong("bandwidth", 0);
+                latencyNanos = TimeUnit.MICROSECONDS.toNanos(
+                        (long) (config.optDouble("latencyMs", 0) * 1000));
+                nakRate = config.optDouble("nakRate", 0);
+                nakNanos = TimeUnit.MICROSECONDS.toNanos(
+                        (long) (config.optDouble("nakMs", 1) * 1000));
+                timeoutRate = config.optDouble("timeoutRate", 0);
+            }
 
-        byte[] transferBuffer = getByteBufferForTransfer(args, params, UsbConstants.USB_DIR_OUT);
-        byte[] receiveBuffer = getByteBufferForTransfer(args, params, UsbConstants.USB_DIR_IN);
+            // Reserves the endpoint for |length| bytes from |now| on, and returns when the
+            // transfer completes.
+            long schedule(long now, long openedAt, int length, Random random) {
+                long start = Math.max(now, busyUntil);
+                if (type == UsbConstants.USB_ENDPOINT_XFER_INT) {
+                    // The next poll after the endpoint is free.
+                    start = openedAt + ((start - openedAt) / intervalNanos + 1) * intervalNanos;
+                }
+                if (nakRate > 0 && random.nextDouble() < nakRate) {
+                    start += nakNanos;
+                }
+                busyUntil = start + (bandwidth > 0 ? length * 1000000000L / bandwidth : 0);
+                return busyUntil + latencyNanos;
+            }
 
-        int ret = dev.controlTransfer(
-                direction | requestType | recipient,
-                params.getInt("request"),
-                params.getInt("value"),
-                params.getInt("index"),
-                transferBuffer,
-                receiveBuffer,
-                params.getInt("timeout"));
-        if (ret < 0) {
-            throw new UsbError("Control transfer returned " + ret);
+            void generate(ByteBuffer buffer, int length) {
+                for (int i = 0; i < length; i++) {
+                    buffer.put(nextByte++);
+                }
+            }
         }
 
-        /* control transfer is bidirectional, buffer should alway be passed */
-        callbackContext.success(Arrays.copyOf(receiveBuffer, receiveBuffer.length));
-    }
-    private void bulkTransfer(CordovaArgs args, JSONObject params,
-            final CallbackContext callbackContext) throws JSONException, UsbError {
-        ConnectedDevice dev = getDevice(params);
-        int endpointAddress = params.getInt("endpoint");
-        int interfaceNumber = endpointAddress >> ENDPOINT_IF_SHIFT;
-        int endpointNumber = endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1);
-        if (interfaceNumber >= dev.getInterfaceCount() ||
-                endpointNumber >= dev.getEndpointCount(interfaceNumber)) {
-            throw new UsbError("Enpoint not found: " + endpointAddress);
+        final int mVendorId;
+        final int mProductId;
+        private final byte[] mRawDescriptors;
+        private final SimEndpoint[][] mEndpoints;
+        // Per interface, in write mode.
+        private final ByteBuffer[] mEchoBuffers;
+        // Echo IN requests waiting for data, per interface.
+        private final ArrayList<ArrayDeque<SimRequest>> mEchoWaiters =
+                new ArrayList<ArrayDeque<SimRequest>>();
+        // Requests that will only complete when cancelled.
+        private final ArrayList<SimRequest> mHeldRequests = new ArrayList<SimRequest>();
+        private final LinkedBlockingQueue<QueuedRequest> mCompletedRequests =
+                new LinkedBlockingQueue<QueuedRequest>();
+        // Added to mCompletedRequests on close, to end requestWait().
+        private final SimRequest mClosedMarker = new SimRequest(null, null);
+        private final Random mRandom;
+        private final long mOpenedAt = System.nanoTime();
+        private final long mControlLatencyNanos;
+        private boolean mClosed;
+
+        SimulatedDevice(JSONObject config) throws JSONException, UsbError {
+            mVendorId = config.optInt("vendorId", FakeDevice.VID);
+            mProductId = config.optInt("productId", FakeDevice.PID);
+            mRandom = config.has("seed") ? new Random(config.getLong("seed")) : new Random();
+            mControlLatencyNanos = TimeUnit.MICROSECONDS.toNanos(
+                    (long) (config.optDouble("controlLatencyMs", 0) * 1000));
+            JSONArray interfaces = config.getJSONArray("interfaces");
+            mEndpoints = new SimEndpoint[interfaces.length()][];
+            mEchoBuffers = new ByteBuffer[interfaces.length()];
+            for (int i = 0; i < interfaces.length(); i++) {
+                JSONArray endpoints = interfaces.getJSONObject(i).getJSONArray("endpoints");
+                mEndpoints[i] = new SimEndpoint[endpoints.length()];
+                for (int j = 0; j < endpoints.length(); j++) {
+                    mEndpoints[i][j] = new SimEndpoint(i, endpoints.getJSONObject(j));
+                }
+                mEchoWaiters.add(new ArrayDeque<SimRequest>());
+            }
+            mRawDescriptors = buildDescriptors();
         }
-        int direction = directionFromName(params.getString("direction"));
-        byte[] buffer = getByteBufferForTransfer(args, params, direction);
 
-        int ret = dev.bulkTransfer(interfaceNumber, endpointNumber, direction, buffer,
-                params.getInt("timeout"));
-        if (ret < 0) {
-            throw new UsbError("Bulk transfer returned " + ret);
+        // A device descriptor, then one configuration holding a vendor-specific interface per
+        // configured interface. Endpoint numbers are assigned in order, per direction.
+        private byte[] buildDescriptors() throws UsbError {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int totalLength = 9;
+            for (SimEndpoint[] endpoints : mEndpoints) {
+                totalLength += 9 + 7 * endpoints.length;
+            }
+            byte[] header = {
+                18, 0x01, 0x00, 0x02, 0x00, 0x00, 0x00, 64,
+                (byte) mVendorId, (byte) (mVendorId >> 8),
+                (byte) mProductId, (byte) (mProductId >> 8),
+                0x00, 0x01, 0x00, 0x00, 0x00, 0x01,
+                9, 0x02, (byte) totalLength, (byte) (totalLength >> 8),
+                (byte) mEndpoints.length, 0x01, 0x00, (byte) 0x80, 50,
+            };
+            out.write(header, 0, header.length);
+            int nextIn = 1;
+            int nextOut = 1;
+            for (int i = 0; i < mEndpoints.length; i++) {
+                byte[] iface = {9, 0x04, (byte) i, 0x00, (byte) mEndpoints[i].length,
+                        (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00};
+                out.write(iface, 0, iface.length);
+                for (SimEndpoint ep : mEndpoints[i]) {
+                    boolean in = ep.direction == UsbConstants.USB_DIR_IN;
+                    int number = in ? nextIn++ : nextOut++;
+                    if (number > 15) {
+                        throw new UsbError("Too many simulated endpoints");
+                    }
+                    byte[] desc = {7, 0x05, (byte) (number | ep.direction), (byte) ep.type,
+                            (byte) ep.maxPacketSize, (byte) (ep.maxPacketSize >> 8),
+                            (byte) TimeUnit.NANOSECONDS.toMillis(ep.intervalNanos)};
+                    out.write(desc, 0, desc.length);
+                }
+            }
+            return out.toByteArray();
         }
-        if (direction == UsbConstants.USB_DIR_IN) {
-            callbackContext.success(Arrays.copyOf(buffer, ret));
-        } else {
-            callbackContext.success();
+
+        int getInterfaceCount() {
+            return mEndpoints.length;
         }
-    }
-    private void interruptTransfer(CordovaArgs args, JSONObject params,
-                                   final CallbackContext callbackContext) throws JSONException, UsbError {
-        ConnectedDevice dev = getDevice(params);
-        int endpointAddress = params.getInt("endpoint");
-        int interfaceNumber = endpointAddress >> ENDPOINT_IF_SHIFT;
-        int endpointNumber = endpointAddress & ((1 << ENDPOINT_IF_SHIFT) - 1);
-        if (interfaceNumber >= dev.getInterfaceCount() ||
-                endpointNumber >= dev.getEndpointCount(interfaceNumber)) {
-            throw new UsbError("Enpoint not found: " + endpointAddress);
+        int getEndpointCount(int interfaceNumber) {
+            return mEndpoints[interfaceNumber].length;
         }
-
-        int direction = directionFromName(params.getString("direction"));
-        byte[] buffer = getByteBufferForTransfer(args, params, direction);
-
-        int ret = dev.interruptTransfer(interfaceNumber, endpointNumber, direction, buffer,
-                params.getInt("timeout"));
-        if (ret < 0) {
-            throw new UsbError("Interrupt transfer returned " + ret);
+        byte[] getRawDescriptors() {
+            return mRawDescriptors;
         }
-        if (direction == UsbConstants.USB_DIR_IN) {
-            callbackContext.success(Arrays.copyOf(buffer, ret));
-        } else {
-            callbackContext.success();
+        boolean claimInterface(int interfaceNumber) {
+            return true;
         }
-    }
-    private ConnectedDevice getDevice(JSONObject params) throws JSONException, UsbError {
-        int handle = params.getInt("handle");
-        ConnectedDevice d = mConnections.get(handle);
-        if (d == null) {
-            throw new UsbError("Unknown connection handle: " + handle);
+        boolean releaseInterface(int interfaceNumber) {
+            return true;
         }
-        return d;
-    }
-    private int getInterfaceNumber(JSONObject params, ConnectedDevice device)
-            throws JSONException, UsbError {
-        int interfaceNumber = params.getInt("interfaceNumber");
-        if (interfaceNumber >= device.getInterfaceCount()) {
-            throw new UsbError("interface number " + interfaceNumber + " out of range 0.."
-                    + device.getInterfaceCount());
+        int controlTransfer(int requestType, int request, int value, int index,
+                            byte[] buffer, int length, int timeout) {
+            sleepUntil(System.nanoTime() + mControlLatencyNanos);
+            if ((requestType & UsbConstants.USB_ENDPOINT_DIR_MASK) == UsbConstants.USB_DIR_IN) {
+                // As FakeDevice, reflect params into the response data.
+                int len = Math.min(3, length);
+                byte[] response = {(byte)request, (byte)value, (byte)index};
+                System.arraycopy(response, 0, buffer, 0, len);
+                return len;
+            }
+            return length;
         }
-        return interfaceNumber;
-    }
-
-    // Internal exception type used to simplify the action dispatcher error paths.
-    private static class UsbError extends RuntimeException {
-        UsbError(String msg) {
-            super(msg);
+        int bulkTransfer(int interfaceNumber, int endpointNumber, int direction,
+                         byte[] buffer, int length, int timeout)
+                throws UsbError {
+            return transfer(getEndpoint(interfaceNumber, endpointNumber, direction),
+                    ByteBuffer.wrap(buffer, 0, length), length, timeout);
         }
-    }
-
-    // Concrete subclass of ConnectedDevice that routes calls through to the real Android APIs.
-    // The implementation of this class is by design very minimalist: if the methods are kept free
-    // of logic/control statements as the test strategy (see FakeDevice) does not cover this class.
-    private static class RealDevice extends ConnectedDevice {
-        RealDevice(UsbDevice device, UsbDeviceConnection connection) {
-            mDevice = device;
-            mConnection = connection;
+        int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
+                              byte[] buffer, int length, int timeout)
+                throws UsbError {
+            return transfer(getEndpoint(interfaceNumber, endpointNumber, direction),
+                    ByteBuffer.wrap(buffer, 0, length), length, timeout);
         }
-
-        private final UsbDevice mDevice;
-        private final UsbDeviceConnection mConnection;
-
-        int getInterfaceCount() {
-            return mDevice.getInterfaceCount();
+        QueuedRequest newRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError {
+            return new SimRequest(getEndpoint(interfaceNumber, endpointNumber, direction),
+                    listener);
         }
-        int getEndpointCount(int interfaceNumber) {
-            return mDevice.getInterface(interfaceNumber).getEndpointCount();
+        QueuedRequest requestWait() {
+            try {
+                QueuedRequest request = mCompletedRequests.take();
+                if (request == mClosedMarker) {
+                    mCompletedRequests.add(mClosedMarker);
+                    return null;
+                }
+                return request;
+            } catch (InterruptedException e) {
+                return null;
+            }
         }
-        void describeInterface(int interfaceNumber, JSONObject res) throws JSONException {
-            UsbInterface i = mDevice.getInterface(interfaceNumber);
-            res.put("alternateSetting", 0);  // TODO: In LOLLIPOP use i.getAlternateSetting());
-            res.put("interfaceClass", i.getInterfaceClass());
-            res.put("interfaceProtocol", i.getInterfaceProtocol());
-            res.put("interfaceSubclass", i.getInterfaceSubclass());
-            byte[] rawDescriptors = mConnection.getRawDescriptors();
-            byte[] extraDescriptor = null;
-            int idx = 0;
-            while (idx < rawDescriptors.length) {
-                byte length = rawDescriptors[idx];
-                byte descriptorType = rawDescriptors[idx + 1];
-                if (descriptorType == 0x04) {
-                    // interface descriptor
-                    int descriptorInterfaceNumber = rawDescriptors[idx + 2];
-                    if (interfaceNumber == descriptorInterfaceNumber) {
-                        Log.d(TAG, "Interface descriptor found: " + interfaceNumber);
-                        idx += length;
-                        if (idx < rawDescriptors.length) {
-                            length = rawDescriptors[idx];
-                            descriptorType = rawDescriptors[idx + 1];
-                            if (descriptorType == 0x01 || descriptorType == 0x02 || descriptorType == 0x04 || descriptorType == 0x05) {
-                                break;
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+            mCompletedRequests.add(mClosedMarker);
+        }
+
+        private SimEndpoint getEndpoint(int interfaceNumber, int endpointNumber, int direction)
+                throws UsbError {
+            SimEndpoint ep = mEndpoints[interfaceNumber][endpointNumber];
+            if (ep.direction != direction) {
+                throw new UsbError("Endpoint has direction: " + directionName(ep.direction));
+            }
+            return ep;
+        }
+
+        // Runs a synchronous transfer. Data moves when the transfer starts, and the call returns
+        // when it completes.
+        private int transfer(SimEndpoint ep, ByteBuffer buffer, int length, int timeout) {
+            long now = System.nanoTime();
+            long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+            long completeAt;
+            int transferred;
+            synchronized (this) {
+                if (ep.timeoutRate > 0 && mRandom.nextDouble() < ep.timeoutRate) {
+                    completeAt = -1;
+                    transferred = -1;
+                } else {
+                    if (ep.echo && ep.direction == UsbConstants.USB_DIR_IN) {
+                        try {
+                            while (echoAvailable(ep) == 0 && !mClosed) {
+                                long remaining = deadline - System.nanoTime();
+                                if (timeout > 0 && remaining <= 0) {
+                                    return -1;
+                                }
+                                if (timeout > 0) {
+                                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                                } else {
+                                    wait();
+                                }
                             }
-                            extraDescriptor = new byte[length];
-                            System.arraycopy(rawDescriptors, idx, extraDescriptor, 0, length);
-                            break;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return -1;
                         }
-                        break;
+                        if (mClosed) {
+                            return -1;
+                        }
+                        now = System.nanoTime();
                     }
+                    transferred = move(ep, buffer, length);
+                    completeAt = ep.schedule(now, mOpenedAt, transferred, mRandom);
                 }
-                idx += length;
             }
-            if (null == extraDescriptor) {
-                extraDescriptor = new byte[0];
+            if (completeAt < 0) {
+                // An injected timeout.
+                sleepUntil(deadline);
+                return -1;
             }
-            res.put("extra_data", Base64.encodeToString(extraDescriptor, Base64.NO_WRAP));
-        }
-        void describeEndpoint(int interfaceNumber, int endpointNumber, JSONObject res)
-                throws JSONException {
-            UsbEndpoint ep = mDevice.getInterface(interfaceNumber).getEndpoint(endpointNumber);
-            res.put("direction", directionName(ep.getDirection()));
-            res.put("maximumPacketSize", ep.getMaxPacketSize());
-            res.put("pollingInterval", ep.getInterval());
-            res.put("type", endpointTypeName(ep.getType()));
+            sleepUntil(completeAt);
+            return transferred;
         }
-        boolean claimInterface(int interfaceNumber) {
-            return mConnection.claimInterface(mDevice.getInterface(interfaceNumber), true);
+
+        // Moves the data of a transfer of up to |length| bytes between |buffer| and |ep|, and
+        // returns the number of bytes moved. Must be called with the lock held.
+        private int move(SimEndpoint ep, ByteBuffer buffer, int length) {
+            if (ep.direction == UsbConstants.USB_DIR_OUT) {
+                if (ep.echo) {
+                    ByteBuffer echo = getEchoBuffer(ep.interfaceNumber);
+                    ByteBuffer data = buffer.duplicate();
+                    data.limit(data.position() + Math.min(length, echo.remaining()));
+                    echo.put(data);
+                    notifyAll();
+                    serveEchoWaiters(ep.interfaceNumber);
+                }
+                buffer.position(buffer.position() + length);
+                return length;
+            }
+            if (ep.type == UsbConstants.USB_ENDPOINT_XFER_INT) {
+                length = Math.min(length, ep.maxPacketSize);
+            }
+            if (!ep.echo) {
+                ep.generate(buffer, length);
+                return length;
+            }
+            ByteBuffer echo = getEchoBuffer(ep.interfaceNumber);
+            echo.flip();
+            int len = Math.min(echo.remaining(), length);
+            int limit = echo.limit();
+            echo.limit(echo.position() + len);
+            buffer.put(echo);
+            echo.limit(limit);
+            echo.compact();
+            return len;
         }
-        boolean releaseInterface(int interfaceNumber) {
-            return mConnection.releaseInterface(mDevice.getInterface(interfaceNumber));
+
+        private int echoAvailable(SimEndpoint ep) {
+            ByteBuffer echo = mEchoBuffers[ep.interfaceNumber];
+            return echo == null ? 0 : echo.position();
         }
-        private static String getResultString(byte[] in) {
-            String ret = "";
 
-            for(int n = 0; n < in.length; n++) {
-                String s = "0" + Integer.toHexString(in[n]);
-                ret += s.substring(s.length() - 2) + " ";
+        private ByteBuffer getEchoBuffer(int interfaceNumber) {
+            if (mEchoBuffers[interfaceNumber] == null) {
+                mEchoBuffers[interfaceNumber] = ByteBuffer.allocate(ECHO_CAPACITY);
             }
+            return mEchoBuffers[interfaceNumber];
+        }
 
-            return ret;
+        // Starts the echo IN requests of an interface that were waiting for data. Must be
+        // called with the lock held.
+        private void serveEchoWaiters(int interfaceNumber) {
+            ArrayDeque<SimRequest> waiters = mEchoWaiters.get(interfaceNumber);
+            while (!waiters.isEmpty() && mEchoBuffers[interfaceNumber].position() > 0) {
+                waiters.poll().start();
+            }
         }
-        int controlTransfer(int requestType, int request, int value, int index,
-                            byte[] transferBuffer, byte[] receiveBuffer, int timeout) {
-            UsbEndpoint ep = mDevice.getInterface(0).getEndpoint(0);
-            int result = -1;
 
-            if(ep.getType() == UsbConstants.USB_ENDPOINT_XFER_INT &&
-                    ep.getDirection() == UsbConstants.USB_DIR_IN) {
-                ByteBuffer bb = ByteBuffer.wrap(receiveBuffer);
-                UsbRequest ur = new UsbRequest();
+        private static void sleepUntil(long nanoTime) {
+            long remaining = nanoTime - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-                ur.initialize(mConnection, ep);
+        private class SimRequest extends QueuedRequest {
+            private final SimEndpoint mSimEndpoint;
+            private ByteBuffer mQueuedBuffer;
+            private int mLength;
 
-                ur.queue(bb, receiveBuffer.length);
+            SimRequest(SimEndpoint endpoint, RequestListener listener) {
+                super(listener);
+                mSimEndpoint = endpoint;
+            }
 
-                result = mConnection.controlTransfer(requestType, request, value, index,
-                        transferBuffer, transferBuffer.length, timeout);
+            boolean queue(ByteBuffer buffer, int length) {
+                synchronized (SimulatedDevice.this) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    mQueuedBuffer = buffer;
+                    mLength = length;
+                    SimEndpoint ep = mSimEndpoint;
+                    if (ep.timeoutRate > 0 && mRandom.nextDouble() < ep.timeoutRate) {
+                        mHeldRequests.add(this);
+                    } else if (ep.echo && ep.direction == UsbConstants.USB_DIR_IN
+                            && echoAvailable(ep) == 0) {
+                        mEchoWaiters.get(ep.interfaceNumber).add(this);
+                    } else {
+                        start();
+                    }
+                }
+                return true;
+            }
 
-                if(result >= 0) {
-                    if (mConnection.requestWait() != ur) {
-                        Log.e(TAG, "[controlTransfer] requestWait failed");
+            // Moves the request's data and schedules its completion. Must be called with the
+            // device lock held.
+            void start() {
+                int transferred = move(mSimEndpoint, mQueuedBuffer, mLength);
+                long delay = mSimEndpoint.schedule(System.nanoTime(), mOpenedAt, transferred,
+                        mRandom) - System.nanoTime();
+                if (delay <= 0) {
+                    mCompletedRequests.add(this);
+                    return;
+                }
+                sTimer.schedule(new Runnable() {
+                    public void run() {
+                        mCompletedRequests.add(SimRequest.this);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            }
 
-                        return -1;
+            boolean cancel() {
+                synchronized (SimulatedDevice.this) {
+                    if (mHeldRequests.remove(this)
+                            || mEchoWaiters.get(mSimEndpoint.interfaceNumber).remove(this)) {
+                        mCompletedRequests.add(this);
                     }
-                } else {
-                    Log.e(TAG, "[controlTransfer] Transfer failed");
                 }
-            } else {
-                result = mConnection.controlTransfer(requestType, request, value, index,
-                        transferBuffer, transferBuffer.length, timeout);
-
-                receiveBuffer = transferBuffer.clone();
+                return true;
             }
+            void close() {
+            }
+        }
+    };
+
+    // Passes everything through to another device, recording each transfer and queued request
+    // into a UsbSession (see setSessionRecording).
+    private static class RecordingDevice extends ConnectedDevice {
+        private final ConnectedDevice mDevice;
+        final UsbSession mSession;
+
+        RecordingDevice(ConnectedDevice device, int maxBytes) {
+            mDevice = device;
+            mSession = new UsbSession(device.getRawDescriptors(), maxBytes);
+        }
 
-            return result;
+        int getInterfaceCount() {
+            return mDevice.getInterfaceCount();
+        }
+        int getEndpointCount(int interfaceNumber) {
+            return mDevice.getEndpointCount(interfaceNumber);
+        }
+        byte[] getRawDescriptors() {
+            return mSession.descriptors;
+        }
+        boolean claimInterface(int interfaceNumber) {
+            return mDevice.claimInterface(interfaceNumber);
+        }
+        boolean releaseInterface(int interfaceNumber) {
+            return mDevice.releaseInterface(interfaceNumber);
+        }
+        int controlTransfer(int requestType, int request, int value, int index,
+                            byte[] buffer, int length, int timeout) {
+            long startedAt = System.nanoTime();
+            int ret = mDevice.controlTransfer(requestType, request, value, index, buffer, length,
+                    timeout);
+            UsbSession.Event event = newEvent(UsbSession.CONTROL, startedAt, 0, requestType,
+                    length, timeout, ret, buffer);
+            event.request = request;
+            event.value = value;
+            event.index = index;
+            mSession.add(event);
+            return ret;
         }
         int bulkTransfer(int interfaceNumber, int endpointNumber, int direction,
-                         byte[] buffer, int timeout)
+                         byte[] buffer, int length, int timeout)
                 throws UsbError {
-            int ret=0;
-            synchronized(this) {
-                UsbEndpoint ep = mDevice.getInterface(interfaceNumber).getEndpoint(endpointNumber);
-                if (ep.getDirection() != direction) {
-                    throw new UsbError("Endpoint has direction: " + directionName(ep.getDirection()));
-                }
-                ret = mConnection.bulkTransfer(ep, buffer, buffer.length, timeout);
-            }
+            long startedAt = System.nanoTime();
+            int ret = mDevice.bulkTransfer(interfaceNumber, endpointNumber, direction, buffer,
+                    length, timeout);
+            mSession.add(newEvent(UsbSession.BULK, startedAt,
+                    interfaceNumber << ENDPOINT_IF_SHIFT | endpointNumber, direction, length,
+                    timeout, ret, buffer));
             return ret;
         }
         int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
-                              byte[] buffer, int timeout)
+                              byte[] buffer, int length, int timeout)
                 throws UsbError {
-            UsbEndpoint ep = mDevice.getInterface(interfaceNumber).getEndpoint(endpointNumber);
-            if (ep.getDirection() != direction) {
-                throw new UsbError("Endpoint has direction: " + directionName(ep.getDirection()));
+            long startedAt = System.nanoTime();
+            int ret = mDevice.interruptTransfer(interfaceNumber, endpointNumber, direction,
+                    buffer, length, timeout);
+            mSession.add(newEvent(UsbSession.INTERRUPT, startedAt,
+                    interfaceNumber << ENDPOINT_IF_SHIFT | endpointNumber, direction, length,
+                    timeout, ret, buffer));
+            return ret;
+        }
+        QueuedRequest newRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError {
+            RecordingRequest request = new RecordingRequest(listener,
+                    interfaceNumber << ENDPOINT_IF_SHIFT | endpointNumber, direction);
+            request.mRequest = mDevice.newRequest(interfaceNumber, endpointNumber, direction,
+                    request);
+            return request;
+        }
+        QueuedRequest requestWait() {
+            QueuedRequest completed = mDevice.requestWait();
+            if (completed == null) {
+                return null;
+            }
+            RecordingRequest request = (RecordingRequest) completed.mListener;
+            ByteBuffer buffer = request.mBuffer;
+            int transferred = buffer.position();
+            byte[] data = null;
+            if (request.mDirection == UsbConstants.USB_DIR_IN) {
+                data = new byte[transferred];
+                for (int i = 0; i < transferred; i++) {
+                    data[i] = buffer.get(i);
+                }
             }
-            return mConnection.bulkTransfer(ep, buffer, buffer.length, timeout);
+            UsbSession.Event event = newEvent(UsbSession.QUEUED, request.mQueuedAt,
+                    request.mEndpointAddress, request.mDirection, request.mLength, 0,
+                    transferred, null);
+            event.data = data != null ? data : request.mOutData;
+            event.dataLength = event.data.length;
+            event.flags = request.mCancelled ? UsbSession.FLAG_CANCELLED : 0;
+            mSession.add(event);
+            return request;
         }
         void close() {
-            mConnection.close();
+            mDevice.close();
+        }
+
+        // Describes a transfer that started at |startedAt| and has just completed, for an
+        // immediate mSession.add(). Its data is the first |result| bytes of |buffer| for IN
+        // transfers, and the first |length| for OUT.
+        private UsbSession.Event newEvent(int kind, long startedAt, int endpointAddress,
+                int requestType, int length, int timeout, int result, byte[] buffer) {
+            UsbSession.Event event = new UsbSession.Event();
+            event.kind = kind;
+            event.startNanos = mSession.elapsedNanos(startedAt);
+            event.durationNanos = System.nanoTime() - startedAt;
+            event.requestType = requestType;
+            event.endpoint = endpointAddress;
+            event.length = length;
+            event.timeout = timeout;
+            event.result = result;
+            boolean in = (requestType & UsbConstants.USB_ENDPOINT_DIR_MASK)
+                    == UsbConstants.USB_DIR_IN;
+            event.data = buffer == null ? new byte[0] : buffer;
+            event.dataLength = buffer == null ? 0
+                    : Math.min(buffer.length, Math.max(0, in ? result : length));
+            return event;
+        }
+
+        // Wraps a request of the inner device, which names this wrapper as its listener so
+        // requestWait() can map completions back to it.
+        private static class RecordingRequest extends QueuedRequest implements RequestListener {
+            final int mEndpointAddress;
+            final int mDirection;
+            QueuedRequest mRequest;
+            long mQueuedAt;
+            int mLength;
+            byte[] mOutData;
+            boolean mCancelled;
+
+            RecordingRequest(RequestListener listener, int endpointAddress, int direction) {
+                super(listener);
+                mEndpointAddress = endpointAddress;
+                mDirection = direction;
+            }
+
+            boolean queue(ByteBuffer buffer, int length) {
+                mQueuedAt = System.nanoTime();
+                mLength = length;
+                mCancelled = false;
+                mOutData = null;
+                if (mDirection == UsbConstants.USB_DIR_OUT) {
+                    mOutData = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        mOutData[i] = buffer.get(buffer.position() + i);
+                    }
+                }
+                return mRequest.queue(buffer, length);
+            }
+            boolean cancel() {
+                mCancelled = true;
+                return mRequest.cancel();
+            }
+            void close() {
+                mRequest.close();
+            }
+            public void onRequestComplete(QueuedRequest request) {
+                // Completions are dispatched by the CompletionReactor on the outer device.
+            }
         }
     };
 
-    // Fake device, used in test code.
-    private static class FakeDevice extends ConnectedDevice {
-        static final int ID = -1000000;
-        static final int VID = 0x18d1;  // Google VID.
-        static final int PID = 0x2001;  // Reserved for non-production uses.
+    // Serves a recorded UsbSession back, for testing and benchmarking without the device. Each
+    // endpoint (control transfers share one) replays its recorded events in order: a transfer
+    // or queued request takes the next one and gets its result and IN data, after its
+    // recorded duration when |realtime| is set. An endpoint with nothing left to replay fails
+    // synchronous transfers, and leaves requests queued until they are cancelled, as does a
+    // request that was cancelled in the recording. Transfers that do not match the recording
+    // fail and are counted in mMismatches.
+    private static class ReplayDevice extends ConnectedDevice {
+        private static final int CONTROL_KEY = -1;
 
-        private byte[] echoBytes = null;
+        private final UsbSession mSession;
+        private final boolean mRealtime;
+        private final HashMap<Integer, ArrayDeque<UsbSession.Event>> mEvents =
+                new HashMap<Integer, ArrayDeque<UsbSession.Event>>();
+        private final ArrayList<ReplayRequest> mPendingRequests = new ArrayList<ReplayRequest>();
+        private final LinkedBlockingQueue<QueuedRequest> mCompletedRequests =
+                new LinkedBlockingQueue<QueuedRequest>();
+        // Added to mCompletedRequests on close, to end requestWait().
+        private final ReplayRequest mClosedMarker = new ReplayRequest(null, 0, 0);
+        int mMismatches;
+
+        ReplayDevice(UsbSession session, boolean realtime) {
+            mSession = session;
+            mRealtime = realtime;
+            ArrayList<UsbSession.Event> events = session.getEvents();
+            // Events are recorded as they complete; replay them in the order they started.
+            Collections.sort(events, new Comparator<UsbSession.Event>() {
+                public int compare(UsbSession.Event a, UsbSession.Event b) {
+                    return a.startNanos < b.startNanos ? -1 : a.startNanos > b.startNanos ? 1 : 0;
+                }
+            });
+            for (UsbSession.Event event : events) {
+                int key = event.kind == UsbSession.CONTROL ? CONTROL_KEY : event.endpoint;
+                ArrayDeque<UsbSession.Event> queue = mEvents.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<UsbSession.Event>();
+                    mEvents.put(key, queue);
+                }
+                queue.add(event);
+            }
+        }
 
         int getInterfaceCount() {
-            return 1;
+            return getDescriptors().interfaces.size();
         }
         int getEndpointCount(int interfaceNumber) {
-            return 2;
+            return getDescriptors().interfaces.get(interfaceNumber).endpoints.size();
         }
-        void describeInterface(int interfaceNumber, JSONObject res) throws JSONException {
-            res.put("alternateSetting", 0);
-            res.put("interfaceClass", 255);
-            res.put("interfaceProtocol", 255);
-            res.put("interfaceSubclass", 255);
-            res.put("extra_data", new JSONObject());
-        }
-        void describeEndpoint(int interfaceNumber, int endpointNumber, JSONObject res)
-                throws JSONException {
-            res.put("direction", directionName(endpointNumber == 0 ?
-                        UsbConstants.USB_DIR_IN : UsbConstants.USB_DIR_OUT));
-            res.put("maximumPacketSize", 64);
-            res.put("pollingInterval", 0);
-            res.put("type", endpointTypeName(UsbConstants.USB_ENDPOINT_XFER_BULK));
+        byte[] getRawDescriptors() {
+            return mSession.descriptors;
         }
         boolean claimInterface(int interfaceNumber) {
             return true;
@@ -715,49 +4304,145 @@ public class ChromeUsb extends CordovaPlugin {
             return true;
         }
         int controlTransfer(int requestType, int request, int value, int index,
-                            byte[] transferBuffer, byte[] receiveBuffer, int timeout) {
-            if ((requestType & UsbConstants.USB_ENDPOINT_DIR_MASK) == UsbConstants.USB_DIR_IN) {
-                // For an 'IN' transfer, reflect params into the response data.
-                receiveBuffer[0] = (byte)request;
-                receiveBuffer[1] = (byte)value;
-                receiveBuffer[2] = (byte)index;
-                return 3;
+                            byte[] buffer, int length, int timeout) {
+            UsbSession.Event event = nextEvent(CONTROL_KEY);
+            if (event == null || event.requestType != requestType || event.request != request
+                    || event.value != value || event.index != index) {
+                return mismatch("control transfer " + request);
             }
-            return transferBuffer.length;
+            return replay(event, buffer, length);
         }
         int bulkTransfer(int interfaceNumber, int endpointNumber, int direction,
-                         byte[] buffer, int timeout)
-                throws UsbError {
-            if (direction == UsbConstants.USB_DIR_OUT) {
-                echoBytes = buffer;
-                return echoBytes.length;
+                         byte[] buffer, int length, int timeout) {
+            return replayTransfer(UsbSession.BULK, interfaceNumber, endpointNumber, direction,
+                    buffer, length);
+        }
+        int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
+                              byte[] buffer, int length, int timeout) {
+            return replayTransfer(UsbSession.INTERRUPT, interfaceNumber, endpointNumber,
+                    direction, buffer, length);
+        }
+        QueuedRequest newRequest(int interfaceNumber, int endpointNumber, int direction,
+                RequestListener listener) throws UsbError {
+            return new ReplayRequest(listener,
+                    interfaceNumber << ENDPOINT_IF_SHIFT | endpointNumber, direction);
+        }
+        QueuedRequest requestWait() {
+            try {
+                QueuedRequest request = mCompletedRequests.take();
+                if (request == mClosedMarker) {
+                    mCompletedRequests.add(mClosedMarker);
+                    return null;
+                }
+                return request;
+            } catch (InterruptedException e) {
+                return null;
             }
-            // IN transfer.
-            if (echoBytes == null) {
-                return 0;
+        }
+        void close() {
+            mCompletedRequests.add(mClosedMarker);
+        }
+
+        private int replayTransfer(int kind, int interfaceNumber, int endpointNumber,
+                int direction, byte[] buffer, int length) {
+            int endpointAddress = interfaceNumber << ENDPOINT_IF_SHIFT | endpointNumber;
+            UsbSession.Event event = nextEvent(endpointAddress);
+            if (event == null || event.kind != kind || event.requestType != direction) {
+                return mismatch("transfer on endpoint " + endpointAddress);
             }
-            int len = Math.min(echoBytes.length, buffer.length);
-            System.arraycopy(echoBytes, 0, buffer, 0, len);
-            echoBytes = null;
-            return len;
+            return replay(event, buffer, length);
         }
-        int interruptTransfer(int interfaceNumber, int endpointNumber, int direction,
-                              byte[] buffer, int timeout)
-                throws UsbError {
-            if (direction == UsbConstants.USB_DIR_OUT) {
-                echoBytes = buffer;
-                return echoBytes.length;
+
+        private synchronized UsbSession.Event nextEvent(int key) {
+            ArrayDeque<UsbSession.Event> queue = mEvents.get(key);
+            return queue == null ? null : queue.poll();
+        }
+
+        private synchronized int mismatch(String what) {
+            mMismatches++;
+            Log.w(TAG, "Replay has no matching " + what);
+            return -1;
+        }
+
+        // Returns the recorded result of a synchronous transfer, copying in its IN data.
+        private int replay(UsbSession.Event event, byte[] buffer, int length) {
+            if (mRealtime) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(event.durationNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
-            // IN transfer.
-            if (echoBytes == null) {
-                return 0;
+            if ((event.requestType & UsbConstants.USB_ENDPOINT_DIR_MASK)
+                    == UsbConstants.USB_DIR_IN && event.result > 0) {
+                int copied = Math.min(Math.min(event.result, event.data.length), length);
+                System.arraycopy(event.data, 0, buffer, 0, copied);
+                return copied;
             }
-            int len = Math.min(echoBytes.length, buffer.length);
-            System.arraycopy(echoBytes, 0, buffer, 0, len);
-            echoBytes = null;
-            return len;
+            return event.result;
         }
-        void close() {
+
+        private void complete(final ReplayRequest request) {
+            if (!mRealtime || request.mEvent.durationNanos <= 0) {
+                mCompletedRequests.add(request);
+                return;
+            }
+            sTimer.schedule(new Runnable() {
+                public void run() {
+                    mCompletedRequests.add(request);
+                }
+            }, request.mEvent.durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private class ReplayRequest extends QueuedRequest {
+            private final int mEndpointAddress;
+            private final int mDirection;
+            UsbSession.Event mEvent;
+
+            ReplayRequest(RequestListener listener, int endpointAddress, int direction) {
+                super(listener);
+                mEndpointAddress = endpointAddress;
+                mDirection = direction;
+            }
+
+            boolean queue(ByteBuffer buffer, int length) {
+                synchronized (ReplayDevice.this) {
+                    ArrayDeque<UsbSession.Event> queue = mEvents.get(mEndpointAddress);
+                    mEvent = queue == null ? null : queue.peek();
+                    if (mEvent == null || mEvent.kind != UsbSession.QUEUED
+                            || mEvent.requestType != mDirection) {
+                        if (mEvent != null) {
+                            mismatch("request on endpoint " + mEndpointAddress);
+                        }
+                        mPendingRequests.add(this);
+                        return true;
+                    }
+                    queue.poll();
+                    if ((mEvent.flags & UsbSession.FLAG_CANCELLED) != 0) {
+                        mPendingRequests.add(this);
+                        return true;
+                    }
+                }
+                int transferred = Math.min(Math.max(mEvent.result, 0), length);
+                if (mDirection == UsbConstants.USB_DIR_IN) {
+                    transferred = Math.min(transferred, mEvent.data.length);
+                    buffer.put(mEvent.data, 0, transferred);
+                } else {
+                    buffer.position(buffer.position() + transferred);
+                }
+                complete(this);
+                return true;
+            }
+            boolean cancel() {
+                synchronized (ReplayDevice.this) {
+                    if (mPendingRequests.remove(this)) {
+                        mCompletedRequests.add(this);
+                    }
+                }
+                return true;
+            }
+            void close() {
+            }
         }
     };
 
@@ -811,6 +4496,18 @@ public class ChromeUsb extends CordovaPlugin {
         }
     }
 
+    private static int transferTypeFromName(String type) throws UsbError {
+        if ("control".equals(type)) {
+            return UsbConstants.USB_ENDPOINT_XFER_CONTROL;
+        } else if ("bulk".equals(type)) {
+            return UsbConstants.USB_ENDPOINT_XFER_BULK;
+        } else if ("interrupt".equals(type)) {
+            return UsbConstants.USB_ENDPOINT_XFER_INT;
+        } else {
+            throw new UsbError("Unknown transfer type: " + type);
+        }
+    }
+
     private static int directionFromName(String direction) throws UsbError {
         direction = direction.toLowerCase();
         if ("out".equals(direction)) {
@@ -823,14 +4520,24 @@ public class ChromeUsb extends CordovaPlugin {
     }
 
     private static byte[] getByteBufferForTransfer(CordovaArgs args, JSONObject params,
-            int direction) throws JSONException {
+            int direction) throws JSONException, UsbError {
         if (direction == UsbConstants.USB_DIR_OUT) {
             // OUT transfer requires data positional argument.
             return args.getArrayBuffer(ARG_INDEX_DATA_ARRAYBUFFER);
         } else {
-            // IN transfer requires client to pass the length to receive.
-            return new byte[params.optInt("length")];
+            // IN transfer requires client to pass the length to receive. The buffer comes from
+            // the pool and must be released once the result has been sent.
+            return sBufferPool.acquire(checkLength(params.optInt("length")));
+        }
+    }
+
+    // The pool would hand out its smallest buffer for a negative size, leaving the transfer
+    // itself to fail obscurely, so bad lengths are refused up front.
+    private static int checkLength(int length) throws UsbError {
+        if (length < 0) {
+            throw new UsbError("Invalid transfer length: " + length);
         }
+        return length;
     }
 }
 
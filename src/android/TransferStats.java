@@ -0,0 +1,296 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import android.hardware.usb.UsbConstants;
+import android.util.SparseArray;
+
+// Transfer counters and latency histograms for one connection, kept per endpoint and direction.
+// Each endpoint's counters are separate atomics (one stripe per endpoint), and each endpoint is
+// driven by a single worker or reactor thread, so recording rarely contends. Once an endpoint has
+// been seen, recording takes no lock and allocates nothing. Snapshots and resets are not atomic
+// with respect to concurrent transfers, which may be counted on either side of them.
+class TransferStats {
+    // Key under which control transfers (endpoint zero) are counted.
+    static final int CONTROL_ENDPOINT = -1;
+    // Key under which transfer batches are counted as pending; their transfers are counted on
+    // their own endpoints.
+    static final int BATCH_QUEUE = -2;
+
+    private final SparseArray<EndpointStats> mEndpoints = new SparseArray<EndpointStats>();
+    // A copy of mEndpoints, replaced whenever an endpoint is added, so that looking up an
+    // endpoint already seen takes no lock.
+    private volatile Index mIndex = new Index(new int[0], new EndpointStats[0]);
+
+    private static class Index {
+        // Sorted, as SparseArray keeps its keys.
+        final int[] mKeys;
+        final EndpointStats[] mValues;
+
+        Index(int[] keys, EndpointStats[] values) {
+            mKeys = keys;
+            mValues = values;
+        }
+    }
+
+    // Returns the stats for |endpointAddress|, creating them on first use. Transfers may look
+    // their endpoint up each time; only the first lookup of an endpoint is synchronized.
+    EndpointStats forEndpoint(int endpointAddress) {
+        Index index = mIndex;
+        int i = Arrays.binarySearch(index.mKeys, endpointAddress);
+        if (i >= 0) {
+            return index.mValues[i];
+        }
+        synchronized (mEndpoints) {
+            EndpointStats stats = mEndpoints.get(endpointAddress);
+            if (stats == null) {
+                stats = new EndpointStats();
+                mEndpoints.put(endpointAddress, stats);
+                int size = mEndpoints.size();
+                int[] keys = new int[size];
+                EndpointStats[] values = new EndpointStats[size];
+                for (int j = 0; j < size; j++) {
+                    keys[j] = mEndpoints.keyAt(j);
+                    values[j] = mEndpoints.valueAt(j);
+                }
+                mIndex = new Index(keys, values);
+            }
+            return stats;
+        }
+    }
+
+    void reset() {
+        synchronized (mEndpoints) {
+            for (int i = 0; i < mEndpoints.size(); i++) {
+                mEndpoints.valueAt(i).reset();
+            }
+        }
+    }
+
+    // Returns {control: {in, out, ...}, batch: {...}, endpoints: {<address>: {in, out, ...}}},
+    // covering the endpoints that have been used; see EndpointStats.toJson().
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONObject jsonEndpoints = new JSONObject();
+        synchronized (mEndpoints) {
+            for (int i = 0; i < mEndpoints.size(); i++) {
+                JSONObject jsonEp = mEndpoints.valueAt(i).toJson();
+                if (mEndpoints.keyAt(i) == CONTROL_ENDPOINT) {
+                    json.put("control", jsonEp);
+                } else if (mEndpoints.keyAt(i) == BATCH_QUEUE) {
+                    json.put("batch", jsonEp);
+                } else {
+                    jsonEndpoints.put(Integer.toString(mEndpoints.keyAt(i)), jsonEp);
+                }
+            }
+        }
+        json.put("endpoints", jsonEndpoints);
+        return json;
+    }
+
+    static class EndpointStats {
+        final DirectionStats in = new DirectionStats();
+        final DirectionStats out = new DirectionStats();
+        // Transfers accepted for the endpoint and not yet answered, the most there have been at
+        // once, and the transfers refused because that many were already pending.
+        private final AtomicInteger mPending = new AtomicInteger();
+        private final AtomicInteger mMaxPending = new AtomicInteger();
+        private final AtomicLong mRejected = new AtomicLong();
+
+        DirectionStats forDirection(int direction) {
+            return direction == UsbConstants.USB_DIR_IN ? in : out;
+        }
+
+        // Counts a transfer as pending, unless |limit| already are, in which case it is counted
+        // as rejected and false is returned.
+        boolean addPending(int limit) {
+            int pending = mPending.get();
+            do {
+                if (pending >= limit) {
+                    mRejected.incrementAndGet();
+                    return false;
+                }
+            } while (!mPending.compareAndSet(pending, pending + 1));
+            int max = mMaxPending.get();
+            while (pending + 1 > max && !mMaxPending.compareAndSet(max, pending + 1)) {
+                max = mMaxPending.get();
+            }
+            return true;
+        }
+
+        void removePending() {
+            mPending.decrementAndGet();
+        }
+
+        void reset() {
+            in.reset();
+            out.reset();
+            mMaxPending.set(mPending.get());
+            mRejected.set(0);
+        }
+
+        // Returns {in, out, pending, maxPending, rejected}.
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("in", in.toJson());
+            json.put("out", out.toJson());
+            json.put("pending", mPending.get());
+            json.put("maxPending", mMaxPending.get());
+            json.put("rejected", mRejected.get());
+            return json;
+        }
+    }
+
+    static class DirectionStats {
+        private final AtomicLong mTransfers = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mErrors = new AtomicLong();
+        private final AtomicLong mTimeouts = new AtomicLong();
+        // Time spent waiting for the endpoint, time on the bus, and the sum of the two.
+        private final Histogram mQueueWait = new Histogram();
+        private final Histogram mOnWire = new Histogram();
+        private final Histogram mLatency = new Histogram();
+
+        // Records one transfer from its System.nanoTime() timestamps: when it was requested,
+        // when it was handed to the device, and when it completed. |result| is the number of
+        // bytes transferred or negative on failure; a failure that took at least |timeoutMs|
+        // (when non-zero) is counted as a timeout, as the platform does not tell the two apart.
+        void record(long requestedAt, long submittedAt, long completedAt, int result,
+                int timeoutMs) {
+            mTransfers.incrementAndGet();
+            if (result >= 0) {
+                mBytes.addAndGet(result);
+            } else if (timeoutMs > 0
+                    && completedAt - submittedAt >= TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+                mTimeouts.incrementAndGet();
+            } else {
+                mErrors.incrementAndGet();
+            }
+            mQueueWait.record((submittedAt - requestedAt) / 1000);
+            mOnWire.record((completedAt - submittedAt) / 1000);
+            mLatency.record((completedAt - requestedAt) / 1000);
+        }
+
+        void reset() {
+            mTransfers.set(0);
+            mBytes.set(0);
+            mErrors.set(0);
+            mTimeouts.set(0);
+            mQueueWait.reset();
+            mOnWire.reset();
+            mLatency.reset();
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("transfers", mTransfers.get());
+            json.put("bytes", mBytes.get());
+            json.put("errors", mErrors.get());
+            json.put("timeouts", mTimeouts.get());
+            json.put("queueWait", mQueueWait.toJson());
+            json.put("onWire", mOnWire.toJson());
+            json.put("latency", mLatency.toJson());
+            return json;
+        }
+    }
+
+    // Log-linear histogram of microsecond values: exact below 2^SUB_BITS, then each power of two
+    // is split into 2^SUB_BITS buckets, so reported percentiles are within 1/2^SUB_BITS of the
+    // true value. Values beyond 2^MAX_EXPONENT us (about 19 hours) land in the last bucket.
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 36;
+        private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts.incrementAndGet(bucketFor(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        // Returns the upper bound of the bucket holding the value at |fraction| of the recorded
+        // values, or 0 if none have been recorded.
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += mCounts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(bucketUpperBound(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            long count = mCount.get();
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("meanUs", count == 0 ? 0 : mSum.get() / count);
+            json.put("p50Us", percentile(0.5));
+            json.put("p99Us", percentile(0.99));
+            json.put("p999Us", percentile(0.999));
+            json.put("maxUs", mMax.get());
+            return json;
+        }
+
+        private static int bucketFor(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (value >> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+        }
+
+        private static long bucketUpperBound(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+            int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+            return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import android.hardware.usb.UsbConstants;
+
+// Records transfer submissions and completions into a preallocated ring, and exports them as a
+// pcap file of Linux usbmon records (LINKTYPE_USB_LINUX_MMAPPED), which Wireshark decodes.
+// Each slot holds a 64 byte usbmon header, encoded as the event is recorded, followed by up to
+// the snap length of payload. Writers claim slots with an atomic counter and never block or
+// allocate; once the ring is full the oldest records are overwritten. A slot's stamp is cleared
+// while it is being written and then set to its sequence number plus one, so an export skips
+// records that are overwritten while it copies them.
+class UsbCapture {
+    static final char EVENT_SUBMIT = 'S';
+    static final char EVENT_COMPLETE = 'C';
+    // usbmon status values: a submission is in progress, and a failed completion.
+    static final int STATUS_IN_PROGRESS = -115;  // -EINPROGRESS
+    static final int STATUS_ERROR = -5;  // -EIO
+
+    private static final int HEADER_SIZE = 64;
+    private static final int LINKTYPE_USB_LINUX_MMAPPED = 220;
+    // usbmon transfer types.
+    private static final int USBMON_ISOCHRONOUS = 0;
+    private static final int USBMON_INTERRUPT = 1;
+    private static final int USBMON_CONTROL = 2;
+    private static final int USBMON_BULK = 3;
+
+    private final int mRecordCount;
+    private final int mSnapLength;
+    private final int mSlotSize;
+    private final byte[] mSlots;
+    private final AtomicLongArray mStamps;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicLong mNextId = new AtomicLong(1);
+    // Wall clock time at mNanoBase, so that timestamps need only System.nanoTime().
+    private final long mWallBaseMicros;
+    private final long mNanoBase;
+
+    UsbCapture(int recordCount, int snapLength) {
+        mRecordCount = recordCount;
+        mSnapLength = snapLength;
+        mSlotSize = HEADER_SIZE + snapLength;
+        mSlots = new byte[recordCount * mSlotSize];
+        mStamps = new AtomicLongArray(recordCount);
+        mNanoBase = System.nanoTime();
+        mWallBaseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    // Returns the URB id tying a submission to its completion.
+    long nextId() {
+        return mNextId.getAndIncrement();
+    }
+
+    // Packs the fields of a control setup packet in the order they are sent.
+    static long setupPacket(int requestType, int request, int value, int index, int length) {
+        return (requestType & 0xffL) | (request & 0xffL) << 8 | (value & 0xffffL) << 16
+                | (index & 0xffffL) << 32 | (length & 0xffffL) << 48;
+    }
+
+    // Records an event. |endpointType| is a UsbConstants.USB_ENDPOINT_XFER_* value and
+    // |endpoint| the bEndpointAddress; |setup| (see setupPacket) is only used for control
+    // submissions. |length| is the requested or transferred length, of which the first
+    // |dataLength| bytes of |data| are present, if |data| is not null.
+    void record(long id, char event, int endpointType, int endpoint, int busNumber,
+            int deviceAddress, int status, int length, long setup, byte[] data, int dataLength) {
+        long sequence = mNextSequence.getAndIncrement();
+        int slot = (int) (sequence % mRecordCount);
+        int captured = data == null ? 0 : Math.min(dataLength, mSnapLength);
+        mStamps.set(slot, 0);
+        int offset = writeHeader(slot, id, event, endpointType, endpoint, busNumber,
+                deviceAddress, status, length, setup, captured);
+        if (captured > 0) {
+            System.arraycopy(data, 0, mSlots, offset, captured);
+        }
+        mStamps.set(slot, sequence + 1);
+    }
+
+    // As record(), for data held in a ByteBuffer from index zero. The buffer is not modified.
+    void record(long id, char event, int endpointType, int endpoint, int busNumber,
+            int deviceAddress, int status, int length, long setup, ByteBuffer data,
+            int dataLength) {
+        long sequence = mNextSequence.getAndIncrement();
+        int slot = (int) (sequence % mRecordCount);
+        int captured = data == null ? 0 : Math.min(dataLength, mSnapLength);
+        mStamps.set(slot, 0);
+        int offset = writeHeader(slot, id, event, endpointType, endpoint, busNumber,
+                deviceAddress, status, length, setup, captured);
+        for (int i = 0; i < captured; i++) {
+            mSlots[offset + i] = data.get(i);
+        }
+        mStamps.set(slot, sequence + 1);
+    }
+
+    // Fills in the usbmon header of |slot| and returns the offset of its data.
+    private int writeHeader(int slot, long id, char event, int endpointType, int endpoint,
+            int busNumber, int deviceAddress, int status, int length, long setup, int captured) {
+        int offset = slot * mSlotSize;
+        long micros = mWallBaseMicros
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mNanoBase);
+        boolean hasSetup = event == EVENT_SUBMIT
+                && endpointType == UsbConstants.USB_ENDPOINT_XFER_CONTROL;
+        boolean in = (endpoint & UsbConstants.USB_ENDPOINT_DIR_MASK) == UsbConstants.USB_DIR_IN;
+        putLong(offset, id);
+        mSlots[offset + 8] = (byte) event;
+        mSlots[offset + 9] = (byte) usbmonType(endpointType);
+        mSlots[offset + 10] = (byte) endpoint;
+        mSlots[offset + 11] = (byte) deviceAddress;
+        putShort(offset + 12, busNumber);
+        // Flags are zero when the setup packet or data is present.
+        mSlots[offset + 14] = (byte) (hasSetup ? 0 : '-');
+        mSlots[offset + 15] = (byte) (captured > 0 ? 0 : in ? '<' : '>');
+        putLong(offset + 16, micros / 1000000);
+        putInt(offset + 24, (int) (micros % 1000000));
+        putInt(offset + 28, status);
+        putInt(offset + 32, length);
+        putInt(offset + 36, captured);
+        putLong(offset + 40, hasSetup ? setup : 0);
+        putInt(offset + 48, 0);  // interval
+        putInt(offset + 52, 0);  // start_frame
+        putInt(offset + 56, 0);  // xfer_flags
+        putInt(offset + 60, 0);  // ndesc
+        return offset + HEADER_SIZE;
+    }
+
+    // Returns the records currently in the ring, oldest first, as a pcap file.
+    byte[] toPcap() {
+        long end = mNextSequence.get();
+        long start = Math.max(0, end - mRecordCount);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[24];
+        writeInt(header, 0, 0xa1b2c3d4);
+        writeShort(header, 4, 2);
+        writeShort(header, 6, 4);
+        writeInt(header, 16, mSlotSize);
+        writeInt(header, 20, LINKTYPE_USB_LINUX_MMAPPED);
+        out.write(header, 0, header.length);
+        byte[] record = new byte[16 + mSlotSize];
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence % mRecordCount);
+            if (mStamps.get(slot) != sequence + 1) {
+                continue;
+            }
+            System.arraycopy(mSlots, slot * mSlotSize, record, 16, mSlotSize);
+            if (mStamps.get(slot) != sequence + 1) {
+                continue;
+            }
+            int captured = readInt(record, 16 + 36);
+            int length = readInt(record, 16 + 32);
+            // pcap record header: timestamp, then captured and original lengths.
+            writeInt(record, 0, readInt(record, 16 + 16));
+            writeInt(record, 4, readInt(record, 16 + 24));
+            writeInt(record, 8, HEADER_SIZE + captured);
+            writeInt(record, 12, HEADER_SIZE + Math.max(length, captured));
+            out.write(record, 0, 16 + HEADER_SIZE + captured);
+        }
+        return out.toByteArray();
+    }
+
+    private static int usbmonType(int endpointType) {
+        switch (endpointType) {
+            case UsbConstants.USB_ENDPOINT_XFER_CONTROL: return USBMON_CONTROL;
+            case UsbConstants.USB_ENDPOINT_XFER_ISOC: return USBMON_ISOCHRONOUS;
+            case UsbConstants.USB_ENDPOINT_XFER_INT: return USBMON_INTERRUPT;
+            default: return USBMON_BULK;
+        }
+    }
+
+    // usbmon records are in host byte order, which is little-endian on Android devices; the
+    // pcap header is written in the same order so readers detect it from the magic number.
+    private void putShort(int offset, int value) {
+        writeShort(mSlots, offset, value);
+    }
+
+    private void putInt(int offset, int value) {
+        writeInt(mSlots, offset, value);
+    }
+
+    private void putLong(int offset, long value) {
+        writeInt(mSlots, offset, (int) value);
+        writeInt(mSlots, offset + 4, (int) (value >>> 32));
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        writeShort(data, offset, value);
+        writeShort(data, offset + 2, value >> 16);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+}
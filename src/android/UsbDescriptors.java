@@ -0,0 +1,117 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// A device's raw USB descriptors (as returned by UsbDeviceConnection.getRawDescriptors()),
+// parsed in a single pass into configurations, interfaces and endpoints. Class-specific and
+// other non-standard descriptors are kept, in full, as the extra data of the standard
+// descriptor they follow.
+class UsbDescriptors {
+    private static final int TYPE_DEVICE = 0x01;
+    private static final int TYPE_CONFIGURATION = 0x02;
+    private static final int TYPE_INTERFACE = 0x04;
+    private static final int TYPE_ENDPOINT = 0x05;
+
+    static class Configuration {
+        int value;
+        int attributes;
+        int maxPower;
+        byte[] extraData = new byte[0];
+        final ArrayList<Interface> interfaces = new ArrayList<Interface>();
+    }
+
+    static class Interface {
+        int number;
+        int alternateSetting;
+        int interfaceClass;
+        int interfaceSubclass;
+        int interfaceProtocol;
+        byte[] extraData = new byte[0];
+        final ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
+    }
+
+    static class Endpoint {
+        int address;
+        int attributes;
+        int maxPacketSize;
+        int interval;
+        byte[] extraData = new byte[0];
+    }
+
+    final ArrayList<Configuration> configurations = new ArrayList<Configuration>();
+    // Every interface descriptor (one per alternate setting) across all configurations, in
+    // descriptor order. This is the order of UsbDevice.getInterface().
+    final ArrayList<Interface> interfaces = new ArrayList<Interface>();
+
+    static UsbDescriptors parse(byte[] raw) {
+        UsbDescriptors result = new UsbDescriptors();
+        Configuration configuration = null;
+        Interface iface = null;
+        // The descriptor that trailing non-standard descriptors belong to, and where they start.
+        Object owner = null;
+        int extraStart = 0;
+        int idx = 0;
+        while (idx + 1 < raw.length) {
+            int length = raw[idx] & 0xff;
+            int type = raw[idx + 1] & 0xff;
+            if (length < 2 || idx + length > raw.length) {
+                break;
+            }
+            boolean standard = type == TYPE_DEVICE || type == TYPE_CONFIGURATION
+                    || type == TYPE_INTERFACE || type == TYPE_ENDPOINT;
+            if (standard) {
+                setExtraData(owner, Arrays.copyOfRange(raw, extraStart, idx));
+                owner = null;
+            }
+            if (type == TYPE_CONFIGURATION && length >= 9) {
+                configuration = new Configuration();
+                configuration.value = raw[idx + 5] & 0xff;
+                configuration.attributes = raw[idx + 7] & 0xff;
+                configuration.maxPower = raw[idx + 8] & 0xff;
+                result.configurations.add(configuration);
+                owner = configuration;
+            } else if (type == TYPE_INTERFACE && length >= 9) {
+                iface = new Interface();
+                iface.number = raw[idx + 2] & 0xff;
+                iface.alternateSetting = raw[idx + 3] & 0xff;
+                iface.interfaceClass = raw[idx + 5] & 0xff;
+                iface.interfaceSubclass = raw[idx + 6] & 0xff;
+                iface.interfaceProtocol = raw[idx + 7] & 0xff;
+                if (configuration != null) {
+                    configuration.interfaces.add(iface);
+                }
+                result.interfaces.add(iface);
+                owner = iface;
+            } else if (type == TYPE_ENDPOINT && length >= 7 && iface != null) {
+                Endpoint endpoint = new Endpoint();
+                endpoint.address = raw[idx + 2] & 0xff;
+                endpoint.attributes = raw[idx + 3] & 0xff;
+                endpoint.maxPacketSize = (raw[idx + 4] & 0xff) | (raw[idx + 5] & 0xff) << 8;
+                endpoint.interval = raw[idx + 6] & 0xff;
+                iface.endpoints.add(endpoint);
+                owner = endpoint;
+            }
+            idx += length;
+            if (standard) {
+                extraStart = idx;
+            }
+        }
+        setExtraData(owner, Arrays.copyOfRange(raw, extraStart, Math.min(idx, raw.length)));
+        return result;
+    }
+
+    private static void setExtraData(Object owner, byte[] extraData) {
+        if (owner instanceof Configuration) {
+            ((Configuration) owner).extraData = extraData;
+        } else if (owner instanceof Interface) {
+            ((Interface) owner).extraData = extraData;
+        } else if (owner instanceof Endpoint) {
+            ((Endpoint) owner).extraData = extraData;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// A recorded connection: the device's raw descriptors and every transfer made on it, with its
+// parameters, data, result and timing. Filled by ChromeUsb's RecordingDevice and served back by
+// its ReplayDevice. The encoding is a header ("USBS", a version byte, a flags byte and the
+// descriptors) followed by one record per event, in which integers are varints (zigzag encoded
+// where they may be negative) and times are microseconds, each start relative to the previous
+// one. A recording session encodes each event as it is added and keeps only the encoding, up
+// to a size limit; a decoded session keeps its events for replay.
+class UsbSession {
+    // Event kinds: synchronous control, bulk and interrupt transfers, and queued requests.
+    static final int CONTROL = 0;
+    static final int BULK = 1;
+    static final int INTERRUPT = 2;
+    static final int QUEUED = 3;
+    // Set on a queued request that was cancelled before it completed.
+    static final int FLAG_CANCELLED = 1;
+
+    private static final byte[] MAGIC = {'U', 'S', 'B', 'S'};
+    // Version 1 had no flags byte.
+    private static final int VERSION = 2;
+    // Header flag: the recording hit its size limit, and later events were dropped.
+    static final int FLAG_TRUNCATED = 1;
+    private static final int FLAGS_OFFSET = MAGIC.length + 1;
+
+    static class Event {
+        int kind;
+        int flags;
+        // Relative to the start of the session.
+        long startNanos;
+        long durationNanos;
+        // The setup packet for control transfers; just the direction bit otherwise.
+        int requestType;
+        int request;
+        int value;
+        int index;
+        // Interface index << 16 | endpoint index, as in ChromeUsb; unused for control transfers.
+        int endpoint;
+        int length;
+        int timeout;
+        // Bytes transferred, or negative on failure.
+        int result;
+        // The data sent by an OUT transfer, or received by an IN transfer: the first
+        // |dataLength| bytes of |data|, so that a recorder can pass its transfer buffer as is.
+        byte[] data;
+        int dataLength;
+    }
+
+    final byte[] descriptors;
+    private final long mStartNanos = System.nanoTime();
+    // Recording: the encoding so far, the bytes it may grow to, and the last encoded start.
+    private final Buffer mOut;
+    private final int mMaxBytes;
+    private long mLastStartMicros;
+    private boolean mTruncated;
+    // Decoding: the decoded events.
+    private final ArrayList<Event> mEvents = new ArrayList<Event>();
+
+    // Starts a recording that stops, marked truncated, once it would exceed |maxBytes|.
+    UsbSession(byte[] descriptors, int maxBytes) {
+        this.descriptors = descriptors;
+        mMaxBytes = maxBytes;
+        mOut = new Buffer();
+        mOut.write(MAGIC, 0, MAGIC.length);
+        mOut.write(VERSION);
+        mOut.write(0);
+        writeBytes(mOut, descriptors, descriptors.length);
+    }
+
+    private UsbSession(byte[] descriptors) {
+        this.descriptors = descriptors;
+        mMaxBytes = 0;
+        mOut = null;
+    }
+
+    // Returns the time since the session started, for Event.startNanos.
+    long elapsedNanos(long nanoTime) {
+        return nanoTime - mStartNanos;
+    }
+
+    // Encodes |event| onto a recording; |event| is not kept. Once an event does not fit in the
+    // size limit the recording is truncated, and it ignores all later events.
+    synchronized void add(Event event) {
+        if (mTruncated) {
+            return;
+        }
+        long startMicros = event.startNanos / 1000;
+        Buffer out = mOut;
+        int recordStart = out.size();
+        out.write(event.kind);
+        out.write(event.flags);
+        writeSigned(out, startMicros - mLastStartMicros);
+        writeVarint(out, event.durationNanos / 1000);
+        writeVarint(out, event.requestType);
+        writeVarint(out, event.request);
+        writeVarint(out, event.value);
+        writeVarint(out, event.index);
+        writeVarint(out, event.endpoint);
+        writeVarint(out, event.length);
+        writeVarint(out, event.timeout);
+        writeSigned(out, event.result);
+        writeVarint(out, event.dataLength);
+        // Checked before the data is copied, so the buffer never grows past the limit by more
+        // than one record's fields.
+        if ((long) out.size() + event.dataLength > mMaxBytes) {
+            out.truncate(recordStart);
+            mTruncated = true;
+            return;
+        }
+        out.write(event.data, 0, event.dataLength);
+        mLastStartMicros = startMicros;
+    }
+
+    // The events of a decoded session.
+    ArrayList<Event> getEvents() {
+        return new ArrayList<Event>(mEvents);
+    }
+
+    // The encoding of a recording so far.
+    synchronized byte[] encode() {
+        byte[] encoded = mOut.toByteArray();
+        if (mTruncated) {
+            encoded[FLAGS_OFFSET] |= FLAG_TRUNCATED;
+        }
+        return encoded;
+    }
+
+    // Throws IllegalArgumentException if |encoded| is not a session.
+    static UsbSession decode(byte[] encoded) {
+        Reader in = new Reader(encoded);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IllegalArgumentException("Not a USB session recording");
+            }
+        }
+        int version = in.readByte();
+        if (version != 1 && version != VERSION) {
+            throw new IllegalArgumentException("Unsupported USB session version");
+        }
+        if (version != 1) {
+            in.readByte();  // Flags, which replay has no use for.
+        }
+        UsbSession session = new UsbSession(in.readBytes());
+        long startMicros = 0;
+        while (in.hasMore()) {
+            Event event = new Event();
+            event.kind = in.readByte();
+            event.flags = in.readByte();
+            startMicros += in.readSigned();
+            event.startNanos = startMicros * 1000;
+            event.durationNanos = in.readVarint() * 1000;
+            event.requestType = (int) in.readVarint();
+            event.request = (int) in.readVarint();
+            event.value = (int) in.readVarint();
+            event.index = (int) in.readVarint();
+            event.endpoint = (int) in.readVarint();
+            event.length = (int) in.readVarint();
+            event.timeout = (int) in.readVarint();
+            event.result = (int) in.readSigned();
+            event.data = in.readBytes();
+            event.dataLength = event.data.length;
+            session.mEvents.add(event);
+        }
+        return session;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] data, int length) {
+        writeVarint(out, length);
+        out.write(data, 0, length);
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        // Drops everything written after the first |size| bytes.
+        void truncate(int size) {
+            count = size;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private int mOffset;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        boolean hasMore() {
+            return mOffset < mData.length;
+        }
+
+        int readByte() {
+            if (mOffset >= mData.length) {
+                throw new IllegalArgumentException("Truncated USB session");
+            }
+            return mData[mOffset++] & 0xff;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed USB session");
+        }
+
+        long readSigned() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        byte[] readBytes() {
+            long length = readVarint();
+            if (length > mData.length - mOffset) {
+                throw new IllegalArgumentException("Truncated USB session");
+            }
+            byte[] data = Arrays.copyOfRange(mData, mOffset, mOffset + (int) length);
+            mOffset += (int) length;
+            return data;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+#!/bin/sh
+# Copyright 2014 The Chromium Authors. All rights reserved.
+# Use of this source code is governed by a BSD-style license that can be
+# found in the LICENSE file.
+
+# Compiles the plugin against the Android, Cordova and org.json stubs in tests/jvm/stubs and
+# runs DispatchBenchmark, passing on any arguments. Needs JDK 8 or later.
+set -e
+cd "$(dirname "$0")/../.."
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -nowarn -d "$out" $(find src/android tests/jvm -name '*.java')
+java -cp "$out" org.chromium.DispatchBenchmark "$@"
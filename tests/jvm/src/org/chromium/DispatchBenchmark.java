@@ -0,0 +1,270 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.Base64;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Measures the plugin's own cost per call, without a device or the Cordova bridge: parsing the
+// exec() arguments, execute()'s dispatch, parameter handling, transfer buffers and the encoding
+// of results, for transfers to FakeDevice (which answers from memory) and for the descriptor and
+// filter actions. Each case runs one call at a time, each call starting from the JSON text
+// cordova.js would send and ending when the result reaches the web view, and reports calls per
+// second, latency percentiles and bytes allocated per call across all threads.
+//
+// Usage: DispatchBenchmark [seconds per case [payload sizes...]]; see tests/jvm/run.sh.
+public class DispatchBenchmark implements CordovaWebView {
+    private static final int DEFAULT_SECONDS = 2;
+    private static final int[] DEFAULT_SIZES = {0, 64, 4096, 65536};
+    // Calls made before each case is measured, so that it is measured compiled.
+    private static final int WARMUP_CALLS = 20000;
+    // Most latencies kept per case; later calls are still counted, just not in percentiles.
+    private static final int MAX_SAMPLES = 1 << 21;
+
+    private final ChromeUsb mPlugin = new ChromeUsb();
+    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private final Activity mActivity = new Activity();
+    private PluginResult mResult;
+    private int mCallbackId;
+
+    // One exec() call, as the action and the argument JSON cordova.js sends for it.
+    private static class Call {
+        final String mName;
+        final String mAction;
+        final String mRawArgs;
+        final int mSize;
+
+        Call(String name, String action, String rawArgs, int size) {
+            mName = name;
+            mAction = action;
+            mRawArgs = rawArgs;
+            mSize = size;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        new DispatchBenchmark().run(seconds, sizes);
+        System.exit(0);
+    }
+
+    private void run(int seconds, int[] sizes) throws Exception {
+        mPlugin.webView = this;
+        mPlugin.cordova = new CordovaInterface() {
+            public Activity getActivity() {
+                return mActivity;
+            }
+            public ExecutorService getThreadPool() {
+                return mThreadPool;
+            }
+        };
+
+        // Open and claim the fake device the way JS does, and find its endpoints.
+        JSONObject devices = new JSONArray(call("getDevices", "[{\"appendFakeDevice\":true}]"))
+                .getJSONObject(0);
+        int handle = new JSONObject(call("openDevice", "[" + devices + "]")).getInt("handle");
+        String target = "\"handle\":" + handle;
+        call("claimInterface", "[{" + target + ",\"interfaceNumber\":0}]");
+        JSONArray endpoints = new JSONArray(call("listInterfaces", "[{" + target + "}]"))
+                .getJSONObject(0).getJSONArray("endpoints");
+        int inEndpoint = -1;
+        int outEndpoint = -1;
+        for (int i = 0; i < endpoints.length(); i++) {
+            JSONObject endpoint = endpoints.getJSONObject(i);
+            if ("in".equals(endpoint.getString("direction"))) {
+                inEndpoint = endpoint.getInt("address");
+            } else {
+                outEndpoint = endpoint.getInt("address");
+            }
+        }
+
+        System.out.printf("%-24s %8s %12s %10s %10s %10s %12s%n", "case", "bytes", "calls/s",
+                "p50 us", "p99 us", "p99.9 us", "alloc B/call");
+        measure(new Call("listInterfaces", "listInterfaces", "[{" + target + "}]", 0), seconds);
+        measure(new Call("getConfiguration", "getConfiguration", "[{" + target + "}]", 0),
+                seconds);
+        measure(new Call("getDevices filters", "getDevices", "[{\"appendFakeDevice\":true,"
+                + "\"filters\":[{\"vendorId\":6353,\"productId\":8193},{\"interfaceClass\":255}]}]",
+                0), seconds);
+        measure(new Call("controlTransfer", "controlTransfer", "[{" + target
+                + ",\"direction\":\"in\",\"recipient\":\"device\",\"requestType\":\"vendor\","
+                + "\"request\":1,\"value\":2,\"index\":3,\"length\":3,\"timeout\":0},null]", 3),
+                seconds);
+        measure(new Call("transfer control", "transfer",
+                packed(0, 0xc0, 1, 2, 3, handle, 0, 3, null), 3), seconds);
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) i;
+            }
+            String base64 = "\"" + Base64.encodeToString(data, Base64.NO_WRAP) + "\"";
+            // Each OUT call is followed by an IN call that reads the bytes back.
+            measure(new Call("bulkTransfer out", "bulkTransfer", "[{" + target
+                    + ",\"direction\":\"out\",\"endpoint\":" + outEndpoint
+                    + ",\"timeout\":0}," + base64 + "]", size), new Call("bulkTransfer in",
+                    "bulkTransfer", "[{" + target + ",\"direction\":\"in\",\"endpoint\":"
+                    + inEndpoint + ",\"length\":" + size + ",\"timeout\":0},null]", size),
+                    seconds);
+            measure(new Call("transfer bulk out", "transfer",
+                    packed(2, 0x00, 0, 0, 0, handle, outEndpoint, size, data), size),
+                    new Call("transfer bulk in", "transfer",
+                    packed(2, 0x80, 0, 0, 0, handle, inEndpoint, size, null), size), seconds);
+        }
+    }
+
+    private void measure(Call call, int seconds) throws Exception {
+        measure(call, null, seconds);
+    }
+
+    // Runs |call| repeatedly for |seconds|, each one followed by |then| if given, and reports
+    // each of them.
+    private void measure(Call call, Call then, int seconds) throws Exception {
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            call(call.mAction, call.mRawArgs);
+            if (then != null) {
+                call(then.mAction, then.mRawArgs);
+            }
+        }
+        Stats first = new Stats();
+        Stats second = new Stats();
+        long allocatedBefore = allocatedBytes();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long start = System.nanoTime();
+        int count = 0;
+        for (long now = start; now < end; count++) {
+            call(call.mAction, call.mRawArgs);
+            long done = System.nanoTime();
+            first.add(done - now);
+            if (then != null) {
+                call(then.mAction, then.mRawArgs);
+                now = System.nanoTime();
+                second.add(now - done);
+            } else {
+                now = done;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        first.report(call, count, elapsed, then == null ? allocated : -1);
+        if (then != null) {
+            second.report(then, count, elapsed, -1);
+            System.out.printf("%-24s %8d %12s %10s %10s %10s %12d%n", "  (pair)", call.mSize,
+                    "", "", "", "", allocated / count);
+        }
+    }
+
+    // Latencies of one call of a case, kept in an array allocated up front so that measuring
+    // allocates nothing.
+    private static class Stats {
+        private final long[] mLatencies = new long[MAX_SAMPLES];
+        private int mCount;
+
+        void add(long nanos) {
+            if (mCount < MAX_SAMPLES) {
+                mLatencies[mCount++] = nanos;
+            }
+        }
+
+        void report(Call call, int count, long elapsedNanos, long allocated) {
+            long[] sorted = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(sorted);
+            System.out.printf("%-24s %8d %12.0f %10.1f %10.1f %10.1f %12s%n", call.mName,
+                    call.mSize, count * 1e9 / elapsedNanos, percentile(sorted, 0.5) / 1e3,
+                    percentile(sorted, 0.99) / 1e3, percentile(sorted, 0.999) / 1e3,
+                    allocated < 0 ? "" : String.valueOf(allocated / count));
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1,
+                (long) (sorted.length * fraction))];
+    }
+
+    // The argument of a "transfer" action: OUT data followed by the command block usb.js
+    // packTransfer() builds, Base64 encoded and quoted as cordova.js sends an ArrayBuffer.
+    private static String packed(int type, int requestType, int request, int value, int index,
+            int handle, int endpoint, int length, byte[] data) {
+        int dataLength = data == null ? 0 : data.length;
+        byte[] packet = new byte[dataLength + 28];
+        if (data != null) {
+            System.arraycopy(data, 0, packet, 0, dataLength);
+        }
+        packet[dataLength] = (byte) type;
+        packet[dataLength + 1] = (byte) requestType;
+        packet[dataLength + 2] = (byte) request;
+        putInt(packet, dataLength + 4, value & 0xffff | (index & 0xffff) << 16);
+        putInt(packet, dataLength + 8, handle);
+        putInt(packet, dataLength + 12, endpoint);
+        putInt(packet, dataLength + 16, length);
+        return "[\"" + Base64.encodeToString(packet, Base64.NO_WRAP) + "\"]";
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    // Makes one call and waits for its result, which it returns as JSON. Throws on failure.
+    private String call(String action, String rawArgs) throws Exception {
+        PluginResult result;
+        synchronized (this) {
+            mResult = null;
+        }
+        CallbackContext callbackContext =
+                new CallbackContext("ChromeUsb" + ++mCallbackId, this);
+        mPlugin.execute(action, rawArgs, callbackContext);
+        synchronized (this) {
+            while (mResult == null) {
+                wait();
+            }
+            result = mResult;
+        }
+        if (result.getStatus() != PluginResult.Status.OK.ordinal()) {
+            throw new IllegalStateException(action + " failed: " + result.getMessage());
+        }
+        return result.getMessage();
+    }
+
+    // Total bytes allocated so far by the live threads, which include the plugin's workers.
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    public Context getContext() {
+        return mActivity;
+    }
+
+    public synchronized void sendPluginResult(PluginResult result, String callbackId) {
+        if (!result.getKeepCallback()) {
+            mResult = result;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class PendingIntent {
+    public static final int FLAG_MUTABLE = 1 << 25;
+    public static final int FLAG_ALLOW_UNSAFE_IMPLICIT_INTENT = 1 << 24;
+
+    public static PendingIntent getBroadcast(Context context, int requestCode, Intent intent,
+            int flags) {
+        return new PendingIntent();
+    }
+}
@@ -0,0 +1,40 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.content;
+
+import android.content.pm.PackageManager;
+import android.hardware.usb.UsbManager;
+
+// A context with a UsbManager that lists no devices, and that takes no broadcasts.
+public class Context {
+    public static final String USB_SERVICE = "usb";
+    public static final int RECEIVER_EXPORTED = 2;
+    public static final int RECEIVER_NOT_EXPORTED = 4;
+
+    private final UsbManager mUsbManager = new UsbManager();
+
+    public Object getSystemService(String name) {
+        return USB_SERVICE.equals(name) ? mUsbManager : null;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public PackageManager getPackageManager() {
+        return new PackageManager();
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter, int flags) {
+        return null;
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+    }
+}
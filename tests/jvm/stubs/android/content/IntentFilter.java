@@ -0,0 +1,13 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.content;
+
+public class IntentFilter {
+    public IntentFilter(String action) {
+    }
+
+    public void addAction(String action) {
+    }
+}
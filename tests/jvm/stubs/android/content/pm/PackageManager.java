@@ -0,0 +1,13 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.content.pm;
+
+public class PackageManager {
+    public static final String FEATURE_USB_HOST = "android.hardware.usb.host";
+
+    public boolean hasSystemFeature(String name) {
+        return false;
+    }
+}
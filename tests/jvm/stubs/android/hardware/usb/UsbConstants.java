@@ -0,0 +1,22 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+public final class UsbConstants {
+    public static final int USB_ENDPOINT_DIR_MASK = 0x80;
+    public static final int USB_DIR_OUT = 0;
+    public static final int USB_DIR_IN = 0x80;
+    public static final int USB_ENDPOINT_NUMBER_MASK = 0x0f;
+    public static final int USB_ENDPOINT_XFERTYPE_MASK = 0x03;
+    public static final int USB_ENDPOINT_XFER_CONTROL = 0;
+    public static final int USB_ENDPOINT_XFER_ISOC = 1;
+    public static final int USB_ENDPOINT_XFER_BULK = 2;
+    public static final int USB_ENDPOINT_XFER_INT = 3;
+    public static final int USB_TYPE_MASK = 0x03 << 5;
+    public static final int USB_TYPE_STANDARD = 0x00 << 5;
+    public static final int USB_TYPE_CLASS = 0x01 << 5;
+    public static final int USB_TYPE_VENDOR = 0x02 << 5;
+    public static final int USB_TYPE_RESERVED = 0x03 << 5;
+}
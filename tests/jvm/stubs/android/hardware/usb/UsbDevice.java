@@ -0,0 +1,31 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+import android.os.Parcelable;
+
+public class UsbDevice implements Parcelable {
+    public int getDeviceId() {
+        throw new RuntimeException("Stub!");
+    }
+    public String getDeviceName() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getVendorId() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getProductId() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getDeviceClass() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getInterfaceCount() {
+        throw new RuntimeException("Stub!");
+    }
+    public UsbInterface getInterface(int index) {
+        throw new RuntimeException("Stub!");
+    }
+}
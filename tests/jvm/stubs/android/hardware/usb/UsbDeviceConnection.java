@@ -0,0 +1,43 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+import java.util.concurrent.TimeoutException;
+
+public class UsbDeviceConnection {
+    public byte[] getRawDescriptors() {
+        throw new RuntimeException("Stub!");
+    }
+    public boolean claimInterface(UsbInterface intf, boolean force) {
+        throw new RuntimeException("Stub!");
+    }
+    public boolean releaseInterface(UsbInterface intf) {
+        throw new RuntimeException("Stub!");
+    }
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeout) {
+        throw new RuntimeException("Stub!");
+    }
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int offset, int length, int timeout) {
+        throw new RuntimeException("Stub!");
+    }
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int length, int timeout) {
+        throw new RuntimeException("Stub!");
+    }
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length,
+            int timeout) {
+        throw new RuntimeException("Stub!");
+    }
+    public UsbRequest requestWait() {
+        throw new RuntimeException("Stub!");
+    }
+    public UsbRequest requestWait(long timeout) throws TimeoutException {
+        throw new RuntimeException("Stub!");
+    }
+    public void close() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+public class UsbEndpoint {
+    public int getAddress() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getEndpointNumber() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getDirection() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getAttributes() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getType() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getMaxPacketSize() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getInterval() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+public class UsbInterface {
+    public int getId() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getAlternateSetting() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getInterfaceClass() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getInterfaceSubclass() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getInterfaceProtocol() {
+        throw new RuntimeException("Stub!");
+    }
+    public int getEndpointCount() {
+        throw new RuntimeException("Stub!");
+    }
+    public UsbEndpoint getEndpoint(int index) {
+        throw new RuntimeException("Stub!");
+    }
+}
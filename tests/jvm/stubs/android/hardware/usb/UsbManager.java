@@ -0,0 +1,34 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+import android.app.PendingIntent;
+import java.util.HashMap;
+
+// No devices are attached; the benchmark uses ChromeUsb's fake and simulated devices.
+public class UsbManager {
+    public static final String ACTION_USB_DEVICE_ATTACHED =
+            "android.hardware.usb.action.USB_DEVICE_ATTACHED";
+    public static final String ACTION_USB_DEVICE_DETACHED =
+            "android.hardware.usb.action.USB_DEVICE_DETACHED";
+    public static final String EXTRA_DEVICE = "device";
+    public static final String EXTRA_PERMISSION_GRANTED = "permission";
+
+    public HashMap<String, UsbDevice> getDeviceList() {
+        return new HashMap<String, UsbDevice>();
+    }
+
+    public boolean hasPermission(UsbDevice device) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void requestPermission(UsbDevice device, PendingIntent pi) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public UsbDeviceConnection openDevice(UsbDevice device) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,34 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.hardware.usb;
+
+import java.nio.ByteBuffer;
+
+public class UsbRequest {
+    public boolean initialize(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        throw new RuntimeException("Stub!");
+    }
+    public void close() {
+        throw new RuntimeException("Stub!");
+    }
+    public UsbEndpoint getEndpoint() {
+        throw new RuntimeException("Stub!");
+    }
+    public Object getClientData() {
+        throw new RuntimeException("Stub!");
+    }
+    public void setClientData(Object data) {
+        throw new RuntimeException("Stub!");
+    }
+    public boolean queue(ByteBuffer buffer, int length) {
+        throw new RuntimeException("Stub!");
+    }
+    public boolean queue(ByteBuffer buffer) {
+        throw new RuntimeException("Stub!");
+    }
+    public boolean cancel() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,17 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.os;
+
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = Integer.getInteger("android.sdk", 33);
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+        public static final int S = 31;
+        public static final int TIRAMISU = 33;
+    }
+}
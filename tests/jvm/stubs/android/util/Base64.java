@@ -0,0 +1,24 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.util;
+
+// Backed by java.util.Base64, which needs Java 8.
+public final class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getDecoder().decode(str);
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(input);
+    }
+
+    public static String encodeToString(byte[] input, int offset, int len, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(
+                java.util.Arrays.copyOfRange(input, offset, offset + len));
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.apache.cordova;
+
+import android.util.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// The arguments of an exec() call. ArrayBuffers arrive Base64 encoded, as they do from
+// cordova.js.
+public class CordovaArgs {
+    private final JSONArray baseArgs;
+
+    public CordovaArgs(JSONArray args) {
+        baseArgs = args;
+    }
+
+    public Object get(int index) throws JSONException {
+        return baseArgs.get(index);
+    }
+    public boolean getBoolean(int index) throws JSONException {
+        return baseArgs.getBoolean(index);
+    }
+    public int getInt(int index) throws JSONException {
+        return baseArgs.getInt(index);
+    }
+    public long getLong(int index) throws JSONException {
+        return baseArgs.getLong(index);
+    }
+    public String getString(int index) throws JSONException {
+        return baseArgs.getString(index);
+    }
+    public JSONObject getJSONObject(int index) throws JSONException {
+        return baseArgs.getJSONObject(index);
+    }
+    public JSONArray getJSONArray(int index) throws JSONException {
+        return baseArgs.getJSONArray(index);
+    }
+    public byte[] getArrayBuffer(int index) throws JSONException {
+        return Base64.decode(baseArgs.getString(index), Base64.DEFAULT);
+    }
+
+    public Object opt(int index) {
+        return baseArgs.opt(index);
+    }
+    public boolean isNull(int index) {
+        return baseArgs.isNull(index);
+    }
+    public int optInt(int index) {
+        return baseArgs.optInt(index, 0);
+    }
+    public String optString(int index) {
+        return baseArgs.optString(index, "");
+    }
+    public JSONObject optJSONObject(int index) {
+        return baseArgs.optJSONObject(index);
+    }
+    public JSONArray optJSONArray(int index) {
+        return baseArgs.optJSONArray(index);
+    }
+}
@@ -0,0 +1,35 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+public class CordovaPlugin {
+    public CordovaWebView webView;
+    public CordovaInterface cordova;
+
+    // Cordova calls this one, which parses the arguments and passes them on.
+    public boolean execute(String action, String rawArgs, CallbackContext callbackContext)
+            throws JSONException {
+        return execute(action, new JSONArray(rawArgs), callbackContext);
+    }
+
+    public boolean execute(String action, JSONArray args, CallbackContext callbackContext)
+            throws JSONException {
+        return execute(action, new CordovaArgs(args), callbackContext);
+    }
+
+    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext)
+            throws JSONException {
+        return false;
+    }
+
+    public void onReset() {
+    }
+
+    public void onDestroy() {
+    }
+}
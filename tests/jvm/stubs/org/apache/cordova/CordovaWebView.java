@@ -0,0 +1,14 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.apache.cordova;
+
+import android.content.Context;
+
+// Where CallbackContext delivers results; the benchmark implements it to see completions.
+public interface CordovaWebView {
+    Context getContext();
+
+    void sendPluginResult(PluginResult result, String callbackId);
+}
@@ -0,0 +1,85 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.apache.cordova;
+
+import android.util.Base64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Encodes its message up front the way Cordova's does, so that result costs are counted.
+public class PluginResult {
+    public static final int MESSAGE_TYPE_STRING = 1;
+    public static final int MESSAGE_TYPE_JSON = 2;
+    public static final int MESSAGE_TYPE_NUMBER = 3;
+    public static final int MESSAGE_TYPE_BOOLEAN = 4;
+    public static final int MESSAGE_TYPE_NULL = 5;
+    public static final int MESSAGE_TYPE_ARRAYBUFFER = 6;
+
+    public enum Status {
+        NO_RESULT,
+        OK,
+        CLASS_NOT_FOUND_EXCEPTION,
+        ILLEGAL_ACCESS_EXCEPTION,
+        INSTANTIATION_EXCEPTION,
+        MALFORMED_URL_EXCEPTION,
+        IO_EXCEPTION,
+        INVALID_ACTION,
+        JSON_EXCEPTION,
+        ERROR
+    }
+
+    private final int status;
+    private final int messageType;
+    private final String encodedMessage;
+    private boolean keepCallback;
+
+    public PluginResult(Status status) {
+        this(status, MESSAGE_TYPE_NULL, "null");
+    }
+    public PluginResult(Status status, String message) {
+        this(status, message == null ? MESSAGE_TYPE_NULL : MESSAGE_TYPE_STRING,
+                message == null ? "null" : JSONObject.quote(message));
+    }
+    public PluginResult(Status status, JSONArray message) {
+        this(status, MESSAGE_TYPE_JSON, message.toString());
+    }
+    public PluginResult(Status status, JSONObject message) {
+        this(status, MESSAGE_TYPE_JSON, message.toString());
+    }
+    public PluginResult(Status status, int i) {
+        this(status, MESSAGE_TYPE_NUMBER, String.valueOf(i));
+    }
+    public PluginResult(Status status, float f) {
+        this(status, MESSAGE_TYPE_NUMBER, String.valueOf(f));
+    }
+    public PluginResult(Status status, boolean b) {
+        this(status, MESSAGE_TYPE_BOOLEAN, String.valueOf(b));
+    }
+    public PluginResult(Status status, byte[] data) {
+        this(status, MESSAGE_TYPE_ARRAYBUFFER, Base64.encodeToString(data, Base64.NO_WRAP));
+    }
+
+    private PluginResult(Status status, int messageType, String encodedMessage) {
+        this.status = status.ordinal();
+        this.messageType = messageType;
+        this.encodedMessage = encodedMessage;
+    }
+
+    public void setKeepCallback(boolean b) {
+        keepCallback = b;
+    }
+    public boolean getKeepCallback() {
+        return keepCallback;
+    }
+    public int getStatus() {
+        return status;
+    }
+    public int getMessageType() {
+        return messageType;
+    }
+    public String getMessage() {
+        return encodedMessage;
+    }
+}
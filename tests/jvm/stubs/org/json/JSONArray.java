@@ -0,0 +1,146 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.json;
+
+import java.util.ArrayList;
+
+// The parts of Android's org.json.JSONArray that ChromeUsb and CordovaArgs use.
+public class JSONArray {
+    private final ArrayList<Object> mValues = new ArrayList<Object>();
+
+    public JSONArray() {
+    }
+
+    public JSONArray(String json) throws JSONException {
+        Object value = new JSONTokener(json).nextValue();
+        if (!(value instanceof JSONArray)) {
+            throw new JSONException("Not a JSON array: " + json);
+        }
+        mValues.addAll(((JSONArray) value).mValues);
+    }
+
+    public int length() {
+        return mValues.size();
+    }
+
+    public JSONArray put(Object value) {
+        mValues.add(value);
+        return this;
+    }
+    public JSONArray put(int value) {
+        mValues.add(value);
+        return this;
+    }
+    public JSONArray put(long value) {
+        mValues.add(value);
+        return this;
+    }
+    public JSONArray put(double value) {
+        mValues.add(value);
+        return this;
+    }
+    public JSONArray put(boolean value) {
+        mValues.add(value);
+        return this;
+    }
+
+    public boolean isNull(int index) {
+        Object value = opt(index);
+        return value == null || value == JSONObject.NULL;
+    }
+
+    public Object get(int index) throws JSONException {
+        Object value = opt(index);
+        if (value == null) {
+            throw new JSONException("Value at " + index + " is null");
+        }
+        return value;
+    }
+    public Object opt(int index) {
+        return index >= 0 && index < mValues.size() ? mValues.get(index) : null;
+    }
+
+    public boolean getBoolean(int index) throws JSONException {
+        Boolean value = JSONObject.toBoolean(get(index));
+        if (value == null) {
+            throw typeMismatch(index, "boolean");
+        }
+        return value;
+    }
+
+    public int getInt(int index) throws JSONException {
+        Number value = JSONObject.toNumber(get(index));
+        if (value == null) {
+            throw typeMismatch(index, "int");
+        }
+        return value.intValue();
+    }
+    public int optInt(int index, int fallback) {
+        Number value = JSONObject.toNumber(opt(index));
+        return value != null ? value.intValue() : fallback;
+    }
+
+    public long getLong(int index) throws JSONException {
+        Number value = JSONObject.toNumber(get(index));
+        if (value == null) {
+            throw typeMismatch(index, "long");
+        }
+        return value.longValue();
+    }
+
+    public String getString(int index) throws JSONException {
+        return String.valueOf(get(index));
+    }
+    public String optString(int index, String fallback) {
+        Object value = opt(index);
+        return value != null ? String.valueOf(value) : fallback;
+    }
+
+    public JSONObject getJSONObject(int index) throws JSONException {
+        Object value = get(index);
+        if (!(value instanceof JSONObject)) {
+            throw typeMismatch(index, "JSONObject");
+        }
+        return (JSONObject) value;
+    }
+    public JSONObject optJSONObject(int index) {
+        Object value = opt(index);
+        return value instanceof JSONObject ? (JSONObject) value : null;
+    }
+
+    public JSONArray getJSONArray(int index) throws JSONException {
+        Object value = get(index);
+        if (!(value instanceof JSONArray)) {
+            throw typeMismatch(index, "JSONArray");
+        }
+        return (JSONArray) value;
+    }
+    public JSONArray optJSONArray(int index) {
+        Object value = opt(index);
+        return value instanceof JSONArray ? (JSONArray) value : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        write(out);
+        return out.toString();
+    }
+
+    void write(StringBuilder out) {
+        out.append('[');
+        for (int i = 0; i < mValues.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            JSONObject.writeValue(out, mValues.get(i));
+        }
+        out.append(']');
+    }
+
+    private JSONException typeMismatch(int index, String type) {
+        return new JSONException("Value at " + index + " cannot be converted to " + type);
+    }
+}
@@ -0,0 +1,11 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.json;
+
+public class JSONException extends Exception {
+    public JSONException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,290 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.json;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The parts of Android's org.json.JSONObject that ChromeUsb uses, with the same storage (a
+// LinkedHashMap), number coercion and errors, so that parsing and building params costs about
+// what it does on a device.
+public class JSONObject {
+    public static final Object NULL = new Object() {
+        @Override
+        public String toString() {
+            return "null";
+        }
+    };
+
+    private final LinkedHashMap<String, Object> mValues = new LinkedHashMap<String, Object>();
+
+    public JSONObject() {
+    }
+
+    public JSONObject(String json) throws JSONException {
+        Object value = new JSONTokener(json).nextValue();
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Not a JSON object: " + json);
+        }
+        mValues.putAll(((JSONObject) value).mValues);
+    }
+
+    public int length() {
+        return mValues.size();
+    }
+
+    public JSONObject put(String name, Object value) throws JSONException {
+        if (value == null) {
+            mValues.remove(name);
+        } else {
+            mValues.put(checkName(name), value);
+        }
+        return this;
+    }
+    public JSONObject put(String name, int value) throws JSONException {
+        mValues.put(checkName(name), value);
+        return this;
+    }
+    public JSONObject put(String name, long value) throws JSONException {
+        mValues.put(checkName(name), value);
+        return this;
+    }
+    public JSONObject put(String name, double value) throws JSONException {
+        mValues.put(checkName(name), value);
+        return this;
+    }
+    public JSONObject put(String name, boolean value) throws JSONException {
+        mValues.put(checkName(name), value);
+        return this;
+    }
+
+    public Object remove(String name) {
+        return mValues.remove(name);
+    }
+    public boolean has(String name) {
+        return mValues.containsKey(name);
+    }
+    public boolean isNull(String name) {
+        Object value = mValues.get(name);
+        return value == null || value == NULL;
+    }
+    public Iterator<String> keys() {
+        return mValues.keySet().iterator();
+    }
+
+    public Object get(String name) throws JSONException {
+        Object value = mValues.get(name);
+        if (value == null) {
+            throw new JSONException("No value for " + name);
+        }
+        return value;
+    }
+    public Object opt(String name) {
+        return mValues.get(name);
+    }
+
+    public boolean getBoolean(String name) throws JSONException {
+        Boolean value = toBoolean(get(name));
+        if (value == null) {
+            throw typeMismatch(name, "boolean");
+        }
+        return value;
+    }
+    public boolean optBoolean(String name) {
+        return optBoolean(name, false);
+    }
+    public boolean optBoolean(String name, boolean fallback) {
+        Boolean value = toBoolean(opt(name));
+        return value != null ? value : fallback;
+    }
+
+    public int getInt(String name) throws JSONException {
+        Number value = toNumber(get(name));
+        if (value == null) {
+            throw typeMismatch(name, "int");
+        }
+        return value.intValue();
+    }
+    public int optInt(String name) {
+        return optInt(name, 0);
+    }
+    public int optInt(String name, int fallback) {
+        Number value = toNumber(opt(name));
+        return value != null ? value.intValue() : fallback;
+    }
+
+    public long getLong(String name) throws JSONException {
+        Number value = toNumber(get(name));
+        if (value == null) {
+            throw typeMismatch(name, "long");
+        }
+        return value.longValue();
+    }
+    public long optLong(String name) {
+        return optLong(name, 0);
+    }
+    public long optLong(String name, long fallback) {
+        Number value = toNumber(opt(name));
+        return value != null ? value.longValue() : fallback;
+    }
+
+    public double optDouble(String name, double fallback) {
+        Number value = toNumber(opt(name));
+        return value != null ? value.doubleValue() : fallback;
+    }
+
+    public String getString(String name) throws JSONException {
+        return String.valueOf(get(name));
+    }
+    public String optString(String name) {
+        return optString(name, "");
+    }
+    public String optString(String name, String fallback) {
+        Object value = opt(name);
+        return value != null ? String.valueOf(value) : fallback;
+    }
+
+    public JSONObject getJSONObject(String name) throws JSONException {
+        Object value = get(name);
+        if (!(value instanceof JSONObject)) {
+            throw typeMismatch(name, "JSONObject");
+        }
+        return (JSONObject) value;
+    }
+    public JSONObject optJSONObject(String name) {
+        Object value = opt(name);
+        return value instanceof JSONObject ? (JSONObject) value : null;
+    }
+
+    public JSONArray getJSONArray(String name) throws JSONException {
+        Object value = get(name);
+        if (!(value instanceof JSONArray)) {
+            throw typeMismatch(name, "JSONArray");
+        }
+        return (JSONArray) value;
+    }
+    public JSONArray optJSONArray(String name) {
+        Object value = opt(name);
+        return value instanceof JSONArray ? (JSONArray) value : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        write(out);
+        return out.toString();
+    }
+
+    void write(StringBuilder out) {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            quote(out, entry.getKey());
+            out.append(':');
+            writeValue(out, entry.getValue());
+        }
+        out.append('}');
+    }
+
+    static void writeValue(StringBuilder out, Object value) {
+        if (value instanceof JSONObject) {
+            ((JSONObject) value).write(out);
+        } else if (value instanceof JSONArray) {
+            ((JSONArray) value).write(out);
+        } else if (value instanceof String) {
+            quote(out, (String) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (d == (long) d) {
+                out.append((long) d);
+            } else {
+                out.append(d);
+            }
+        } else {
+            out.append(value);
+        }
+    }
+
+    public static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        quote(out, value);
+        return out.toString();
+    }
+
+    static void quote(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    static Boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof String) {
+            if ("true".equalsIgnoreCase((String) value)) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase((String) value)) {
+                return false;
+            }
+        }
+        return null;
+    }
+
+    static Number toNumber(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String checkName(String name) throws JSONException {
+        if (name == null) {
+            throw new JSONException("Names must be non-null");
+        }
+        return name;
+    }
+
+    private JSONException typeMismatch(String name, String type) {
+        return new JSONException("Value at " + name + " cannot be converted to " + type);
+    }
+}
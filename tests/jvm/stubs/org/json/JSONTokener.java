@@ -0,0 +1,172 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.json;
+
+// Parses JSON text into JSONObject, JSONArray, String, Boolean, Integer, Long, Double and
+// JSONObject.NULL values, as Android's org.json.JSONTokener does.
+public class JSONTokener {
+    private final String mIn;
+    private int mPos;
+
+    public JSONTokener(String in) {
+        mIn = in;
+    }
+
+    public Object nextValue() throws JSONException {
+        char c = nextClean();
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            default:
+                mPos--;
+                return readLiteral();
+        }
+    }
+
+    private JSONObject readObject() throws JSONException {
+        JSONObject result = new JSONObject();
+        if (nextClean() == '}') {
+            return result;
+        }
+        mPos--;
+        while (true) {
+            if (nextClean() != '"') {
+                throw syntaxError("Expected a name");
+            }
+            String name = readString();
+            if (nextClean() != ':') {
+                throw syntaxError("Expected ':' after " + name);
+            }
+            result.put(name, nextValue());
+            char c = nextClean();
+            if (c == '}') {
+                return result;
+            }
+            if (c != ',') {
+                throw syntaxError("Unterminated object");
+            }
+        }
+    }
+
+    private JSONArray readArray() throws JSONException {
+        JSONArray result = new JSONArray();
+        if (nextClean() == ']') {
+            return result;
+        }
+        mPos--;
+        while (true) {
+            result.put(nextValue());
+            char c = nextClean();
+            if (c == ']') {
+                return result;
+            }
+            if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+        }
+    }
+
+    private String readString() throws JSONException {
+        StringBuilder out = null;
+        int start = mPos;
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos++);
+            if (c == '"') {
+                if (out == null) {
+                    return mIn.substring(start, mPos - 1);
+                }
+                out.append(mIn, start, mPos - 1);
+                return out.toString();
+            }
+            if (c == '\\') {
+                if (mPos >= mIn.length()) {
+                    break;
+                }
+                if (out == null) {
+                    out = new StringBuilder();
+                }
+                out.append(mIn, start, mPos - 1);
+                out.append(readEscape(mIn.charAt(mPos++)));
+                start = mPos;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private char readEscape(char escaped) throws JSONException {
+        switch (escaped) {
+            case 'u':
+                if (mPos + 4 > mIn.length()) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                char c = (char) Integer.parseInt(mIn.substring(mPos, mPos + 4), 16);
+                mPos += 4;
+                return c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                return escaped;
+        }
+    }
+
+    private Object readLiteral() throws JSONException {
+        int start = mPos;
+        while (mPos < mIn.length() && ",:]}/\\\"[{;=# \t\n\r\f".indexOf(mIn.charAt(mPos)) < 0) {
+            mPos++;
+        }
+        String literal = mIn.substring(start, mPos);
+        if (literal.isEmpty()) {
+            throw syntaxError("Expected a value");
+        }
+        if ("null".equals(literal)) {
+            return JSONObject.NULL;
+        }
+        if ("true".equals(literal)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equals(literal)) {
+            return Boolean.FALSE;
+        }
+        try {
+            if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0
+                    && literal.indexOf('E') < 0) {
+                long value = Long.parseLong(literal);
+                if (value == (int) value) {
+                    return (int) value;
+                }
+                return value;
+            }
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Unexpected literal " + literal);
+        }
+    }
+
+    private char nextClean() throws JSONException {
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos++);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+        throw syntaxError("End of input");
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos + " of " + mIn);
+    }
+}
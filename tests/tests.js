@@ -33,6 +33,32 @@ exports.defineAutoTests = function() {
     expect(chrome.usb.listInterfaces).toBeDefined();
     expect(chrome.usb.claimInterface).toBeDefined();
     expect(chrome.usb.releaseInterface).toBeDefined();
+    expect(chrome.usb.getConfiguration).toBeDefined();
+    expect(chrome.usb.onDeviceAdded).toBeDefined();
+    expect(chrome.usb.onDeviceRemoved).toBeDefined();
+  });
+
+  it('should describe the configuration of a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.getConfiguration(handle, function(config) {
+          expect(chrome.runtime.lastError).not.toBeDefined();
+          expect(config.configurationValue).toBe(1);
+          expect(config.interfaces.length).toBe(1);
+          var iface = config.interfaces[0];
+          expect(iface.interfaceClass).toBe(255);
+          expect(iface.endpoints.length).toBe(2);
+          expect(iface.endpoints[0].direction).toBe("in");
+          expect(iface.endpoints[0].type).toBe("bulk");
+          expect(iface.endpoints[0].maximumPacketSize).toBe(64);
+          expect(iface.endpoints[1].direction).toBe("out");
+          expect(iface.extra_data.byteLength).toBe(0);
+          chrome.usb.closeDevice(handle);
+          done();
+        });
+      });
+    });
   });
 
   it('should getDevices and open & close a device if present', function(done) {
@@ -117,4 +143,811 @@ exports.defineAutoTests = function() {
     });
   });
 
+  it('should stream bulk IN data from a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var outEp = ifs[0].endpoints[1];
+          chrome.usb.cordova.startBulkInStream(handle, {
+            endpoint: inEp.address,
+            chunkSize: 64,
+            depth: 2
+          }, function(data) {
+            var r = new Uint8Array(data);
+            expect(r.length).toBe(2);
+            expect(r[0]).toBe(42);
+            expect(r[1]).toBe(43);
+            chrome.usb.cordova.stopBulkInStream(handle, inEp.address, function() {
+              expect(chrome.runtime.lastError).not.toBeDefined();
+              chrome.usb.closeDevice(handle);
+              done();
+            });
+          }, function() {
+            expect(chrome.runtime.lastError).not.toBeDefined();
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: outEp.address,
+              data: (new Uint8Array([42, 43])).buffer
+            }, function(outResult) {
+              expect(outResult.resultCode).toBe(0);
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should hold stream data until credits are granted on a fake device instance',
+      function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var outEp = ifs[0].endpoints[1];
+          var granted = false;
+          chrome.usb.cordova.startBulkInStream(handle, {
+            endpoint: inEp.address,
+            chunkSize: 64,
+            depth: 2,
+            credits: 0,
+            creditUnit: "messages"
+          }, function(data) {
+            expect(granted).toBe(true);
+            expect(new Uint8Array(data)[0]).toBe(42);
+            chrome.usb.cordova.stopBulkInStream(handle, inEp.address, function() {
+              chrome.usb.closeDevice(handle);
+              done();
+            });
+          }, function() {
+            expect(chrome.runtime.lastError).not.toBeDefined();
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: outEp.address,
+              data: (new Uint8Array([42])).buffer
+            }, function(outResult) {
+              expect(outResult.resultCode).toBe(0);
+              granted = true;
+              chrome.usb.cordova.grantStreamCredits(handle, inEp.address, 1,
+                  function(status) {
+                expect(chrome.runtime.lastError).not.toBeDefined();
+                expect(status.dropped).toBe(0);
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should pipeline bulk writes to a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var outEp = ifs[0].endpoints[1];
+          var acked = [];
+          var writeCount = 8;
+          for (var i = 0; i < writeCount; i++) {
+            (function(n) {
+              chrome.usb.cordova.bulkWrite(handle, {
+                endpoint: outEp.address,
+                data: (new Uint8Array([n])).buffer,
+                depth: 2
+              }, function(result) {
+                expect(chrome.runtime.lastError).not.toBeDefined();
+                expect(result.resultCode).toBe(0);
+                acked.push(n);
+                if (acked.length == writeCount) {
+                  expect(acked).toEqual([0, 1, 2, 3, 4, 5, 6, 7]);
+                  chrome.usb.closeDevice(handle);
+                  done();
+                }
+              });
+            })(i);
+          }
+        });
+      });
+    });
+  });
+
+  it('should coalesce bulk writes on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var outEp = ifs[0].endpoints[1];
+          chrome.usb.cordova.setWriteCoalescing(handle, outEp.address,
+              {maxBatchSize: 64, flushDelayMs: 1000}, function() {
+            expect(chrome.runtime.lastError).not.toBeDefined();
+            var acked = [];
+            for (var i = 0; i < 4; i++) {
+              (function(n) {
+                chrome.usb.bulkTransfer(handle, {
+                  direction: "out",
+                  endpoint: outEp.address,
+                  data: (new Uint8Array([n])).buffer
+                }, function(result) {
+                  expect(result.resultCode).toBe(0);
+                  acked.push(n);
+                });
+              })(i);
+            }
+            chrome.usb.cordova.flush(handle, outEp.address, function() {
+              expect(acked).toEqual([0, 1, 2, 3]);
+              chrome.usb.cordova.getTransferStats(handle, function(stats) {
+                // One transfer carrying all four writes.
+                expect(stats.endpoints[outEp.address].out.transfers).toBe(1);
+                expect(stats.endpoints[outEp.address].out.bytes).toBe(4);
+                chrome.usb.bulkTransfer(handle, {
+                  direction: "in",
+                  endpoint: inEp.address,
+                  length: 10
+                }, function(inResult) {
+                  expect(Array.prototype.slice.call(new Uint8Array(inResult.data)))
+                      .toEqual([0, 1, 2, 3]);
+                  chrome.usb.closeDevice(handle);
+                  done();
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should run a batch of transfers on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var outEp = ifs[0].endpoints[1];
+          chrome.usb.cordova.transferBatch(handle, [
+            {type: "control", direction: "in", recipient: "device",
+             requestType: "vendor", request: 1, value: 2, index: 3, length: 3},
+            {type: "bulk", direction: "out", endpoint: outEp.address,
+             data: (new Uint8Array([42, 43])).buffer},
+            {type: "bulk", direction: "in", endpoint: inEp.address, length: 10}
+          ], {stopOnError: true}, function(results) {
+            expect(chrome.runtime.lastError).not.toBeDefined();
+            expect(results.length).toBe(3);
+            expect(results[0].resultCode).toBe(0);
+            expect(Array.prototype.slice.call(new Uint8Array(results[0].data)))
+                .toEqual([1, 2, 3]);
+            expect(results[1].resultCode).toBe(0);
+            expect(results[2].resultCode).toBe(0);
+            expect(Array.prototype.slice.call(new Uint8Array(results[2].data)))
+                .toEqual([42, 43]);
+            chrome.usb.closeDevice(handle);
+            done();
+          });
+        });
+      });
+    });
+  });
+
+  it('should run control transfers past a blocked batch and cancel it', function(done) {
+    // At 1000 bytes/s each read in the batch takes half a second.
+    var config = {
+      vendorId: 0x18d1,
+      productId: 0x2003,
+      interfaces: [{endpoints: [{direction: "in", mode: "generator", bandwidth: 1000}]}]
+    };
+    chrome.usb.getDevices({simulatedDevices: [config]}, function(devices) {
+      chrome.usb.openDevice(devices[devices.length - 1], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var batchDone = false;
+          var batchId = chrome.usb.cordova.transferBatch(handle, [
+            {type: "bulk", direction: "in", endpoint: inEp.address, length: 500},
+            {type: "bulk", direction: "in", endpoint: inEp.address, length: 500}
+          ], {}, function(results) {
+            batchDone = true;
+            expect(chrome.runtime.lastError).toBeDefined();
+            chrome.usb.closeDevice(handle);
+            done();
+          });
+          expect(typeof batchId).toBe("number");
+          chrome.usb.controlTransfer(handle, {
+            direction: "in", recipient: "device", requestType: "vendor",
+            request: 1, value: 2, index: 3, length: 3
+          }, function(info) {
+            expect(info.resultCode).toBe(0);
+            expect(batchDone).toBe(false);
+            chrome.usb.cordova.cancelTransfer(batchId, function(cancelled) {
+              expect(cancelled).toBe(true);
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should split large bulk transfers on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var size = 100000;
+          var data = new Uint8Array(size);
+          for (var i = 0; i < size; i++) {
+            data[i] = i * 7;
+          }
+          chrome.usb.bulkTransfer(handle, {
+            direction: "out",
+            endpoint: ifs[0].endpoints[1].address,
+            data: data.buffer
+          }, function(outResult) {
+            expect(outResult.resultCode).toBe(0);
+            // Asks for more than was written, so the transfer ends at a short chunk.
+            chrome.usb.bulkTransfer(handle, {
+              direction: "in",
+              endpoint: ifs[0].endpoints[0].address,
+              length: 2 * size,
+              timeout: 5000
+            }, function(inResult) {
+              expect(chrome.runtime.lastError).not.toBeDefined();
+              expect(inResult.resultCode).toBe(0);
+              var r = new Uint8Array(inResult.data);
+              expect(r.length).toBe(size);
+              var mismatch = -1;
+              for (var i = 0; i < size && mismatch < 0; i++) {
+                if (r[i] != data[i]) {
+                  mismatch = i;
+                }
+              }
+              expect(mismatch).toBe(-1);
+              chrome.usb.closeDevice(handle);
+              done();
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should serve bulk reads from a read-ahead buffer on a fake device instance',
+      function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var outEp = ifs[0].endpoints[1];
+          chrome.usb.cordova.startReadAhead(handle, inEp.address, {bufferSize: 1024},
+              function() {
+            expect(chrome.runtime.lastError).not.toBeDefined();
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: outEp.address,
+              data: (new Uint8Array([1, 2, 3, 4, 5])).buffer
+            }, function(outResult) {
+              expect(outResult.resultCode).toBe(0);
+              chrome.usb.bulkTransfer(handle, {
+                direction: "in",
+                endpoint: inEp.address,
+                length: 2,
+                timeout: 1000
+              }, function(first) {
+                expect(first.resultCode).toBe(0);
+                expect(Array.prototype.slice.call(new Uint8Array(first.data)))
+                    .toEqual([1, 2]);
+                chrome.usb.cordova.getReadAheadStatus(handle, inEp.address, function(status) {
+                  expect(status.buffered).toBe(3);
+                  expect(status.capacity).toBe(1024);
+                  chrome.usb.bulkTransfer(handle, {
+                    direction: "in",
+                    endpoint: inEp.address,
+                    length: 10,
+                    timeout: 1000
+                  }, function(rest) {
+                    expect(Array.prototype.slice.call(new Uint8Array(rest.data)))
+                        .toEqual([3, 4, 5]);
+                    chrome.usb.cordova.stopReadAhead(handle, inEp.address, function() {
+                      expect(chrome.runtime.lastError).not.toBeDefined();
+                      chrome.usb.closeDevice(handle);
+                      done();
+                    });
+                  });
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should record and replay a fake device session', function(done) {
+    chrome.usb.cordova.setSessionRecording(true, function() {
+      chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+          function(devices) {
+        chrome.usb.openDevice(devices[0], function(handle) {
+          chrome.usb.cordova.setSessionRecording(false);
+          chrome.usb.listInterfaces(handle, function(ifs) {
+            var inEp = ifs[0].endpoints[0];
+            var outEp = ifs[0].endpoints[1];
+            var readInfo = {direction: "in", endpoint: inEp.address, length: 10};
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: outEp.address,
+              data: (new Uint8Array([7, 8, 9])).buffer
+            }, function(outResult) {
+              chrome.usb.bulkTransfer(handle, readInfo, function(inResult) {
+                expect(inResult.data.byteLength).toBe(3);
+                chrome.usb.cordova.getSessionRecording(handle, function(session) {
+                  expect(chrome.runtime.lastError).not.toBeDefined();
+                  chrome.usb.closeDevice(handle);
+                  chrome.usb.cordova.openReplayDevice(session, {}, function(replay) {
+                    expect(chrome.runtime.lastError).not.toBeDefined();
+                    expect(replay.productId).toBe(0x2001);
+                    chrome.usb.bulkTransfer(replay, {
+                      direction: "out",
+                      endpoint: outEp.address,
+                      data: (new Uint8Array([7, 8, 9])).buffer
+                    }, function(outReplay) {
+                      expect(outReplay.resultCode).toBe(0);
+                      chrome.usb.bulkTransfer(replay, readInfo, function(inReplay) {
+                        expect(Array.prototype.slice.call(new Uint8Array(inReplay.data)))
+                            .toEqual([7, 8, 9]);
+                        chrome.usb.closeDevice(replay);
+                        done();
+                      });
+                    });
+                  });
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should stop recording a session at its size limit', function(done) {
+    chrome.usb.cordova.setSessionRecording(true, {maxBytes: 256}, function() {
+      chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+          function(devices) {
+        chrome.usb.openDevice(devices[0], function(handle) {
+          chrome.usb.cordova.setSessionRecording(false);
+          chrome.usb.listInterfaces(handle, function(ifs) {
+            var outEp = ifs[0].endpoints[1];
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: outEp.address,
+              data: (new Uint8Array(512)).buffer
+            }, function(outResult) {
+              expect(outResult.resultCode).toBe(0);
+              chrome.usb.cordova.getSessionRecording(handle, function(session, truncated) {
+                expect(chrome.runtime.lastError).not.toBeDefined();
+                expect(truncated).toBe(true);
+                expect(session.byteLength).toBeLessThan(256);
+                chrome.usb.closeDevice(handle);
+                done();
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should stream bulk IN data while recording a fake device session', function(done) {
+    chrome.usb.cordova.setSessionRecording(true, function() {
+      chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+          function(devices) {
+        chrome.usb.openDevice(devices[0], function(handle) {
+          chrome.usb.cordova.setSessionRecording(false);
+          chrome.usb.listInterfaces(handle, function(ifs) {
+            var inEp = ifs[0].endpoints[0];
+            var outEp = ifs[0].endpoints[1];
+            chrome.usb.cordova.startBulkInStream(handle, {
+              endpoint: inEp.address,
+              chunkSize: 64,
+              depth: 2
+            }, function(data) {
+              expect(Array.prototype.slice.call(new Uint8Array(data))).toEqual([42, 43]);
+              chrome.usb.cordova.stopBulkInStream(handle, inEp.address, function() {
+                expect(chrome.runtime.lastError).not.toBeDefined();
+                chrome.usb.closeDevice(handle);
+                done();
+              });
+            }, function() {
+              expect(chrome.runtime.lastError).not.toBeDefined();
+              // The write completes the stream's pending read through the recorder.
+              chrome.usb.bulkTransfer(handle, {
+                direction: "out",
+                endpoint: outEp.address,
+                data: (new Uint8Array([42, 43])).buffer
+              }, function(outResult) {
+                expect(chrome.runtime.lastError).not.toBeDefined();
+                expect(outResult.resultCode).toBe(0);
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should generate and echo data on a simulated device', function(done) {
+    var config = {
+      vendorId: 0x18d1,
+      productId: 0x2002,
+      interfaces: [{endpoints: [
+        {direction: "in", mode: "generator", bandwidth: 1000000, latencyMs: 1},
+        {direction: "in"},
+        {direction: "out"}
+      ]}]
+    };
+    chrome.usb.getDevices({simulatedDevices: [config]}, function(devices) {
+      var device = devices[devices.length - 1];
+      expect(device.productId).toBe(0x2002);
+      chrome.usb.openDevice(device, function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var eps = ifs[0].endpoints;
+          expect(eps.length).toBe(3);
+          chrome.usb.bulkTransfer(handle, {
+            direction: "in",
+            endpoint: eps[0].address,
+            length: 4
+          }, function(generated) {
+            expect(Array.prototype.slice.call(new Uint8Array(generated.data)))
+                .toEqual([0, 1, 2, 3]);
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: eps[2].address,
+              data: (new Uint8Array([5, 6])).buffer
+            }, function(outResult) {
+              expect(outResult.resultCode).toBe(0);
+              chrome.usb.bulkTransfer(handle, {
+                direction: "in",
+                endpoint: eps[1].address,
+                length: 8
+              }, function(echoed) {
+                expect(Array.prototype.slice.call(new Uint8Array(echoed.data)))
+                    .toEqual([5, 6]);
+                chrome.usb.closeDevice(handle);
+                done();
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should cancel a transfer on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          // Nothing has been written, so the read waits until cancelled.
+          var transferId = chrome.usb.bulkTransfer(handle, {
+            direction: "in",
+            endpoint: inEp.address,
+            length: 64
+          }, function(result) {
+            expect(chrome.runtime.lastError).toBeDefined();
+            expect(result.resultCode).toBe(1);
+            chrome.usb.closeDevice(handle);
+            done();
+          });
+          expect(typeof transferId).toBe("number");
+          chrome.usb.cordova.cancelTransfer(transferId, function(cancelled) {
+            expect(cancelled).toBe(true);
+          });
+        });
+      });
+    });
+  });
+
+  it('should reject transfers beyond the queue limit on a fake device instance',
+      function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var inEp = ifs[0].endpoints[0];
+          var readInfo = {direction: "in", endpoint: inEp.address, length: 64};
+          chrome.usb.cordova.setTransferQueueLimit(handle, 1, function() {
+            expect(chrome.runtime.lastError).not.toBeDefined();
+            // Nothing has been written, so the first read stays pending.
+            chrome.usb.bulkTransfer(handle, readInfo, function() {
+              chrome.usb.closeDevice(handle);
+              done();
+            });
+            chrome.usb.bulkTransfer(handle, readInfo, function(result) {
+              expect(chrome.runtime.lastError).toBeDefined();
+              expect(result.resultCode).toBe(1);
+              chrome.usb.cordova.getTransferStats(handle, function(stats) {
+                var ep = stats.endpoints[inEp.address];
+                expect(ep.pending).toBe(1);
+                expect(ep.rejected).toBe(1);
+                chrome.usb.cordova.cancelAll(handle);
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should report invalid transfer fields on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          // Not valid for the binary encoding, so this goes through the JSON path.
+          chrome.usb.bulkTransfer(handle, {
+            direction: "sideways",
+            endpoint: ifs[0].endpoints[1].address,
+            data: (new Uint8Array([1])).buffer
+          }, function(result) {
+            expect(chrome.runtime.lastError).toBeDefined();
+            expect(result.resultCode).toBe(1);
+            chrome.usb.closeDevice(handle);
+            done();
+          });
+        });
+      });
+    });
+  });
+
+  it('should capture transfers on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          chrome.usb.cordova.startCapture({records: 16, snapLength: 8}, function() {
+            chrome.usb.bulkTransfer(handle, {
+              direction: "out",
+              endpoint: ifs[0].endpoints[1].address,
+              data: (new Uint8Array([1, 2, 3])).buffer
+            }, function(result) {
+              expect(result.resultCode).toBe(0);
+              chrome.usb.cordova.getCapture(function(pcap) {
+                expect(chrome.runtime.lastError).not.toBeDefined();
+                var view = new DataView(pcap);
+                expect(view.getUint32(0, true)).toBe(0xa1b2c3d4);
+                expect(view.getUint32(20, true)).toBe(220);
+                // Global header, then a submission holding the data and its completion.
+                expect(pcap.byteLength).toBe(24 + (16 + 64 + 3) + (16 + 64));
+                expect(String.fromCharCode(view.getUint8(24 + 16 + 8))).toBe('S');
+                expect(view.getUint8(24 + 16 + 10)).toBe(0x02);
+                chrome.usb.cordova.stopCapture(function() {
+                  chrome.usb.closeDevice(handle);
+                  done();
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+  it('should count transfers on a fake device instance', function(done) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001},
+        function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          var outEp = ifs[0].endpoints[1];
+          var transferInfo = {
+            direction: "out",
+            endpoint: outEp.address,
+            data: (new Uint8Array([1, 2, 3, 4])).buffer
+          };
+          chrome.usb.bulkTransfer(handle, transferInfo, function(result) {
+            expect(result.resultCode).toBe(0);
+            chrome.usb.cordova.getTransferStats(handle, function(stats) {
+              expect(chrome.runtime.lastError).not.toBeDefined();
+              var out = stats.endpoints[outEp.address].out;
+              expect(out.transfers).toBe(1);
+              expect(out.bytes).toBe(4);
+              expect(out.errors).toBe(0);
+              expect(out.latency.count).toBe(1);
+              expect(out.latency.p99Us).toBeGreaterThan(-1);
+              chrome.usb.cordova.resetTransferStats(handle, function() {
+                chrome.usb.cordova.getTransferStats(handle, function(stats) {
+                  expect(stats.endpoints[outEp.address].out.transfers).toBe(0);
+                  chrome.usb.closeDevice(handle);
+                  done();
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+
+};
+
+// Benchmarks of the plugin's own overhead per call, run against the fake device so that no
+// hardware is needed. Each reports calls per second and the latency seen from JS; transfer
+// benchmarks also report the native on-wire time from getTransferStats, and the difference is
+// the cost of the bridge, action dispatch and argument handling. Allocation per call is
+// reported by the JVM benchmark instead, see tests/jvm/run.sh.
+exports.defineManualTests = function(rootEl, addButton) {
+  var PAYLOAD_SIZES = [0, 64, 1024, 16384, 65536];
+  var WARMUP_CALLS = 200;
+  var RUN_MS = 2000;
+
+  var output = document.createElement('pre');
+  rootEl.appendChild(output);
+  function log(msg) {
+    console.log(msg);
+    output.textContent += msg + '\n';
+  }
+
+  function percentile(sorted, fraction) {
+    return sorted[Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+  }
+
+  // Calls |op| back-to-back, first WARMUP_CALLS times untimed and then for RUN_MS, and logs
+  // the rate and latency percentiles.
+  function runBenchmark(name, op, done) {
+    var latencies = [];
+    var warmup = WARMUP_CALLS;
+    var start;
+    function next() {
+      if (warmup == 0) {
+        start = performance.now();
+      }
+      var callStart = performance.now();
+      op(function() {
+        var now = performance.now();
+        if (warmup-- > 0) {
+          return next();
+        }
+        latencies.push(now - callStart);
+        if (now - start < RUN_MS) {
+          return next();
+        }
+        latencies.sort(function(a, b) { return a - b; });
+        log(name + ': ' + Math.round(latencies.length * 1000 / (now - start)) + ' ops/s, ' +
+            'p50 ' + percentile(latencies, 0.5).toFixed(3) + ' ms, ' +
+            'p99 ' + percentile(latencies, 0.99).toFixed(3) + ' ms, ' +
+            'p999 ' + percentile(latencies, 0.999).toFixed(3) + ' ms');
+        done();
+      });
+    }
+    next();
+  }
+
+  function runSeries(benchmarks, done) {
+    if (benchmarks.length == 0) {
+      return done && done();
+    }
+    var benchmark = benchmarks.shift();
+    runBenchmark(benchmark.name, benchmark.op, function() {
+      if (benchmark.after) {
+        benchmark.after(function() {
+          runSeries(benchmarks, done);
+        });
+      } else {
+        runSeries(benchmarks, done);
+      }
+    });
+  }
+
+  function withFakeDevice(fn) {
+    chrome.usb.getDevices({appendFakeDevice:true, productId: 0x2001}, function(devices) {
+      chrome.usb.openDevice(devices[0], function(handle) {
+        chrome.usb.listInterfaces(handle, function(ifs) {
+          fn(handle, ifs[0].endpoints[0], ifs[0].endpoints[1]);
+        });
+      });
+    });
+  }
+
+  // Logs the native on-wire time of |direction| transfers on |endpoint| since the last reset,
+  // then resets the counters for the next benchmark.
+  function logNativeStats(handle, endpoint, direction) {
+    return function(done) {
+      chrome.usb.cordova.getTransferStats(handle, function(stats) {
+        var ep = endpoint == null ? stats.control : stats.endpoints[endpoint];
+        var onWire = ep[direction].onWire;
+        log('  native on-wire: p50 ' + onWire.p50Us + ' us, p99 ' + onWire.p99Us + ' us');
+        chrome.usb.cordova.resetTransferStats(handle, done);
+      });
+    };
+  }
+
+  addButton('Benchmark bulk transfers', function() {
+    withFakeDevice(function(handle, inEp, outEp) {
+      var benchmarks = [];
+      PAYLOAD_SIZES.forEach(function(size) {
+        var data = new ArrayBuffer(size);
+        benchmarks.push({
+          name: 'bulkTransfer out ' + size + ' B',
+          op: function(callback) {
+            chrome.usb.bulkTransfer(handle,
+                {direction: 'out', endpoint: outEp.address, data: data}, callback);
+          },
+          after: logNativeStats(handle, outEp.address, 'out')
+        });
+        benchmarks.push({
+          name: 'bulkTransfer in ' + size + ' B',
+          op: function(callback) {
+            chrome.usb.bulkTransfer(handle,
+                {direction: 'in', endpoint: inEp.address, length: size}, callback);
+          },
+          after: logNativeStats(handle, inEp.address, 'in')
+        });
+      });
+      chrome.usb.cordova.resetTransferStats(handle, function() {
+        runSeries(benchmarks, function() {
+          chrome.usb.closeDevice(handle);
+        });
+      });
+    });
+  });
+
+  addButton('Benchmark control transfers and batches', function() {
+    withFakeDevice(function(handle, inEp, outEp) {
+      var control = {direction: 'in', recipient: 'device', requestType: 'vendor',
+                     request: 1, value: 2, index: 3, length: 3};
+      var batch = [];
+      for (var i = 0; i < 16; i++) {
+        batch.push({type: 'control', direction: 'in', recipient: 'device',
+                    requestType: 'vendor', request: 1, value: 2, index: 3, length: 3});
+      }
+      runSeries([
+        {
+          name: 'controlTransfer in 3 B',
+          op: function(callback) {
+            chrome.usb.controlTransfer(handle, control, callback);
+          },
+          after: logNativeStats(handle, null, 'in')
+        },
+        {
+          name: 'transferBatch of 16 control transfers',
+          op: function(callback) {
+            chrome.usb.cordova.transferBatch(handle, batch, {}, callback);
+          },
+          after: logNativeStats(handle, null, 'in')
+        }
+      ], function() {
+        chrome.usb.closeDevice(handle);
+      });
+    });
+  });
+
+  addButton('Benchmark descriptors and filters', function() {
+    withFakeDevice(function(handle) {
+      runSeries([
+        {
+          name: 'listInterfaces',
+          op: function(callback) {
+            chrome.usb.listInterfaces(handle, callback);
+          }
+        },
+        {
+          name: 'getConfiguration',
+          op: function(callback) {
+            chrome.usb.getConfiguration(handle, callback);
+          }
+        },
+        {
+          name: 'getDevices with filters',
+          op: function(callback) {
+            chrome.usb.getDevices({appendFakeDevice: true, filters: [
+              {vendorId: 0x18d1, productId: 0x2001},
+              {interfaceClass: 0xff, interfaceSubclass: 0xff}
+            ]}, callback);
+          }
+        }
+      ], function() {
+        chrome.usb.closeDevice(handle);
+      });
+    });
+  });
 };
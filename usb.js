@@ -6,10 +6,114 @@ var exec = require('cordova/exec');
 var platformId = require('cordova/platform').id;
 var callbackWithError = require('cordova-plugin-chrome-apps-common.errors').callbackWithError;
 var base64 = require('cordova/base64')
+var channel = require('cordova/channel');
+var Event = require('cordova-plugin-chrome-apps-common.events');
 try {
       var runtime = require('cordova-plugin-chrome-apps-runtime');
 } catch(e) {}
 
+exports.onDeviceAdded = new Event('onDeviceAdded');
+exports.onDeviceRemoved = new Event('onDeviceRemoved');
+
+// The native side tracks attached devices from the system's hotplug broadcasts and reports
+// changes through a single kept-alive callback.
+channel.onCordovaReady.subscribe(function() {
+  exec(
+      function(event) {
+        exports[event.event].fire(event.device);
+      },
+      null,
+      'ChromeUsb',
+      'registerDeviceEvents',
+      [{}]);
+});
+
+// Transfers go to the native side in a compact binary form when every field has a valid value
+// (see ChromeUsb.transferCommand): the OUT data followed by a fixed 28 byte command block, in
+// one ArrayBuffer. Anything else takes the JSON path, which reports the invalid field.
+var TRANSFER_COMMAND_SIZE = 28;
+var TRANSFER_TYPES = {control: 0, bulk: 2, interrupt: 3};
+var DIRECTIONS = {out: 0x00, 'in': 0x80};
+var REQUEST_TYPES = {standard: 0x00, 'class': 0x20, vendor: 0x40, reserved: 0x60};
+var RECIPIENTS = {device: 0, 'interface': 1, endpoint: 2, other: 3};
+// Zero in the command block selects the transfer type's default priority.
+var PRIORITIES = {high: 1, normal: 2, low: 3};
+
+function lookupName(table, name) {
+  if (typeof name != 'string') {
+    return undefined;
+  }
+  name = name.toLowerCase();
+  return table.hasOwnProperty(name) ? table[name] : undefined;
+}
+
+// Every transfer is numbered, so that it can be passed to chrome.usb.cordova.cancelTransfer.
+var nextTransferId = 1;
+
+function newTransferId() {
+  var transferId = nextTransferId;
+  nextTransferId = nextTransferId % 0x7fffffff + 1;
+  return transferId;
+}
+
+function isInteger(value, min, max) {
+  return typeof value == 'number' && value % 1 === 0 && value >= min && value <= max;
+}
+
+// Returns the binary form of a transfer, or null if it has to go through the JSON path.
+function packTransfer(type, handle, transferInfo, transferId) {
+  var requestType = lookupName(DIRECTIONS, transferInfo.direction);
+  var timeout = transferInfo.timeout === undefined ? 0 : transferInfo.timeout;
+  var priority = transferInfo.priority === undefined ?
+      0 : lookupName(PRIORITIES, transferInfo.priority);
+  if (requestType === undefined || priority === undefined ||
+      !isInteger(handle.handle, -0x80000000, 0x7fffffff) ||
+      !isInteger(timeout, -0x80000000, 0x7fffffff)) {
+    return null;
+  }
+  if (type == 'control') {
+    var controlType = lookupName(REQUEST_TYPES, transferInfo.requestType);
+    var recipient = lookupName(RECIPIENTS, transferInfo.recipient);
+    if (controlType === undefined || recipient === undefined ||
+        !isInteger(transferInfo.request, 0, 0xff) ||
+        !isInteger(transferInfo.value, 0, 0xffff) ||
+        !isInteger(transferInfo.index, 0, 0xffff)) {
+      return null;
+    }
+    requestType |= controlType | recipient;
+  } else if (!isInteger(transferInfo.endpoint, 0, 0x7fffffff)) {
+    return null;
+  }
+  var dataLength = 0;
+  var length;
+  if (requestType & DIRECTIONS['in']) {
+    length = transferInfo.length === undefined ? 0 : transferInfo.length;
+    if (!isInteger(length, 0, 0x7fffffff)) {
+      return null;
+    }
+  } else if (transferInfo.data instanceof ArrayBuffer) {
+    length = dataLength = transferInfo.data.byteLength;
+  } else {
+    return null;
+  }
+  var packet = new ArrayBuffer(dataLength + TRANSFER_COMMAND_SIZE);
+  if (dataLength > 0) {
+    new Uint8Array(packet).set(new Uint8Array(transferInfo.data));
+  }
+  var command = new DataView(packet, dataLength);
+  command.setUint8(0, TRANSFER_TYPES[type]);
+  command.setUint8(1, requestType);
+  command.setUint8(2, transferInfo.request || 0);
+  command.setUint8(3, priority);
+  command.setUint16(4, transferInfo.value || 0, true);
+  command.setUint16(6, transferInfo.index || 0, true);
+  command.setInt32(8, handle.handle, true);
+  command.setInt32(12, transferInfo.endpoint || 0, true);
+  command.setInt32(16, length, true);
+  command.setInt32(20, timeout, true);
+  command.setInt32(24, transferId, true);
+  return packet;
+}
 
 exports.getDevices = function(options, callback) {
   cordova.exec(
@@ -56,9 +160,7 @@ exports.closeDevice = function(handle, opt_callback) {
 exports.listInterfaces = function(handle, callback) {
   cordova.exec(
       function(interfaceDescriptors) {
-        interfaceDescriptors.forEach(function (interfaceDescriptor) {
-            interfaceDescriptor.extra_data = base64.toArrayBuffer(interfaceDescriptor.extra_data);
-        });
+        interfaceDescriptors.forEach(decodeInterfaceDescriptor);
         callback(interfaceDescriptors);
       },  // successCallback
       function(msg) {  // errorCallback
@@ -70,6 +172,34 @@ exports.listInterfaces = function(handle, callback) {
       );
 };
 
+exports.getConfiguration = function(handle, callback) {
+  cordova.exec(
+      function(configDescriptor) {  // successCallback
+        configDescriptor.interfaces.forEach(decodeInterfaceDescriptor);
+        configDescriptor.extra_data = base64.toArrayBuffer(configDescriptor.extra_data);
+        callback(configDescriptor);
+      },
+      function(msg) {  // errorCallback
+        callbackWithError('Get configuration failed: ' + msg, callback);
+      },
+      'ChromeUsb',
+      'getConfiguration',
+      [{handle:handle.handle}]
+      );
+};
+
+// Converts the Base64 extra_data of an interface and its endpoints to ArrayBuffers.
+function decodeInterfaceDescriptor(interfaceDescriptor) {
+  if (typeof interfaceDescriptor.extra_data == 'string') {
+    interfaceDescriptor.extra_data = base64.toArrayBuffer(interfaceDescriptor.extra_data);
+  }
+  interfaceDescriptor.endpoints.forEach(function(endpointDescriptor) {
+    if (typeof endpointDescriptor.extra_data == 'string') {
+      endpointDescriptor.extra_data = base64.toArrayBuffer(endpointDescriptor.extra_data);
+    }
+  });
+}
+
 exports.claimInterface = function(handle, interfaceNumber, callback) {
   if (typeof interfaceNumber != "number") {
     // List interfaces returns an object, the caller must extract the number
@@ -108,7 +238,7 @@ exports.controlTransfer = function(handle, transferInfo, callback) {
   var params = {};
   var ALLOWED_PROPERTIES = [
       'direction', 'recipient', 'requestType', 'request', 'value',
-      'index', 'length', 'timeout',
+      'index', 'length', 'timeout', 'priority',
       // Skip 'data' -- sent as positional param 1
   ];
 
@@ -117,6 +247,8 @@ exports.controlTransfer = function(handle, transferInfo, callback) {
     params[name] = transferInfo[name];
   }
   params.handle = handle.handle;
+  params.transferId = newTransferId();
+  var packed = packTransfer('control', handle, transferInfo, params.transferId);
   cordova.exec(
       function(data) {  // successCallback
         callback({resultCode: 0, data:data});
@@ -125,10 +257,10 @@ exports.controlTransfer = function(handle, transferInfo, callback) {
         callbackWithError('Control transfer failed: ' + msg, callback, {resultCode: 1});
       },
       'ChromeUsb',
-      'controlTransfer',
-      [params, transferInfo['data']]
+      packed ? 'transfer' : 'controlTransfer',
+      packed ? [packed] : [params, transferInfo['data']]
       );
-
+  return params.transferId;
 };
 
 
@@ -145,8 +277,11 @@ exports.bulkTransfer = function(handle, transferInfo, callback) {
     direction: transferInfo.direction,
     endpoint: transferInfo.endpoint,
     length: transferInfo.length,
-    timeout: transferInfo.timeout
+    timeout: transferInfo.timeout,
+    priority: transferInfo.priority,
+    transferId: newTransferId()
   };
+  var packed = packTransfer('bulk', handle, transferInfo, params.transferId);
 
   cordova.exec(
       function(data) {  // successCallback
@@ -156,9 +291,10 @@ exports.bulkTransfer = function(handle, transferInfo, callback) {
         callbackWithError('Bulk transfer failed: ' + msg, callback, {resultCode: 1});
       },
       'ChromeUsb',
-      'bulkTransfer',
-      [params, transferInfo['data']]
+      packed ? 'transfer' : 'bulkTransfer',
+      packed ? [packed] : [params, transferInfo['data']]
       );
+  return params.transferId;
 };
 
 
@@ -175,8 +311,11 @@ exports.interruptTransfer = function(handle, transferInfo, callback) {
     direction: transferInfo.direction,
     endpoint: transferInfo.endpoint,
     length: transferInfo.length,
-    timeout: transferInfo.timeout
+    timeout: transferInfo.timeout,
+    priority: transferInfo.priority,
+    transferId: newTransferId()
   };
+  var packed = packTransfer('interrupt', handle, transferInfo, params.transferId);
 
   cordova.exec(
       function(data) {  // successCallback
@@ -186,9 +325,10 @@ exports.interruptTransfer = function(handle, transferInfo, callback) {
         callbackWithError('Interrupt transfer failed: ' + msg, callback, {resultCode: 1});
       },
       'ChromeUsb',
-      'interruptTransfer',
-      [params, transferInfo['data']]
+      packed ? 'transfer' : 'interruptTransfer',
+      packed ? [packed] : [params, transferInfo['data']]
       );
+  return params.transferId;
 };
 
 
@@ -211,6 +351,478 @@ exports.cordova = {
       'ChromeUsb',
       'hasUsbHostFeature',
       [{}]);
+  },
+
+  // Cancels a transfer by the id its controlTransfer, bulkTransfer or interruptTransfer call
+  // returned. The transfer's callback then gets an error, and |opt_callback| is passed
+  // whether the transfer was still in progress.
+  cancelTransfer: function(transferId, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        function(cancelled) {  // successCallback
+          callback(!!cancelled);
+        },
+        function(msg) {  // errorCallback
+          callbackWithError('Cancel transfer failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'cancelTransfer',
+        [{transferId: transferId}]
+        );
+  },
+
+  // Sets the most transfers that may be waiting or in progress on each endpoint of |handle|
+  // (control transfers count as one endpoint). Beyond it transfers fail straight away.
+  setTransferQueueLimit: function(handle, limit, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Set transfer queue limit failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'setTransferQueueLimit',
+        [{handle: handle.handle,
+          limit: limit}]
+        );
+  },
+
+  // Cancels every transfer in progress on |handle|.
+  cancelAll: function(handle, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Cancel all failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'cancelAll',
+        [{handle: handle.handle}]
+        );
+  },
+
+  // Keeps |streamInfo.depth| reads queued on a bulk IN endpoint and calls |onData| with each
+  // chunk (an ArrayBuffer of at most |streamInfo.chunkSize| bytes) until stopBulkInStream.
+  // Setting |streamInfo.credits| turns on flow control, see grantStreamCredits.
+  startBulkInStream: function(handle, streamInfo, onData, opt_callback) {
+    var callback = opt_callback || function() {};
+    if (typeof streamInfo.endpoint != "number") {
+      return callbackWithError('endpoint must be a number, not: ' +
+          JSON.stringify(streamInfo.endpoint), callback);
+    }
+    var started = false;
+    cordova.exec(
+        function(data) {  // successCallback
+          if (data instanceof ArrayBuffer) {
+            onData(data);
+          } else if (!started) {
+            started = true;
+            callback();
+          }
+        },
+        function(msg) {  // errorCallback
+          callbackWithError('Bulk IN stream failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'startBulkInStream',
+        [{handle: handle.handle,
+          endpoint: streamInfo.endpoint,
+          chunkSize: streamInfo.chunkSize,
+          depth: streamInfo.depth,
+          credits: streamInfo.credits,
+          creditUnit: streamInfo.creditUnit,
+          overflow: streamInfo.overflow,
+          queueLimit: streamInfo.queueLimit}]
+        );
+  },
+
+  // Keeps a read queued on an interrupt IN endpoint, so the host controller polls it at the
+  // endpoint's interval, and calls |onReport| with each report (an ArrayBuffer of at most
+  // |options.reportSize| bytes, by default the endpoint's maximumPacketSize). With
+  // |options.dropUnchanged| a report identical to the previous one is skipped. Setting
+  // |options.credits| turns on flow control, see grantStreamCredits.
+  startInterruptPolling: function(handle, endpoint, options, onReport, opt_callback) {
+    var callback = opt_callback || function() {};
+    if (typeof endpoint != "number") {
+      return callbackWithError('endpoint must be a number, not: ' +
+          JSON.stringify(endpoint), callback);
+    }
+    options = options || {};
+    var started = false;
+    cordova.exec(
+        function(data) {  // successCallback
+          if (data instanceof ArrayBuffer) {
+            onReport(data);
+          } else if (!started) {
+            started = true;
+            callback();
+          }
+        },
+        function(msg) {  // errorCallback
+          callbackWithError('Interrupt polling failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'startInterruptPolling',
+        [{handle: handle.handle,
+          endpoint: endpoint,
+          reportSize: options.reportSize,
+          depth: options.depth,
+          dropUnchanged: !!options.dropUnchanged,
+          credits: options.credits,
+          creditUnit: options.creditUnit,
+          overflow: options.overflow,
+          queueLimit: options.queueLimit}]
+        );
+  },
+
+  stopInterruptPolling: function(handle, endpoint, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Stop interrupt polling failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'stopInterruptPolling',
+        [{handle: handle.handle,
+          endpoint: endpoint}]
+        );
+  },
+
+  // Allows a flow controlled stream on |endpoint| to deliver |credits| more bytes or messages,
+  // and calls back with {credits, queued, dropped, paused}. Granting 0 just reads the status.
+  grantStreamCredits: function(handle, endpoint, credits, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Grant stream credits failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'grantStreamCredits',
+        [{handle: handle.handle,
+          endpoint: endpoint,
+          credits: credits}]
+        );
+  },
+
+  // Keeps reads queued on a bulk IN endpoint into a native buffer of |options.bufferSize| bytes,
+  // |options.depth| reads of |options.chunkSize| bytes at a time. Until stopReadAhead, IN
+  // bulkTransfers on the endpoint return buffered data as soon as there is any.
+  startReadAhead: function(handle, endpoint, options, opt_callback) {
+    var callback = opt_callback || function() {};
+    if (typeof endpoint != "number") {
+      return callbackWithError('endpoint must be a number, not: ' +
+          JSON.stringify(endpoint), callback);
+    }
+    options = options || {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Start read-ahead failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'startReadAhead',
+        [{handle: handle.handle,
+          endpoint: endpoint,
+          bufferSize: options.bufferSize,
+          chunkSize: options.chunkSize,
+          depth: options.depth}]
+        );
+  },
+
+  stopReadAhead: function(handle, endpoint, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Stop read-ahead failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'stopReadAhead',
+        [{handle: handle.handle,
+          endpoint: endpoint}]
+        );
+  },
+
+  // Calls back with {buffered, capacity, overruns, active, error} for the read-ahead buffer of
+  // |endpoint|.
+  getReadAheadStatus: function(handle, endpoint, callback) {
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Get read-ahead status failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'getReadAheadStatus',
+        [{handle: handle.handle,
+          endpoint: endpoint}]
+        );
+  },
+
+  // Queues a bulk OUT write without waiting for earlier writes to complete. Up to
+  // |transferInfo.depth| writes per endpoint are in flight at once; callbacks run in order.
+  bulkWrite: function(handle, transferInfo, callback) {
+    if (typeof transferInfo.endpoint != "number") {
+      return callbackWithError('endpoint must be a number, not: ' +
+          JSON.stringify(transferInfo.endpoint), callback, {resultCode: 1});
+    }
+    cordova.exec(
+        function() {  // successCallback
+          callback({resultCode: 0});
+        },
+        function(msg) {  // errorCallback
+          callbackWithError('Bulk write failed: ' + msg, callback, {resultCode: 1});
+        },
+        'ChromeUsb',
+        'bulkWrite',
+        [{handle: handle.handle,
+          endpoint: transferInfo.endpoint,
+          depth: transferInfo.depth},
+         transferInfo.data]
+        );
+  },
+
+  // Merges consecutive bulk OUT writes on |endpoint|, from bulkTransfer and bulkWrite, into
+  // transfers of up to |options.maxBatchSize| bytes (by default the endpoint's
+  // maximumPacketSize). A partial batch is sent |options.flushDelayMs| (default 2) after its
+  // first write, or on flush. Each write's callback runs once its bytes are sent, and a
+  // bulkTransfer write can be cancelled until then. A maxBatchSize of 0 turns coalescing off.
+  setWriteCoalescing: function(handle, endpoint, options, opt_callback) {
+    var callback = opt_callback || function() {};
+    if (typeof endpoint != "number") {
+      return callbackWithError('endpoint must be a number, not: ' +
+          JSON.stringify(endpoint), callback);
+    }
+    options = options || {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Set write coalescing failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'setWriteCoalescing',
+        [{handle: handle.handle,
+          endpoint: endpoint,
+          maxBatchSize: options.maxBatchSize,
+          flushDelayMs: options.flushDelayMs}]
+        );
+  },
+
+  // Sends any writes held for coalescing on |endpoint| at once, and calls back when all earlier
+  // writes are done.
+  flush: function(handle, endpoint, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Flush failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'flush',
+        [{handle: handle.handle,
+          endpoint: endpoint}]
+        );
+  },
+
+  // Runs |transfers| back-to-back with a single bridge crossing. Each transfer is an object with
+  // a 'type' of "control", "bulk" or "interrupt" and the same properties as the corresponding
+  // transferInfo. The callback receives an array of {resultCode, data} in the same order; with
+  // |options.stopOnError| it ends at the first failed transfer. Returns an id for
+  // cancelTransfer, which stops the batch before its next transfer.
+  transferBatch: function(handle, transfers, options, callback) {
+    var ALLOWED_PROPERTIES = [
+        'type', 'direction', 'endpoint', 'recipient', 'requestType', 'request', 'value',
+        'index', 'length', 'timeout'
+    ];
+    var params = [];
+    var outBuffers = [];
+    var outLength = 0;
+    for (var i = 0; i < transfers.length; ++i) {
+      var transfer = {};
+      for (var j = 0; j < ALLOWED_PROPERTIES.length; ++j) {
+        var name = ALLOWED_PROPERTIES[j];
+        transfer[name] = transfers[i][name];
+      }
+      if (transfer.direction == 'out') {
+        var data = new Uint8Array(transfers[i].data || new ArrayBuffer(0));
+        transfer.length = data.length;
+        outBuffers.push(data);
+        outLength += data.length;
+      }
+      params.push(transfer);
+    }
+    var transferId = newTransferId();
+    var packed = new Uint8Array(outLength);
+    var offset = 0;
+    outBuffers.forEach(function(data) {
+      packed.set(data, offset);
+      offset += data.length;
+    });
+
+    cordova.exec(
+        function(response) {  // successCallback
+          var inData = base64.toArrayBuffer(response.data);
+          var inOffset = 0;
+          callback(response.results.map(function(result) {
+            var info = {resultCode: result.resultCode};
+            if (result.length > 0) {
+              info.data = inData.slice(inOffset, inOffset + result.length);
+              inOffset += result.length;
+            }
+            if (result.error) {
+              info.error = result.error;
+            }
+            return info;
+          }));
+        },
+        function(msg) {  // errorCallback
+          callbackWithError('Transfer batch failed: ' + msg, callback, []);
+        },
+        'ChromeUsb',
+        'transferBatch',
+        [{handle: handle.handle,
+          transfers: params,
+          stopOnError: !!(options && options.stopOnError),
+          priority: options && options.priority,
+          transferId: transferId},
+         packed.buffer]
+        );
+    return transferId;
+  },
+
+  // Calls back with the transfer counters and latency percentiles of |handle|, as
+  // {control: {in, out}, endpoints: {<address>: {in, out}}}.
+  getTransferStats: function(handle, callback) {
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Get transfer stats failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'getTransferStats',
+        [{handle: handle.handle}]
+        );
+  },
+
+  resetTransferStats: function(handle, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Reset transfer stats failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'resetTransferStats',
+        [{handle: handle.handle}]
+        );
+  },
+
+  // Records the traffic of all connections, keeping the last |options.records| submissions and
+  // completions with up to |options.snapLength| bytes of data each, until stopCapture.
+  startCapture: function(options, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Start capture failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'startCapture',
+        [options || {}]
+        );
+  },
+
+  stopCapture: function(opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Stop capture failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'stopCapture',
+        [{}]
+        );
+  },
+
+  // Calls back with the captured records as an ArrayBuffer holding a pcap file in Linux usbmon
+  // format, which Wireshark can open.
+  getCapture: function(callback) {
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Get capture failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'getCapture',
+        [{}]
+        );
+  },
+
+  // While |enabled|, connections opened by openDevice record every transfer they make, for
+  // getSessionRecording, until a recording reaches |options.maxBytes| (default 16 MiB).
+  setSessionRecording: function(enabled, opt_options, opt_callback) {
+    if (typeof opt_options == 'function') {
+      opt_callback = opt_options;
+      opt_options = {};
+    }
+    var options = opt_options || {};
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Set session recording failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'setSessionRecording',
+        [{enabled: !!enabled, maxBytes: options.maxBytes}]
+        );
+  },
+
+  // Calls back with the session recorded on |handle| so far, as an ArrayBuffer, and whether the
+  // recording reached its size limit and stopped.
+  getSessionRecording: function(handle, callback) {
+    cordova.exec(
+        function(session) {  // successCallback
+          // Bit 0 of the flags byte that follows the magic and version.
+          callback(session, (new Uint8Array(session)[5] & 1) != 0);
+        },
+        function(msg) {  // errorCallback
+          callbackWithError('Get session recording failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'getSessionRecording',
+        [{handle: handle.handle}]
+        );
+  },
+
+  // Opens a connection that replays |session| (from getSessionRecording), and calls back with
+  // its handle. With |options.realtime| each transfer takes as long as it did when recorded.
+  openReplayDevice: function(session, options, callback) {
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Open replay device failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'openReplayDevice',
+        [{realtime: !!(options && options.realtime)}, session]
+        );
+  },
+
+  stopBulkInStream: function(handle, endpoint, opt_callback) {
+    var callback = opt_callback || function() {};
+    cordova.exec(
+        callback,  // successCallback
+        function(msg) {  // errorCallback
+          callbackWithError('Stop bulk IN stream failed: ' + msg, callback);
+        },
+        'ChromeUsb',
+        'stopBulkInStream',
+        [{handle: handle.handle,
+          endpoint: endpoint}]
+        );
   }
 };
 